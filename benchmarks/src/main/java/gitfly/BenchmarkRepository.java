@@ -0,0 +1,163 @@
+package gitfly;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * A scratch repository with synthetic contents, shared by the benchmarks.
+ *
+ * {@link Repository#CWD} is read from user.dir the first time Repository is used, so a JVM can only work on one repository.
+ * JMH runs every benchmark, and every combination of its parameters, in a fork of its own: {@link #create()} points
+ * user.dir at a new temporary directory before any gitfly code runs in the fork. The benchmarks can't run with -f 0.
+ *
+ * Files are spread over two levels of directories, FILES_PER_DIRECTORY files per directory, like a source tree:
+ *
+ *     d{i / 1000}/d{i / FILES_PER_DIRECTORY % 20}/f{i}.txt
+ */
+final class BenchmarkRepository {
+    static final int FILES_PER_DIRECTORY = 50;
+
+    private static File root;
+
+    private BenchmarkRepository() {
+    }
+
+    /**
+     * Creates an empty repository in a new temporary directory and makes it the current directory of gitfly.
+     * @throws IllegalStateException if gitfly already uses another directory in this JVM
+     */
+    static File create() throws IOException {
+        if (root != null) {
+            throw new IllegalStateException("A benchmark repository was already created in this JVM: " + root);
+        }
+        root = Files.createTempDirectory("gitfly-bench").toFile().getCanonicalFile();
+        System.setProperty("user.dir", root.getPath());
+        if (!Repository.CWD.equals(root)) {
+            throw new IllegalStateException("gitfly already runs in " + Repository.CWD + "; run the benchmarks in forked JVMs");
+        }
+        quietly(() -> {
+            Repository.init();
+            return null;
+        });
+        return root;
+    }
+
+    /**
+     * Returns the path of the i-th synthetic file, relative to the root of the repository.
+     */
+    static String path(int i) {
+        return "d" + (i / 1000) + "/d" + (i / FILES_PER_DIRECTORY % 20) + "/f" + i + ".txt";
+    }
+
+    /**
+     * Returns the paths of the first count synthetic files.
+     */
+    static List<String> paths(int count) {
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(path(i));
+        }
+        return paths;
+    }
+
+    /**
+     * Writes the given files with size bytes of random text each. The same seed gives the same contents.
+     */
+    static void writeFiles(List<String> paths, int size, long seed) throws IOException {
+        Random random = new Random(seed);
+        for (String path : paths) {
+            File file = Utils.join(root, path);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), text(random, size));
+        }
+    }
+
+    /**
+     * Adds the given files and commits them, without printing anything.
+     * @return ID of the new commit
+     */
+    static ObjectId commit(List<String> paths, String message) {
+        return quietly(() -> {
+            Repository.add(paths.toArray(new String[0]));
+            Repository.commit(message);
+            return Repository.getCurrentCommitID();
+        });
+    }
+
+    /**
+     * Creates a commit whose tree is the tree of parent with the given files pointing at made-up blob IDs.
+     * No blob is written, so the files can only be compared, not read; this is enough for tree walks and diffs.
+     * @return ID of the new commit
+     */
+    static ObjectId commitSynthetic(ObjectId parent, List<String> changed, long seed, String message) {
+        return quietly(() -> {
+            ObjectId tree = Repository.buildUpdatedTree(Repository.CWD, Commit.getSnapshotID(parent),
+                    syntheticIDs(changed, seed), new HashSet<>());
+            return new Commit(message, tree, parent).getCommitID();
+        });
+    }
+
+    /**
+     * Maps each path to a made-up blob ID; the same seed gives the same IDs.
+     */
+    static HashMap<String, ObjectId> syntheticIDs(List<String> paths, long seed) {
+        HashMap<String, ObjectId> ids = new HashMap<>();
+        for (String path : paths) {
+            ids.put(path, ObjectId.hash((seed + " " + path).getBytes(StandardCharsets.UTF_8)));
+        }
+        return ids;
+    }
+
+    /**
+     * Runs an action with System.out discarded, and returns its result.
+     * A command ending with {@link Utils#exit} is not an error here: its result is null.
+     */
+    static <T> T quietly(Supplier<T> action) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return action.get();
+        } catch (Utils.ExitException e) {
+            return null;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Deletes the repository.
+     */
+    static void delete() throws IOException {
+        if (root != null) {
+            deleteRecursively(root);
+        }
+    }
+
+    private static byte[] text(Random random, int size) {
+        byte[] text = new byte[size];
+        for (int i = 0; i < size; i++) {
+            text[i] = i % 64 == 63 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return text;
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,55 @@
+package gitfly;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Constructing a {@link Blob}: hashing and compressing a file into the object store.
+ * The object already exists after the first call, so this measures the path taken when an unchanged file is added again
+ * (the file is still read and compressed in full before the existing object is found).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BlobBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    int fileSize;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        File root = BenchmarkRepository.create();
+        String path = BenchmarkRepository.path(0);
+        BenchmarkRepository.writeFiles(List.of(path), fileSize, 1);
+        file = Utils.join(root, path);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkRepository.delete();
+    }
+
+    @Benchmark
+    public ObjectId newBlob() {
+        return new Blob(file).getID();
+    }
+}
@@ -0,0 +1,35 @@
+package gitfly;
+
+import java.util.List;
+
+/**
+ * What one gitfly command cost, as measured by {@link GitflyRunner} and {@link MeasuredMain}.
+ */
+class CommandStats {
+    /** The command name followed by its arguments. */
+    final List<String> args;
+    /** Step of the scale test the command ran in, such as "generate" or "measure". */
+    final String phase;
+    /** Time from starting the process to its exit, JVM startup included. */
+    final long wallNanos;
+    /** Time spent in the command's main method and shutdown. */
+    final long commandNanos;
+    final long allocatedBytes;
+    /** Peak resident set size of the process, or -1 if unknown. */
+    final long peakRssBytes;
+    final int exitCode;
+
+    CommandStats(List<String> args, String phase, long wallNanos, long commandNanos, long allocatedBytes, long peakRssBytes, int exitCode) {
+        this.args = args;
+        this.phase = phase;
+        this.wallNanos = wallNanos;
+        this.commandNanos = commandNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.peakRssBytes = peakRssBytes;
+        this.exitCode = exitCode;
+    }
+
+    String getCommand() {
+        return args.get(0);
+    }
+}
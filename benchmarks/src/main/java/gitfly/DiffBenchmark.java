@@ -0,0 +1,75 @@
+package gitfly;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Repository#diff} between two commits, as used by checkout, and between three commits, as used by merge.
+ * The giver and the receiver both branch off the base commit and change different files, spread over the tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DiffBenchmark {
+    @Param({"1000", "10000"})
+    int files;
+
+    /** Number of files changed on each side. */
+    @Param({"1", "100"})
+    int changed;
+
+    private ObjectId base;
+    private ObjectId giver;
+    private ObjectId receiver;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkRepository.create();
+        List<String> paths = BenchmarkRepository.paths(files);
+        BenchmarkRepository.writeFiles(paths, 256, 1);
+        base = BenchmarkRepository.commit(paths, "base");
+        List<String> giverPaths = new ArrayList<>();
+        List<String> receiverPaths = new ArrayList<>();
+        for (int i = 0; i < changed; i++) {
+            int index = (int) ((long) i * files / changed);
+            giverPaths.add(paths.get(index));
+            receiverPaths.add(paths.get((index + files / 2) % files));
+        }
+        giver = BenchmarkRepository.commitSynthetic(base, giverPaths, 2, "giver");
+        receiver = BenchmarkRepository.commitSynthetic(base, receiverPaths, 3, "receiver");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkRepository.delete();
+    }
+
+    @Benchmark
+    public HashMap<String, Repository.FileStatus> twoWay() {
+        return Repository.diff(giver, receiver, null);
+    }
+
+    @Benchmark
+    public HashMap<String, Repository.FileStatus> threeWay() {
+        return Repository.diff(giver, receiver, base);
+    }
+}
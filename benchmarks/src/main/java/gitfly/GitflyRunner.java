@@ -0,0 +1,119 @@
+package gitfly;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs gitfly commands in a repository, each in a new JVM as a user would, through {@link MeasuredMain}.
+ * The daemon is disabled, so that every command pays for its own work. Every command's {@link CommandStats} are kept.
+ */
+class GitflyRunner {
+    /** Bytes of a command's output kept to report a failure. */
+    private static final int MAX_OUTPUT = 4096;
+
+    private final File repository;
+    private final String classpath;
+    private final List<String> javaOptions;
+    private final List<CommandStats> stats = new ArrayList<>();
+    private String phase = "";
+
+    /**
+     * @param repository directory the commands run in
+     * @param classpath classpath holding gitfly and MeasuredMain
+     * @param javaOptions options of the JVMs that run the commands
+     */
+    GitflyRunner(File repository, String classpath, List<String> javaOptions) {
+        this.repository = repository;
+        this.classpath = classpath;
+        this.javaOptions = javaOptions;
+    }
+
+    /**
+     * Sets the phase recorded with the next commands.
+     */
+    void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Runs a command and waits for it to exit.
+     * @param args the command name followed by its arguments
+     * @throws IllegalStateException if the process fails
+     */
+    CommandStats run(List<String> args) throws IOException, InterruptedException {
+        Path statsFile = Files.createTempFile("gitfly-stats", ".properties");
+        try {
+            List<String> commandLine = new ArrayList<>();
+            commandLine.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            commandLine.addAll(javaOptions);
+            commandLine.add("-D" + MeasuredMain.STATS_PROPERTY + "=" + statsFile);
+            commandLine.addAll(List.of("-cp", classpath, MeasuredMain.class.getName()));
+            commandLine.addAll(args);
+            ProcessBuilder builder = new ProcessBuilder(commandLine).directory(repository).redirectErrorStream(true);
+            builder.environment().put("GITFLY_NO_DAEMON", "1");
+
+            long start = System.nanoTime();
+            Process process = builder.start();
+            String output = readTail(process.getInputStream());
+            int exitCode = process.waitFor();
+            long wallNanos = System.nanoTime() - start;
+
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(statsFile)) {
+                properties.load(reader);
+            }
+            if (exitCode != 0 || properties.isEmpty()) {
+                throw new IllegalStateException("gitfly " + String.join(" ", args) + " failed with exit code " + exitCode + ":\n" + output);
+            }
+            CommandStats result = new CommandStats(List.copyOf(args), phase, wallNanos,
+                    Long.parseLong(properties.getProperty("commandNanos")),
+                    Long.parseLong(properties.getProperty("allocatedBytes")),
+                    Long.parseLong(properties.getProperty("peakRssBytes")), exitCode);
+            stats.add(result);
+            return result;
+        } finally {
+            Files.deleteIfExists(statsFile);
+        }
+    }
+
+    /**
+     * Returns the directory the commands run in.
+     */
+    File getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the stats of every command run so far, in order.
+     */
+    List<CommandStats> getStats() {
+        return stats;
+    }
+
+    /**
+     * Reads a process's output to the end, and returns its last MAX_OUTPUT bytes.
+     */
+    private static String readTail(InputStream in) throws IOException {
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            tail.write(buffer, 0, n);
+            if (tail.size() > 2 * MAX_OUTPUT) {
+                byte[] bytes = tail.toByteArray();
+                tail.reset();
+                tail.write(bytes, bytes.length - MAX_OUTPUT, MAX_OUTPUT);
+            }
+        }
+        return tail.toString(StandardCharsets.UTF_8);
+    }
+}
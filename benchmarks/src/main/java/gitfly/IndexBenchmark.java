@@ -0,0 +1,59 @@
+package gitfly;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Stage#readIndex()} and {@link Stage#writeIndex()} on indexes of a few sizes.
+ * Every entry carries stat data, as after a checkout. readIndex decodes the memory-mapped index file, which stays
+ * mapped between calls as it does between the commands of a daemon.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IndexBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int entries;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkRepository.create();
+        long now = System.currentTimeMillis() * 1_000_000;
+        BenchmarkRepository.syntheticIDs(BenchmarkRepository.paths(entries), 1).forEach((path, id) ->
+                Stage.addToIndex(path, 0, id, new FileStat(now, now, 4096, path.hashCode())));
+        Stage.writeIndex();
+        Stage.readIndex();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkRepository.delete();
+    }
+
+    @Benchmark
+    public int readIndex() {
+        Stage.readIndex();
+        return Stage.getIndexSize();
+    }
+
+    @Benchmark
+    public void writeIndex() {
+        Stage.writeIndex();
+    }
+}
@@ -0,0 +1,63 @@
+package gitfly;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Repository#getLCA} of the tips of two branches that forked the given number of commits ago.
+ * Every commit is in the commit-graph, as after the commits were made with gitfly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LcaBenchmark {
+    /** Number of commits on each branch since the fork. */
+    @Param({"10", "1000", "10000"})
+    int distance;
+
+    private ObjectId tip1;
+    private ObjectId tip2;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkRepository.create();
+        ObjectId fork = Repository.getCurrentCommitID();
+        ObjectId tree = Commit.getSnapshotID(fork);
+        tip1 = fork;
+        tip2 = fork;
+        for (int i = 0; i < distance; i++) {
+            ObjectId parent1 = tip1;
+            ObjectId parent2 = tip2;
+            String message = Integer.toString(i);
+            tip1 = BenchmarkRepository.quietly(() -> new Commit("left " + message, tree, parent1).getCommitID());
+            tip2 = BenchmarkRepository.quietly(() -> new Commit("right " + message, tree, parent2).getCommitID());
+        }
+        CommitGraph.update(tip1, tip2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkRepository.delete();
+    }
+
+    @Benchmark
+    public ObjectId getLCA() {
+        return Repository.getLCA(tip1, tip2);
+    }
+}
@@ -0,0 +1,70 @@
+package gitfly;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LineDiff} with both algorithms, and {@link LineMerge}, on source-like files of a few sizes.
+ * One line in ten is "}", the kind of frequent line the histogram algorithm avoids matching on;
+ * each version changes about one line in fifty of the base, and the two versions of the merge change different lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LineDiffBenchmark {
+    @Param({"100", "10000", "100000"})
+    int lines;
+
+    @Param({"myers", "histogram"})
+    String diffAlgorithm;
+
+    private LineDiff.Algorithm algorithm;
+    private byte[] base;
+    private byte[] ours;
+    private byte[] theirs;
+
+    @Setup
+    public void setup() {
+        algorithm = LineDiff.Algorithm.parse(diffAlgorithm);
+        Random random = new Random(lines);
+        StringBuilder base = new StringBuilder();
+        StringBuilder ours = new StringBuilder();
+        StringBuilder theirs = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String line = i % 10 == 0 ? "}\n" : "    statement(" + random.nextInt(1_000_000) + ");\n";
+            base.append(line);
+            int change = random.nextInt(100);
+            ours.append(change == 0 ? "    ours(" + i + ");\n" : line);
+            theirs.append(change == 1 ? "    theirs(" + i + ");\n" : change == 2 ? "" : line);
+        }
+        this.base = base.toString().getBytes();
+        this.ours = ours.toString().getBytes();
+        this.theirs = theirs.toString().getBytes();
+    }
+
+    @Benchmark
+    public List<LineDiff.Edit> diff() {
+        return LineDiff.diff(new LineDiff.Lines(base), new LineDiff.Lines(ours), algorithm);
+    }
+
+    @Benchmark
+    public LineMerge.Result merge() {
+        return LineMerge.merge(base, ours, theirs, "HEAD", "branch", algorithm);
+    }
+}
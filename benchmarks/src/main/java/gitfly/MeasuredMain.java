@@ -0,0 +1,138 @@
+package gitfly;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Runs one gitfly command like {@link Main}, and writes what it cost to the file named by the gitfly.stats property
+ * when the JVM exits. Started by {@link GitflyRunner}, one process per command.
+ *
+ * The file holds java.util.Properties:
+ *
+ *     commandNanos     time from entering main to the JVM shutting down
+ *     allocatedBytes   heap allocated by the command (see below)
+ *     peakRssBytes     peak resident set size of the process (VmHWM), or -1 where /proc is not available
+ *
+ * Java 17 has no process-wide allocation counter, and the per-thread counters are lost with the threads of the worker pools.
+ * Allocation is computed from the heap instead: the bytes freed by every collection plus the growth of the heap in use.
+ * Collections are reported asynchronously; the last collection of each collector is also read at exit,
+ * so only a collector running twice in the last moments of the command can be missed.
+ */
+public class MeasuredMain {
+    static final String STATS_PROPERTY = "gitfly.stats";
+
+    private static final Set<String> HEAP_POOLS = new HashSet<>();
+    /** Bytes freed by the collections counted so far. */
+    private static long freed;
+    /** Id of the last collection counted, by collector. */
+    private static final Map<String, Long> lastCounted = new HashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        String stats = System.getProperty(STATS_PROPERTY);
+        if (stats == null) {
+            Main.main(args);
+            return;
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                HEAP_POOLS.add(pool.getName());
+            }
+        }
+        long usedAtStart = heapUsed();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    count(info.getGcName(), info.getGcInfo());
+                }
+            }, null, null);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long commandNanos = System.nanoTime() - start;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof com.sun.management.GarbageCollectorMXBean extended) {
+                    count(collector.getName(), extended.getLastGcInfo());
+                }
+            }
+            long allocated;
+            synchronized (MeasuredMain.class) {
+                allocated = freed + heapUsed() - usedAtStart;
+            }
+            Properties properties = new Properties();
+            properties.setProperty("commandNanos", Long.toString(commandNanos));
+            properties.setProperty("allocatedBytes", Long.toString(allocated));
+            properties.setProperty("peakRssBytes", Long.toString(peakRss()));
+            try (BufferedWriter out = Files.newBufferedWriter(Path.of(stats))) {
+                properties.store(out, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+        Main.main(args);
+    }
+
+    /**
+     * Adds the bytes a collection freed, unless it was already counted.
+     */
+    private static synchronized void count(String collector, GcInfo info) {
+        if (info == null || info.getId() <= lastCounted.getOrDefault(collector, 0L)) {
+            return;
+        }
+        lastCounted.put(collector, info.getId());
+        freed += heapUsed(info.getMemoryUsageBeforeGc()) - heapUsed(info.getMemoryUsageAfterGc());
+    }
+
+    private static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long heapUsed(Map<String, MemoryUsage> usage) {
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : usage.entrySet()) {
+            if (HEAP_POOLS.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Reads the peak resident set size of this process from /proc/self/status.
+     */
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
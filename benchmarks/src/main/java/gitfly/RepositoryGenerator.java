@@ -0,0 +1,227 @@
+package gitfly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a repository with synthetic files and history by running the real gitfly commands
+ * (init, add, commit, branch, checkout) through a {@link GitflyRunner}. Only the file contents are written directly.
+ *
+ *     java -cp benchmarks/target/benchmarks.jar gitfly.RepositoryGenerator --dir DIR [options]
+ *
+ * Options, with their defaults:
+ *
+ *     --files 1000          number of files
+ *     --depth 3             number of directory levels above the files
+ *     --size-median 4096    file sizes follow a log-normal distribution with this median (bytes)
+ *     --size-sigma 1.0      ... and this standard deviation of the logarithm
+ *     --size-max 1048576    ... capped at this size
+ *     --commits 10          number of commits made after the initial one
+ *     --branches 2          number of branches besides master, named branch-1, branch-2, ...
+ *     --churn 10            number of files changed by each commit
+ *     --seed 1              seed of the file contents and of the choice of changed files
+ *
+ * Files are laid out FILES_PER_DIRECTORY to a directory, in a tree of the given depth. Commits go round-robin to master
+ * and the branches. Each branch only changes its own share of the files, so merging branches rarely conflicts.
+ */
+class RepositoryGenerator {
+    static final int FILES_PER_DIRECTORY = 20;
+    /** Maximum number of paths given to one add command, to stay far below the limits on command lines. */
+    private static final int ADD_BATCH = 1000;
+
+    int files = 1000;
+    int depth = 3;
+    int sizeMedian = 4096;
+    double sizeSigma = 1.0;
+    int sizeMax = 1 << 20;
+    int commits = 10;
+    int branches = 2;
+    int churn = 10;
+    long seed = 1;
+
+    private Random random;
+
+    /**
+     * Sets an option from the command line.
+     * @param name name of the option, with its leading dashes
+     * @return false if the option is not an option of the generator
+     * @throws NumberFormatException if the value is not a number
+     */
+    boolean setOption(String name, String value) {
+        switch (name) {
+            case "--files" -> files = Integer.parseInt(value);
+            case "--depth" -> depth = Integer.parseInt(value);
+            case "--size-median" -> sizeMedian = Integer.parseInt(value);
+            case "--size-sigma" -> sizeSigma = Double.parseDouble(value);
+            case "--size-max" -> sizeMax = Integer.parseInt(value);
+            case "--commits" -> commits = Integer.parseInt(value);
+            case "--branches" -> branches = Integer.parseInt(value);
+            case "--churn" -> churn = Integer.parseInt(value);
+            case "--seed" -> seed = Long.parseLong(value);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a generator with the same options.
+     */
+    RepositoryGenerator copy() {
+        RepositoryGenerator copy = new RepositoryGenerator();
+        copy.files = files;
+        copy.depth = depth;
+        copy.sizeMedian = sizeMedian;
+        copy.sizeSigma = sizeSigma;
+        copy.sizeMax = sizeMax;
+        copy.commits = commits;
+        copy.branches = branches;
+        copy.churn = churn;
+        copy.seed = seed;
+        return copy;
+    }
+
+    /**
+     * Creates the repository in the runner's directory, which must be empty, and leaves master checked out.
+     */
+    void generate(GitflyRunner runner) throws IOException, InterruptedException {
+        random = new Random(seed);
+        runner.run(List.of("init"));
+        List<String> paths = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            paths.add(path(i));
+        }
+        writeFiles(runner.getRepository(), paths);
+        add(runner, paths);
+        runner.run(List.of("commit", "initial"));
+        for (int branch = 1; branch <= branches; branch++) {
+            runner.run(List.of("branch", branchName(branch)));
+        }
+        String current = branchName(0);
+        for (int i = 0; i < commits; i++) {
+            int branch = i % (branches + 1);
+            if (!branchName(branch).equals(current)) {
+                current = branchName(branch);
+                runner.run(List.of("checkout", current));
+            }
+            commitChanges(runner, branch, "commit " + i);
+        }
+        if (!current.equals(branchName(0))) {
+            runner.run(List.of("checkout", branchName(0)));
+        }
+    }
+
+    /**
+     * Rewrites churn of the files owned by a branch, which must be checked out, then adds and commits them.
+     * @param branch 0 for master, or the number of the branch
+     */
+    void commitChanges(GitflyRunner runner, int branch, String message) throws IOException, InterruptedException {
+        int owned = (files - branch + branches) / (branches + 1);
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < Math.min(churn, owned); i++) {
+            changed.add(path(random.nextInt(owned) * (branches + 1) + branch));
+        }
+        writeFiles(runner.getRepository(), changed);
+        add(runner, changed.stream().distinct().toList());
+        runner.run(List.of("commit", message));
+    }
+
+    /**
+     * Returns master for 0, or the name of the given branch.
+     */
+    static String branchName(int branch) {
+        return branch == 0 ? "master" : "branch-" + branch;
+    }
+
+    /**
+     * Returns the path of the i-th file: directories d0, d1, ... nested depth levels deep, with the smallest fan-out
+     * that leaves at most FILES_PER_DIRECTORY files in each directory.
+     */
+    String path(int i) {
+        int directories = (files + FILES_PER_DIRECTORY - 1) / FILES_PER_DIRECTORY;
+        int fanOut = 1;
+        while (depth > 0 && Math.pow(fanOut, depth) < directories) {
+            fanOut++;
+        }
+        int directory = i / FILES_PER_DIRECTORY;
+        StringBuilder path = new StringBuilder();
+        for (int level = depth - 1; level >= 0; level--) {
+            path.append('d').append((int) (directory / Math.pow(fanOut, level)) % fanOut).append('/');
+        }
+        return path.append('f').append(i).append(".txt").toString();
+    }
+
+    private void add(GitflyRunner runner, List<String> paths) throws IOException, InterruptedException {
+        for (int i = 0; i < paths.size(); i += ADD_BATCH) {
+            List<String> args = new ArrayList<>();
+            args.add("add");
+            args.addAll(paths.subList(i, Math.min(paths.size(), i + ADD_BATCH)));
+            runner.run(args);
+        }
+    }
+
+    private void writeFiles(File root, List<String> paths) throws IOException {
+        for (String path : paths) {
+            File file = Utils.join(root, path);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), text(nextSize()));
+        }
+    }
+
+    private int nextSize() {
+        double size = sizeMedian * Math.exp(sizeSigma * random.nextGaussian());
+        return (int) Math.max(1, Math.min(sizeMax, Math.round(size)));
+    }
+
+    /**
+     * Returns random lines of lowercase letters, so that the files look like text to line-based tools.
+     */
+    private byte[] text(int size) {
+        byte[] text = new byte[size];
+        for (int i = 0; i < size; i++) {
+            text[i] = i % 64 == 63 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return text;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RepositoryGenerator generator = new RepositoryGenerator();
+        File directory = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            } else if (args[i].equals("--dir")) {
+                directory = new File(args[i + 1]).getAbsoluteFile();
+            } else if (!generator.setOption(args[i], args[i + 1])) {
+                usage();
+            }
+        }
+        if (directory == null) {
+            usage();
+            return;
+        }
+        String[] existing = directory.list();
+        if (existing != null && existing.length > 0) {
+            System.err.println(directory + " is not empty.");
+            System.exit(1);
+        }
+        directory.mkdirs();
+        GitflyRunner runner = new GitflyRunner(directory, System.getProperty("java.class.path"), List.of());
+        long start = System.nanoTime();
+        generator.generate(runner);
+        System.out.printf("Generated %s with %d files and %d commits on %d branches in %d gitfly commands, %.1f s.%n",
+                directory, generator.files, generator.commits + 1, generator.branches + 1, runner.getStats().size(),
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -cp benchmarks.jar gitfly.RepositoryGenerator --dir DIR [--files N] [--depth N]"
+                + " [--size-median BYTES] [--size-sigma S] [--size-max BYTES] [--commits N] [--branches N] [--churn N] [--seed N]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,364 @@
+package gitfly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end scale test: for every scale point, generates a repository with {@link RepositoryGenerator}, then runs
+ * the everyday commands against it, each in a JVM of its own. Every command is measured by {@link MeasuredMain}:
+ * wall time (JVM startup included), time in the command, heap allocated and peak RSS.
+ *
+ *     java -cp benchmarks/target/benchmarks.jar gitfly.ScaleTest [--files 1000,10000] [--commits 10,100]
+ *             [--runs 3] [--out scale-report.json] [--keep] [--java-opt OPTION]... [generator options]
+ *
+ * The scale points are every combination of --files (tree size) and --commits (history depth); the other
+ * {@link RepositoryGenerator} options apply to all of them. Each point runs two phases:
+ *
+ *     generate   init, add, commit, branch and checkout, as run by the generator; shows how building the history
+ *                costs more as it grows
+ *     measure    status, log, diff and a checkout back and forth (each --runs times), then one add and commit on master
+ *                and a merge of branch-1, on the complete repository
+ *
+ * The report is JSON: the environment, the options and, for each point, a summary of every command in each phase
+ * (count, median, p90 and max) followed by every single run. A table of the measure phase is printed as well.
+ * Repositories are deleted after their point unless --keep is given.
+ */
+public class ScaleTest {
+    private static final String GENERATE = "generate";
+    private static final String MEASURE = "measure";
+
+    public static void main(String[] args) throws Exception {
+        RepositoryGenerator generator = new RepositoryGenerator();
+        List<Integer> fileCounts = List.of(1000, 10000);
+        List<Integer> commitCounts = List.of(10, 100);
+        int runs = 3;
+        File out = new File("scale-report.json");
+        boolean keep = false;
+        List<String> javaOptions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--keep" -> {
+                    keep = true;
+                    continue;
+                }
+                case "--files" -> fileCounts = parseList(value);
+                case "--commits" -> commitCounts = parseList(value);
+                case "--runs" -> runs = Integer.parseInt(value);
+                case "--out" -> out = new File(value);
+                case "--java-opt" -> javaOptions.add(value);
+                default -> {
+                    if (value == null || !generator.setOption(args[i], value)) {
+                        usage();
+                    }
+                }
+            }
+            i++;
+        }
+
+        Json report = new Json();
+        report.beginObject();
+        report.name("java").value(System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        report.name("os").value(System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        report.name("processors").value(Runtime.getRuntime().availableProcessors());
+        report.name("options").beginObject();
+        report.name("depth").value(generator.depth);
+        report.name("sizeMedian").value(generator.sizeMedian);
+        report.name("sizeSigma").value(generator.sizeSigma);
+        report.name("sizeMax").value(generator.sizeMax);
+        report.name("branches").value(generator.branches);
+        report.name("churn").value(generator.churn);
+        report.name("seed").value(generator.seed);
+        report.name("runs").value(runs);
+        report.name("javaOptions").beginArray();
+        for (String option : javaOptions) {
+            report.value(option);
+        }
+        report.endArray();
+        report.endObject();
+        report.name("points").beginArray();
+
+        System.out.printf("%8s %8s  %-10s %5s %12s %12s %12s %12s%n",
+                "files", "commits", "command", "runs", "wall ms", "command ms", "alloc MB", "peak RSS MB");
+        for (int files : fileCounts) {
+            for (int commits : commitCounts) {
+                RepositoryGenerator point = generator.copy();
+                point.files = files;
+                point.commits = commits;
+                Path repository = Files.createTempDirectory("gitfly-scale");
+                try {
+                    runPoint(point, repository.toFile(), runs, javaOptions, report);
+                } finally {
+                    if (keep) {
+                        System.out.println("Kept " + repository);
+                    } else {
+                        deleteRecursively(repository.toFile());
+                    }
+                }
+            }
+        }
+        report.endArray();
+        report.endObject();
+        Files.writeString(out.toPath(), report.toString() + "\n");
+        System.out.println("Wrote " + out.getPath());
+    }
+
+    private static void runPoint(RepositoryGenerator generator, File repository, int runs, List<String> javaOptions, Json report)
+            throws IOException, InterruptedException {
+        GitflyRunner runner = new GitflyRunner(repository, System.getProperty("java.class.path"), javaOptions);
+        runner.setPhase(GENERATE);
+        long start = System.nanoTime();
+        generator.generate(runner);
+        long generateNanos = System.nanoTime() - start;
+
+        runner.setPhase(MEASURE);
+        String branch = RepositoryGenerator.branchName(1);
+        for (int i = 0; i < runs; i++) {
+            runner.run(List.of("status"));
+            runner.run(List.of("log"));
+            if (generator.branches > 0) {
+                runner.run(List.of("diff", "master", branch, "--name-status"));
+                runner.run(List.of("checkout", branch));
+                runner.run(List.of("checkout", "master"));
+            }
+        }
+        generator.commitChanges(runner, 0, "measured commit");
+        if (generator.branches > 0) {
+            runner.run(List.of("merge", branch));
+        }
+
+        report.beginObject();
+        report.name("files").value(generator.files);
+        report.name("commits").value(generator.commits + 1);
+        report.name("gitflyBytes").value(directorySize(new File(repository, ".gitfly").toPath()));
+        report.name("generateSeconds").value(generateNanos / 1e9);
+        report.name("summary").beginObject();
+        for (String phase : List.of(GENERATE, MEASURE)) {
+            report.name(phase).beginObject();
+            for (Map.Entry<String, List<CommandStats>> command : byCommand(runner.getStats(), phase).entrySet()) {
+                List<CommandStats> stats = command.getValue();
+                report.name(command.getKey()).beginObject();
+                report.name("runs").value(stats.size());
+                summarize(report, "wallMs", stats.stream().mapToDouble(s -> s.wallNanos / 1e6).toArray());
+                summarize(report, "commandMs", stats.stream().mapToDouble(s -> s.commandNanos / 1e6).toArray());
+                summarize(report, "allocatedMB", stats.stream().mapToDouble(s -> s.allocatedBytes / 1048576.0).toArray());
+                summarize(report, "peakRssMB", stats.stream().mapToDouble(s -> s.peakRssBytes / 1048576.0).toArray());
+                report.endObject();
+                if (phase.equals(MEASURE)) {
+                    System.out.printf("%8d %8d  %-10s %5d %12.1f %12.1f %12.1f %12.1f%n", generator.files, generator.commits + 1,
+                            command.getKey(), stats.size(),
+                            median(stats.stream().mapToDouble(s -> s.wallNanos / 1e6).toArray()),
+                            median(stats.stream().mapToDouble(s -> s.commandNanos / 1e6).toArray()),
+                            median(stats.stream().mapToDouble(s -> s.allocatedBytes / 1048576.0).toArray()),
+                            stats.stream().mapToDouble(s -> s.peakRssBytes / 1048576.0).max().orElse(0));
+                }
+            }
+            report.endObject();
+        }
+        report.endObject();
+        report.name("runs").beginArray();
+        for (CommandStats stats : runner.getStats()) {
+            report.beginObject();
+            report.name("phase").value(stats.phase);
+            report.name("command").value(stats.getCommand());
+            // add commands carry up to a thousand paths: keep the first few
+            report.name("args").value(String.join(" ", stats.args.subList(1, Math.min(stats.args.size(), 6)))
+                    + (stats.args.size() > 6 ? " ... (" + (stats.args.size() - 1) + " arguments)" : ""));
+            report.name("wallMs").value(stats.wallNanos / 1e6);
+            report.name("commandMs").value(stats.commandNanos / 1e6);
+            report.name("allocatedBytes").value(stats.allocatedBytes);
+            report.name("peakRssBytes").value(stats.peakRssBytes);
+            report.endObject();
+        }
+        report.endArray();
+        report.endObject();
+    }
+
+    /**
+     * Groups the stats of one phase by command name, in the order the commands first ran.
+     */
+    private static Map<String, List<CommandStats>> byCommand(List<CommandStats> stats, String phase) {
+        Map<String, List<CommandStats>> byCommand = new LinkedHashMap<>();
+        for (CommandStats command : stats) {
+            if (command.phase.equals(phase)) {
+                byCommand.computeIfAbsent(command.getCommand(), name -> new ArrayList<>()).add(command);
+            }
+        }
+        return byCommand;
+    }
+
+    private static void summarize(Json report, String name, double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        report.name(name).beginObject();
+        report.name("median").value(median(sorted));
+        report.name("p90").value(sorted[(int) Math.ceil(sorted.length * 0.9) - 1]);
+        report.name("max").value(sorted[sorted.length - 1]);
+        report.endObject();
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static List<Integer> parseList(String value) {
+        if (value == null) {
+            usage();
+        }
+        List<Integer> list = new ArrayList<>();
+        for (String item : value.split(",")) {
+            list.add(Integer.parseInt(item.trim()));
+        }
+        return list;
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -cp benchmarks.jar gitfly.ScaleTest [--files N,N...] [--commits N,N...] [--runs N]"
+                + " [--out FILE] [--keep] [--java-opt OPTION]... [generator options, see RepositoryGenerator]");
+        System.exit(2);
+    }
+
+    /**
+     * Writes JSON to a string, with one member or element per line.
+     */
+    private static class Json {
+        private final StringBuilder out = new StringBuilder();
+        private int indent;
+        /** Whether the current object or array has no member yet. */
+        private boolean first = true;
+        /** Whether a member name was just written. */
+        private boolean named;
+
+        Json name(String name) {
+            separate();
+            string(name);
+            out.append(": ");
+            named = true;
+            return this;
+        }
+
+        Json beginObject() {
+            return begin('{');
+        }
+
+        Json endObject() {
+            return end('}');
+        }
+
+        Json beginArray() {
+            return begin('[');
+        }
+
+        Json endArray() {
+            return end(']');
+        }
+
+        Json value(String value) {
+            separate();
+            string(value);
+            return this;
+        }
+
+        Json value(long value) {
+            separate();
+            out.append(value);
+            return this;
+        }
+
+        Json value(double value) {
+            separate();
+            out.append(Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null");
+            return this;
+        }
+
+        private Json begin(char bracket) {
+            separate();
+            out.append(bracket);
+            indent++;
+            first = true;
+            return this;
+        }
+
+        private Json end(char bracket) {
+            indent--;
+            if (!first) {
+                newLine();
+            }
+            out.append(bracket);
+            first = false;
+            return this;
+        }
+
+        /**
+         * Starts a new member or element, unless a name was just written for it.
+         */
+        private void separate() {
+            if (named) {
+                named = false;
+                return;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            if (indent > 0) {
+                newLine();
+            }
+            first = false;
+        }
+
+        private void newLine() {
+            out.append('\n').append("  ".repeat(indent));
+        }
+
+        private void string(String value) {
+            out.append('"');
+            for (char c : value.toCharArray()) {
+                switch (c) {
+                    case '"' -> out.append("\\\"");
+                    case '\\' -> out.append("\\\\");
+                    case '\n' -> out.append("\\n");
+                    default -> {
+                        if (c < 0x20) {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                    }
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package gitfly;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a commit's tree into a flat map ({@link Repository#getTreeContents}) and building the tree of a new commit
+ * from a set of changed files ({@link Repository#buildUpdatedTree}).
+ * Trees are read through the {@link ObjectCache}, which is warm after the first call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TreeBenchmark {
+    @Param({"1000", "10000"})
+    int files;
+
+    /** Number of files changed by the commit built by buildUpdatedTree. */
+    @Param({"1", "100"})
+    int changed;
+
+    private ObjectId treeID;
+    private HashMap<String, ObjectId> toAdd;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkRepository.create();
+        List<String> paths = BenchmarkRepository.paths(files);
+        BenchmarkRepository.writeFiles(paths, 256, 1);
+        treeID = Commit.getSnapshotID(BenchmarkRepository.commit(paths, "base"));
+        // spread the changes over the tree, so that as many directories as possible are rewritten
+        List<String> changedPaths = new ArrayList<>();
+        for (int i = 0; i < changed; i++) {
+            changedPaths.add(paths.get((int) ((long) i * files / changed)));
+        }
+        toAdd = BenchmarkRepository.syntheticIDs(changedPaths, 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkRepository.delete();
+    }
+
+    @Benchmark
+    public HashMap<String, ObjectId> getTreeContents() {
+        return Repository.getTreeContents("", treeID);
+    }
+
+    @Benchmark
+    public ObjectId buildUpdatedTree() {
+        // buildUpdatedTree consumes its arguments
+        return Repository.buildUpdatedTree(Repository.CWD, treeID, new HashMap<>(toAdd), new HashSet<>());
+    }
+}
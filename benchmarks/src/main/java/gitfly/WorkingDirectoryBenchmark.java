@@ -0,0 +1,59 @@
+package gitfly;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning the working directory ({@link Repository#getWorkingDirectoryContents}) and comparing it with the index,
+ * as status does ({@link Repository#diff} with null arguments).
+ * Every file is committed and unchanged, so the scan only stats files; the first call records their stat data in the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WorkingDirectoryBenchmark {
+    @Param({"1000", "10000"})
+    int files;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkRepository.create();
+        List<String> paths = BenchmarkRepository.paths(files);
+        BenchmarkRepository.writeFiles(paths, 256, 1);
+        BenchmarkRepository.commit(paths, "base");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkRepository.delete();
+    }
+
+    @Benchmark
+    public Map<String, ObjectId> getWorkingDirectoryContents() {
+        return Repository.getWorkingDirectoryContents();
+    }
+
+    @Benchmark
+    public HashMap<String, Repository.FileStatus> diffWithIndex() {
+        return Repository.diff(null, null, null);
+    }
+}
@@ -0,0 +1,142 @@
+package gitfly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks {@link LineDiff} against a longest common subsequence computed by dynamic programming:
+ * the edits of both algorithms must turn the old sequence into the new one, and Myers' must be a shortest edit script.
+ */
+class LineDiffTest {
+    private static final int RANDOM_CASES = 20_000;
+
+    @ParameterizedTest
+    @EnumSource(LineDiff.Algorithm.class)
+    void identicalSequencesHaveNoEdits(LineDiff.Algorithm algorithm) {
+        assertTrue(LineDiff.diff(new int[]{1, 2, 3}, new int[]{1, 2, 3}, algorithm).isEmpty());
+        assertTrue(LineDiff.diff(new int[0], new int[0], algorithm).isEmpty());
+    }
+
+    @ParameterizedTest
+    @EnumSource(LineDiff.Algorithm.class)
+    void emptySideIsOneEdit(LineDiff.Algorithm algorithm) {
+        List<LineDiff.Edit> added = LineDiff.diff(new int[0], new int[]{1, 2}, algorithm);
+        assertEquals("[Edit[0-0,0-2]]", added.toString());
+        List<LineDiff.Edit> removed = LineDiff.diff(new int[]{1, 2}, new int[0], algorithm);
+        assertEquals("[Edit[0-2,0-0]]", removed.toString());
+    }
+
+    @Test
+    void linesWithoutFinalNewlineDiffer() {
+        LineDiff.Lines a = new LineDiff.Lines("a\nb".getBytes());
+        LineDiff.Lines b = new LineDiff.Lines("a\nb\n".getBytes());
+        assertEquals("[Edit[1-2,1-2]]", LineDiff.diff(a, b, LineDiff.Algorithm.MYERS).toString());
+    }
+
+    @ParameterizedTest
+    @EnumSource(LineDiff.Algorithm.class)
+    void randomDiffsAreValid(LineDiff.Algorithm algorithm) {
+        Random random = new Random(1);
+        for (int n = 0; n < RANDOM_CASES; n++) {
+            int[] a = randomSequence(random);
+            int[] b = random.nextBoolean() ? randomSequence(random) : mutate(a, random);
+            List<LineDiff.Edit> edits = LineDiff.diff(a, b, algorithm);
+            assertValid(a, b, edits);
+        }
+    }
+
+    @Test
+    void myersIsMinimal() {
+        Random random = new Random(2);
+        for (int n = 0; n < RANDOM_CASES; n++) {
+            int[] a = randomSequence(random);
+            int[] b = random.nextBoolean() ? randomSequence(random) : mutate(a, random);
+            List<LineDiff.Edit> edits = LineDiff.diff(a, b, LineDiff.Algorithm.MYERS);
+            int cost = 0;
+            for (LineDiff.Edit edit : edits) {
+                cost += (edit.endA - edit.beginA) + (edit.endB - edit.beginB);
+            }
+            assertEquals(a.length + b.length - 2 * lcs(a, b), cost, () -> describe(a, b, edits));
+        }
+    }
+
+    /**
+     * Checks that the edits are sorted, don't touch, and turn a into b.
+     */
+    private static void assertValid(int[] a, int[] b, List<LineDiff.Edit> edits) {
+        List<Integer> result = new ArrayList<>();
+        int position = 0;
+        for (int e = 0; e < edits.size(); e++) {
+            LineDiff.Edit edit = edits.get(e);
+            assertTrue(edit.beginA < edit.endA || edit.beginB < edit.endB, () -> "empty edit: " + describe(a, b, edits));
+            if (e > 0) {
+                LineDiff.Edit previous = edits.get(e - 1);
+                assertTrue(edit.beginA > previous.endA && edit.beginB > previous.endB,
+                        () -> "unsorted or touching edits: " + describe(a, b, edits));
+            }
+            for (int i = position; i < edit.beginA; i++) {
+                result.add(a[i]);
+            }
+            assertEquals(edit.beginB, result.size(), () -> "misaligned edit: " + describe(a, b, edits));
+            for (int i = edit.beginB; i < edit.endB; i++) {
+                result.add(b[i]);
+            }
+            position = edit.endA;
+        }
+        for (int i = position; i < a.length; i++) {
+            result.add(a[i]);
+        }
+        assertArrayEquals(b, result.stream().mapToInt(Integer::intValue).toArray(), () -> describe(a, b, edits));
+    }
+
+    private static int lcs(int[] a, int[] b) {
+        int[][] table = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--) {
+            for (int j = b.length - 1; j >= 0; j--) {
+                table[i][j] = a[i] == b[j] ? table[i + 1][j + 1] + 1 : Math.max(table[i + 1][j], table[i][j + 1]);
+            }
+        }
+        return table[0][0];
+    }
+
+    /**
+     * Returns a short sequence over a small alphabet, so that lines repeat and match in many ways.
+     */
+    private static int[] randomSequence(Random random) {
+        int[] sequence = new int[random.nextInt(13)];
+        for (int i = 0; i < sequence.length; i++) {
+            sequence[i] = random.nextInt(4);
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns a copy of a with a few lines replaced, removed or inserted, the way versions of a file usually differ.
+     */
+    private static int[] mutate(int[] a, Random random) {
+        List<Integer> lines = new ArrayList<>();
+        for (int line : a) {
+            int change = random.nextInt(6);
+            if (change == 0) {
+                continue;
+            }
+            if (change == 1) {
+                lines.add(random.nextInt(4));
+            }
+            lines.add(change == 2 ? random.nextInt(4) : line);
+        }
+        return lines.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static String describe(int[] a, int[] b, List<LineDiff.Edit> edits) {
+        return Arrays.toString(a) + " -> " + Arrays.toString(b) + ": " + edits;
+    }
+}
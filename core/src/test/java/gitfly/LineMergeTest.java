@@ -0,0 +1,161 @@
+package gitfly;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the chunk rules of {@link LineMerge} on small files, and the merges whose result doesn't depend on the diffs
+ * on many random ones.
+ */
+class LineMergeTest {
+    private static final int RANDOM_CASES = 20_000;
+    private static final String[] LINES = {"a\n", "b\n", "c\n", "}\n"};
+
+    @ParameterizedTest
+    @EnumSource(LineDiff.Algorithm.class)
+    void oneSideUnchangedTakesTheOther(LineDiff.Algorithm algorithm) {
+        Random random = new Random(1);
+        for (int n = 0; n < RANDOM_CASES; n++) {
+            String base = randomText(random);
+            String changed = random.nextBoolean() ? randomText(random) : mutate(base, random);
+            assertClean(changed, merge(base, base, changed, algorithm));
+            assertClean(changed, merge(base, changed, base, algorithm));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(LineDiff.Algorithm.class)
+    void sameChangeOnBothSidesIsTakenOnce(LineDiff.Algorithm algorithm) {
+        Random random = new Random(2);
+        for (int n = 0; n < RANDOM_CASES; n++) {
+            String base = randomText(random);
+            String changed = mutate(base, random);
+            assertClean(changed, merge(base, changed, changed, algorithm));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(LineDiff.Algorithm.class)
+    void mergeIsSymmetric(LineDiff.Algorithm algorithm) {
+        Random random = new Random(3);
+        for (int n = 0; n < RANDOM_CASES; n++) {
+            String base = randomText(random);
+            String ours = mutate(base, random);
+            String theirs = mutate(base, random);
+            LineMerge.Result forward = merge(base, ours, theirs, algorithm);
+            LineMerge.Result backward = merge(base, theirs, ours, algorithm);
+            String message = "base " + quote(base) + ", ours " + quote(ours) + ", theirs " + quote(theirs);
+            assertEquals(forward.isClean(), backward.isClean(), message);
+            if (forward.isClean()) {
+                assertEquals(new String(forward.content), new String(backward.content), message);
+            }
+        }
+    }
+
+    @Test
+    void adjacentEditsDontConflict() {
+        assertClean("1\nA\nB\n4\n", merge("1\n2\n3\n4\n", "1\nA\n3\n4\n", "1\n2\nB\n4\n"));
+    }
+
+    @Test
+    void separateEditsAreBothTaken() {
+        assertClean("A\n2\n3\nB\n", merge("1\n2\n3\n4\n", "A\n2\n3\n4\n", "1\n2\n3\nB\n"));
+    }
+
+    @Test
+    void insertionsAtTheSameLineConflict() {
+        assertConflict("1\n<<<<<<< HEAD\nA\n||||||| base\n=======\nB\n>>>>>>> giver\n2\n",
+                merge("1\n2\n", "1\nA\n2\n", "1\nB\n2\n"));
+    }
+
+    @Test
+    void sameInsertionOnBothSidesDoesntConflict() {
+        assertClean("1\nA\n2\n", merge("1\n2\n", "1\nA\n2\n", "1\nA\n2\n"));
+    }
+
+    @Test
+    void insertionWhereTheOtherEditEndsConflicts() {
+        assertConflict("1\n<<<<<<< HEAD\nA\n||||||| base\n2\n=======\n2\nB\n>>>>>>> giver\n3\n",
+                merge("1\n2\n3\n", "1\nA\n3\n", "1\n2\nB\n3\n"));
+    }
+
+    @Test
+    void markersStartOnTheirOwnLineAfterAMissingFinalNewline() {
+        assertConflict("a\n<<<<<<< HEAD\nx\n||||||| base\nb\n=======\ny\n>>>>>>> giver\n", merge("a\nb", "a\nx", "a\ny"));
+    }
+
+    @Test
+    void finalNewlineAddedOnOneSideIsKept() {
+        assertClean("x\nb\n", merge("a\nb", "a\nb\n", "x\nb"));
+    }
+
+    private static LineMerge.Result merge(String base, String ours, String theirs) {
+        return merge(base, ours, theirs, LineDiff.Algorithm.HISTOGRAM);
+    }
+
+    private static LineMerge.Result merge(String base, String ours, String theirs, LineDiff.Algorithm algorithm) {
+        return LineMerge.merge(base.getBytes(), ours.getBytes(), theirs.getBytes(), "HEAD", "giver", algorithm);
+    }
+
+    private static void assertClean(String expected, LineMerge.Result result) {
+        assertEquals(expected, new String(result.content));
+        assertTrue(result.isClean());
+    }
+
+    private static void assertConflict(String expected, LineMerge.Result result) {
+        assertEquals(expected, new String(result.content));
+        assertEquals(1, result.conflicts);
+    }
+
+    /**
+     * Returns a few lines from a small set, so that lines repeat; the last line sometimes has no '\n'.
+     */
+    private static String randomText(Random random) {
+        StringBuilder text = new StringBuilder();
+        int lines = random.nextInt(9);
+        for (int i = 0; i < lines; i++) {
+            text.append(LINES[random.nextInt(LINES.length)]);
+        }
+        return unterminate(text, random);
+    }
+
+    /**
+     * Returns a copy of text with a few lines replaced, removed or inserted.
+     */
+    private static String mutate(String text, Random random) {
+        StringBuilder result = new StringBuilder();
+        for (String line : text.split("(?<=\n)")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int change = random.nextInt(6);
+            if (change == 0) {
+                continue;
+            }
+            if (change == 1) {
+                result.append(LINES[random.nextInt(LINES.length)]);
+            }
+            result.append(change == 2 ? LINES[random.nextInt(LINES.length)] : line);
+        }
+        if (random.nextInt(4) == 0) {
+            result.append(LINES[random.nextInt(LINES.length)]);
+        }
+        return unterminate(result, random);
+    }
+
+    private static String unterminate(StringBuilder text, Random random) {
+        if (text.length() > 0 && random.nextInt(5) == 0) {
+            text.setLength(text.length() - 1);
+        }
+        return text.toString();
+    }
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\n", "\\n") + "\"";
+    }
+}
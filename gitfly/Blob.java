@@ -1,31 +1,29 @@
 package gitfly;
 
-import java.io.Serializable;
 import java.io.File;
 
-import static gitfly.Utils.*;
-
-public class Blob implements Serializable {
-    private final byte[] dataBytes;
-    private final String id;
-    private final String stringData;
+/**
+ * A file of the working directory stored in the object store.
+ * The file is streamed into the store (see {@link ObjectStore#writeFile(File)}), so its contents are never held in memory.
+ */
+public class Blob {
+    private final ObjectId id;
     private final String relativePath;
 
+    /**
+     * Hashes a file and stores it as a blob, in a single pass over its contents.
+     * @param file file of the working directory
+     */
     public Blob(File file) {
         this.relativePath = file.getAbsolutePath().substring(Repository.CWD.getAbsolutePath().length() + 1);
-        this.dataBytes = readContents(file);
-        this.stringData = fileContentsToString(file);
-        this.id = getSHA1(dataBytes);
+        this.id = ObjectStore.writeFile(file);
     }
 
     public String getRelativePath() {
         return this.relativePath;
     }
 
-    public String getID() {
+    public ObjectId getID() {
         return id;
     }
-    public String getStringData() {
-        return stringData;
-    }
 }
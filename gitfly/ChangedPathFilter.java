@@ -0,0 +1,167 @@
+package gitfly;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bloom filter of the paths a commit changed compared to its parent, stored in the commit-graph (see {@link CommitGraph}).
+ * Every changed file is added together with all of its parent directories, so a filter answers both
+ * "did this commit touch src/foo.txt" and "did this commit touch anything under src".
+ * A filter can only answer "maybe" or "definitely not"; "maybe" has to be confirmed against the trees.
+ *
+ * Filters use BITS_PER_PATH bits per path and NUM_HASHES hash functions, derived from two murmur3 hashes
+ * by double hashing. Commits that changed more than MAX_CHANGED_PATHS paths get a filter with every bit set.
+ */
+class ChangedPathFilter {
+    private static final int BITS_PER_PATH = 10;
+    private static final int NUM_HASHES = 7;
+    static final int MAX_CHANGED_PATHS = 512;
+    private static final int SEED1 = 0x293ae76f;
+    private static final int SEED2 = 0x7e646e2c;
+    /** Filter of commits that changed too many paths: every query is a "maybe". */
+    private static final byte[] TOO_LARGE = {(byte) 0xff};
+
+    /**
+     * A path prepared for querying many filters: its hashes are computed once.
+     */
+    static class Query {
+        final String path;
+        private final int hash1;
+        private final int hash2;
+
+        Query(String path) {
+            this.path = path;
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+            this.hash1 = murmur3(SEED1, bytes);
+            this.hash2 = murmur3(SEED2, bytes);
+        }
+    }
+
+    /**
+     * Builds the filter of a commit.
+     * @param tree root tree of the commit
+     * @param parentTree root tree of its parent, or null for a commit without parent
+     */
+    static byte[] compute(ObjectId tree, ObjectId parentTree) {
+        Set<String> paths = new HashSet<>();
+        if (!addChangedPaths(tree, parentTree, paths)) {
+            return TOO_LARGE;
+        }
+        int bits = Math.max(8, paths.size() * BITS_PER_PATH);
+        byte[] filter = new byte[(bits + 7) / 8];
+        for (String path : paths) {
+            Query query = new Query(path);
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int bit = bitIndex(query, i, filter.length);
+                filter[bit >>> 3] |= (byte) (1 << (bit & 7));
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns whether the filter stored at the given position of a buffer may contain a path.
+     * @param buffer buffer holding the filter
+     * @param offset position of the filter in the buffer
+     * @param length length of the filter in bytes
+     * @param query path to look for
+     */
+    static boolean mightContain(ByteBuffer buffer, int offset, int length, Query query) {
+        if (length == 0) {
+            return true;
+        }
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = bitIndex(query, i, length);
+            if ((buffer.get(offset + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int bitIndex(Query query, int i, int filterLength) {
+        return Integer.remainderUnsigned(query.hash1 + i * query.hash2, filterLength * 8);
+    }
+
+    /**
+     * Adds the paths that differ between two trees to paths (see {@link TreeDiff}), together with their parent directories.
+     * @return false if more than MAX_CHANGED_PATHS paths changed
+     */
+    private static boolean addChangedPaths(ObjectId tree, ObjectId parentTree, Set<String> paths) {
+        try {
+            TreeDiff.walk((path, ids) -> {
+                for (String current = path; paths.add(current); ) {
+                    int slash = current.lastIndexOf('/');
+                    if (slash < 0) {
+                        break;
+                    }
+                    current = current.substring(0, slash);
+                }
+                if (paths.size() > MAX_CHANGED_PATHS) {
+                    throw TooManyPaths.INSTANCE;
+                }
+            }, tree, parentTree);
+            return true;
+        } catch (TooManyPaths e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops the tree diff as soon as the filter is known to be full.
+     */
+    @SuppressWarnings("serial")
+    private static class TooManyPaths extends RuntimeException {
+        static final TooManyPaths INSTANCE = new TooManyPaths();
+
+        private TooManyPaths() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * 32-bit murmur3 hash.
+     */
+    @SuppressWarnings("fallthrough")
+    private static int murmur3(int seed, byte[] data) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        int hash = seed;
+        int blocks = data.length / 4;
+        for (int i = 0; i < blocks; i++) {
+            int k = (data[4 * i] & 0xff) | (data[4 * i + 1] & 0xff) << 8
+                    | (data[4 * i + 2] & 0xff) << 16 | (data[4 * i + 3] & 0xff) << 24;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            hash ^= k;
+            hash = Integer.rotateLeft(hash, 13);
+            hash = hash * 5 + 0xe6546b64;
+        }
+        int k = 0;
+        int tail = blocks * 4;
+        switch (data.length & 3) {
+            case 3:
+                k ^= (data[tail + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                k ^= (data[tail + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                k ^= data[tail] & 0xff;
+                k *= c1;
+                k = Integer.rotateLeft(k, 15);
+                k *= c2;
+                hash ^= k;
+        }
+        hash ^= data.length;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
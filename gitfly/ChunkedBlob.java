@@ -0,0 +1,214 @@
+package gitfly;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A large blob stored as the list of its chunks. Its ID is still the SHA1 of its whole contents, so trees, the index
+ * and status don't know the difference; only the object store (see {@link ObjectStore}) and packs (see {@link PackFile})
+ * store it differently, as:
+ *
+ *     {size long} {chunk count int} {chunk}*  where chunk = {SHA1 of the chunk, 20 bytes} {length int}
+ *
+ * Every chunk is an ordinary object. Chunk boundaries depend on the contents, not on the offsets (FastCDC):
+ * a gear hash is rolled over the bytes, and a chunk ends where its top bits are all zero. An edit only changes the
+ * chunks around it and an append only the last one, so the other chunks are shared by every version of the file.
+ *
+ *     no cut point before MIN_SIZE bytes, where the hash only starts rolling
+ *     a stricter mask (more bits) up to AVERAGE_SIZE bytes, and a looser one after, which keeps chunk sizes close to the average
+ *     a forced cut at MAX_SIZE bytes
+ */
+class ChunkedBlob {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+    /** Top 18 and top 14 bits: 2 bits more and 2 bits fewer than log2(AVERAGE_SIZE). */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+    private static final long MASK_LARGE = -1L << (64 - 14);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed, so that every version of gitfly cuts a file at the same places
+        long seed = 0x676974666C79L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    final long size;
+    final ObjectId[] ids;
+    final int[] lengths;
+
+    private ChunkedBlob(long size, ObjectId[] ids, int[] lengths) {
+        this.size = size;
+        this.ids = ids;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Cuts a file into chunks and stores each one that isn't stored yet.
+     * The file is read once, in a buffer of twice MAX_SIZE bytes, which also updates the SHA1 of the whole file.
+     * @param channel file to read, from its current position to its end
+     * @param digest digest updated with the whole contents of the file
+     * @return the chunks of the file
+     */
+    static ChunkedBlob write(FileChannel channel, MessageDigest digest) throws IOException {
+        List<ObjectId> ids = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        byte[] buffer = new byte[2 * MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        long size = 0;
+        while (true) {
+            if (start > MAX_SIZE) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            while (!eof && end - start < MAX_SIZE) {
+                int n = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    end += n;
+                }
+            }
+            if (start == end) {
+                break;
+            }
+            int length = cut(buffer, start, end);
+            digest.update(buffer, start, length);
+            ObjectId id = ObjectId.hash(buffer, start, length);
+            ObjectStore.write(id, new ByteArrayInputStream(buffer, start, length));
+            ids.add(id);
+            lengths.add(length);
+            size += length;
+            start += length;
+        }
+        int[] lengthArray = new int[lengths.size()];
+        for (int i = 0; i < lengthArray.length; i++) {
+            lengthArray[i] = lengths.get(i);
+        }
+        return new ChunkedBlob(size, ids.toArray(new ObjectId[0]), lengthArray);
+    }
+
+    /**
+     * Returns the length of the chunk that starts at start, given the bytes up to end.
+     * Fewer than MAX_SIZE bytes are only given at the end of the file.
+     */
+    static int cut(byte[] buffer, int start, int end) {
+        int available = end - start;
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+        int limit = Math.min(available, MAX_SIZE);
+        int normal = Math.min(limit, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + ids.length * (ObjectId.RAW_LENGTH + 4));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(size);
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.write(ids[i].toRaw());
+                out.writeInt(lengths[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a chunk list written by {@link #encode()}.
+     * @throws IOException if the list is truncated
+     */
+    static ChunkedBlob decode(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        long size = data.readLong();
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt chunk list");
+        }
+        ObjectId[] ids = new ObjectId[count];
+        int[] lengths = new int[count];
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (int i = 0; i < count; i++) {
+            data.readFully(raw);
+            ids[i] = ObjectId.fromRaw(raw, 0);
+            lengths[i] = data.readInt();
+        }
+        return new ChunkedBlob(size, ids, lengths);
+    }
+
+    /**
+     * Opens a stream over the contents of the blob. Chunks are opened one at a time, as the stream reaches them,
+     * so memory use doesn't depend on the size of the blob.
+     */
+    InputStream open() {
+        return new InputStream() {
+            private int next;
+            private InputStream current = InputStream.nullInputStream();
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (true) {
+                    int n = current.read(buffer, offset, length);
+                    if (n > 0) {
+                        return n;
+                    }
+                    current.close();
+                    if (next == ids.length) {
+                        return -1;
+                    }
+                    current = ObjectStore.open(ids[next++]);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                current.close();
+                next = ids.length;
+            }
+        };
+    }
+}
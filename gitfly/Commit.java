@@ -1,57 +1,144 @@
 package gitfly;
 
-import java.io.File;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 
-import static gitfly.Utils.*;
-
-public class Commit {
+public class Commit implements ObjectCache.Cacheable {
+    /** Format of commit dates. Dates in this format sort chronologically as strings. */
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private String message;
-    private String treeID;
-    private String parentID;
+    private ObjectId treeID;
+    /** Parent commit, or null for the initial commit. */
+    private ObjectId parentID;
     private String datetime;
     private String author;
     private String email;
-    private String commitID;
-    Commit(String message, String id, String parentID) {
+    private ObjectId commitID;
+    /** Contents of the commit object. */
+    private String text;
+    Commit(String message, ObjectId id, ObjectId parentID) {
         this.message = message;
         this.treeID = id;
         this.parentID = parentID;
         LocalDateTime current = LocalDateTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        this.datetime = current.format(formatter);
+        this.datetime = current.format(DATE_FORMAT);
         this.author = Config.getAuthor();
         this.email = Config.getEmail();
 
         StringBuilder sb = new StringBuilder();
         sb.append("tree ").append(treeID).append("\n").append("parent ").append(parentID).append("\n").append("author ").append(author).append(" ").append(email).append(" ").append(datetime).append("\n").append("committer ").append(author).append(" ").append(email).append(" ").append(datetime).append("\n").append("\n").append(message);
         String commit = sb.toString();
-        this.commitID = getSHA1(commit.getBytes());
+        this.text = commit;
+        this.commitID = ObjectId.hash(commit.getBytes());
         System.out.println("COMMIT: " + this.commitID);
         System.out.println(commit);
         System.out.println("==================================================");
         Repository.addObjectToObjectDirectory(commitID, commit);
+        ObjectCache.put(commitID, this);
+    }
+
+    /**
+     * Parses the contents of a commit object.
+     * @throws IllegalArgumentException if the contents are not a commit
+     */
+    private Commit(ObjectId commitID, String text) {
+        this.commitID = commitID;
+        this.text = text;
+        String[] lines = text.split("\n", 5);
+        if (lines.length < 4 || !lines[0].startsWith("tree ") || !lines[1].startsWith("parent ")) {
+            throw new IllegalArgumentException("Not a commit: " + commitID);
+        }
+        this.treeID = ObjectId.fromHex(lines[0].substring("tree ".length()));
+        String parent = lines[1].substring("parent ".length());
+        this.parentID = parent.equals("null") ? null : ObjectId.fromHex(parent);
+        // author {name} {email} {date} {time}, where the name may contain spaces
+        String[] signature = lines[2].split(" ");
+        if (signature.length >= 5) {
+            int n = signature.length;
+            this.author = String.join(" ", Arrays.copyOfRange(signature, 1, n - 3));
+            this.email = signature[n - 3];
+            this.datetime = signature[n - 2] + " " + signature[n - 1];
+        }
+        int body = text.indexOf("\n\n");
+        this.message = body < 0 ? "" : text.substring(body + 2);
     }
 
-    static String getSnapshotID (String id) {
-        return getCommitText(id).split(" ")[1].split("\n")[0];
+    /**
+     * Returns a parsed commit, from the {@link ObjectCache} if possible.
+     * @param id SHA1 of the commit
+     * @throws IllegalArgumentException if the object is missing or is not a commit
+     */
+    static Commit read(ObjectId id) {
+        return ObjectCache.get(id, Commit.class, commitID -> new Commit(commitID, ObjectStore.readString(commitID)));
     }
 
-    static String getCommitText(String id) {
-        File currentCommit = join(Repository.OBJECTS_DIR, id);
-        return fileContentsToString(currentCommit);
+    /**
+     * Returns whether an object exists and is a commit.
+     */
+    static boolean isCommit(ObjectId id) {
+        if (!ObjectStore.exists(id)) {
+            return false;
+        }
+        try {
+            read(id);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
     }
 
-    static String getParentID(String id) {
-        return getCommitText(id).split("\n")[1].split(" ")[1];
+    static ObjectId getSnapshotID (ObjectId id) {
+        ObjectId tree = CommitGraph.getTree(id);
+        return tree != null ? tree : read(id).treeID;
     }
 
-    String getCommitID() {
+    static String getCommitText(ObjectId id) {
+        return read(id).text;
+    }
+
+    /**
+     * Returns the parent of a commit, or null if it is the initial commit.
+     */
+    static ObjectId getParentID(ObjectId id) {
+        return read(id).parentID;
+    }
+
+    ObjectId getCommitID() {
         return this.commitID;
     }
 
-    String getSnapshotID() {
+    ObjectId getSnapshotID() {
         return this.treeID;
     }
+
+    ObjectId getParentID() {
+        return this.parentID;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    String getAuthor() {
+        return author;
+    }
+
+    String getEmail() {
+        return email;
+    }
+
+    String getDatetime() {
+        return datetime;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    @Override
+    public long getWeight() {
+        // the text, the substrings parsed from it, and the IDs
+        return 4L * text.length() + 256;
+    }
 }
@@ -0,0 +1,594 @@
+package gitfly;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static gitfly.Utils.*;
+
+/**
+ * The commit-graph: the parent, root tree and generation number of every commit, in compact memory-mapped arrays,
+ * so that history can be walked without reading commit objects.
+ * The generation number of a commit is its distance from the initial commit plus one; a commit can only be an ancestor
+ * of commits with a higher generation, which lets ancestry walks stop early.
+ *
+ * The graph is a chain of layers, listed base first in
+ *
+ *     .gitfly/objects/info/commit-graph-chain
+ *         {layer checksum}\n*
+ *
+ *     .gitfly/objects/info/commit-graphs/graph-{checksum}.graph
+ *         "GFCG" {version int} {commit count int} {number of commits in the lower layers int}
+ *         {fanout: 256 ints, number of commits of this layer whose first ID byte is <= i}
+ *         {commit IDs, 20 bytes each, sorted}
+ *         {commit data: {root tree ID, 20 bytes} {parent position int, -1 for none} {generation int}, one per commit}
+ *         {filter index: end offset of each commit's changed-path filter in the filter data, one int per commit}
+ *         {filter data: the changed-path filters (see {@link ChangedPathFilter}), concatenated}
+ *         {SHA1 of everything above, 20 bytes}
+ *
+ * Positions are global: the commits of a layer come after the commits of all the layers below it,
+ * and a parent is always in the same layer or a lower one.
+ * New commits are appended as a new layer; whenever a layer holds at least half as many commits as the one below it,
+ * the two are merged, so the number of layers stays logarithmic in the number of commits.
+ * Commits that are not in the graph yet are read from the object store.
+ * Version 1 layers are the same without the filter index and data.
+ */
+class CommitGraph {
+    static final File INFO_DIR = join(Repository.OBJECTS_DIR, "info");
+    static final File CHAIN = join(INFO_DIR, "commit-graph-chain");
+    static final File LAYERS_DIR = join(INFO_DIR, "commit-graphs");
+    private static final byte[] MAGIC = {'G', 'F', 'C', 'G'};
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int FANOUT_OFFSET = HEADER_SIZE;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    private static final int DATA_LENGTH = ObjectId.RAW_LENGTH + 8;
+    /** A layer is merged into the one below it when it holds more than 1/MERGE_FACTOR as many commits. */
+    private static final int MERGE_FACTOR = 2;
+
+    private static CommitGraph graph;
+    /** Generations computed for commits that are not in the graph. */
+    private static final Map<ObjectId, Integer> LOOSE_GENERATIONS = new HashMap<>();
+
+    private final List<Layer> layers;
+    private final int count;
+
+    private CommitGraph(List<Layer> layers) {
+        this.layers = layers;
+        this.count = layers.isEmpty() ? 0 : layers.get(layers.size() - 1).end();
+    }
+
+    /**
+     * Returns the commit-graph of the repository. It is mapped the first time this is called.
+     */
+    static synchronized CommitGraph get() {
+        if (graph == null) {
+            graph = new CommitGraph(readLayers());
+        }
+        return graph;
+    }
+
+    /**
+     * Drops the mapped graph, so that the next call to {@link #get()} reads the chain again.
+     */
+    static synchronized void reload() {
+        graph = null;
+        synchronized (LOOSE_GENERATIONS) {
+            LOOSE_GENERATIONS.clear();
+        }
+    }
+
+    /**
+     * Returns the generation number of a commit (1 for the initial commit).
+     * Commits missing from the graph are read from the object store, down to the first commit that is in the graph.
+     * @param id SHA1 of the commit
+     */
+    static int getGeneration(ObjectId id) {
+        CommitGraph graph = get();
+        int position = graph.position(id);
+        if (position >= 0) {
+            return graph.generationAt(position);
+        }
+        synchronized (LOOSE_GENERATIONS) {
+            Integer known = LOOSE_GENERATIONS.get(id);
+            if (known != null) {
+                return known;
+            }
+            List<ObjectId> missing = new ArrayList<>();
+            int generation = 0;
+            for (ObjectId current = id; current != null; current = Commit.getParentID(current)) {
+                position = graph.position(current);
+                if (position >= 0) {
+                    generation = graph.generationAt(position);
+                    break;
+                }
+                known = LOOSE_GENERATIONS.get(current);
+                if (known != null) {
+                    generation = known;
+                    break;
+                }
+                missing.add(current);
+            }
+            for (int i = missing.size() - 1; i >= 0; i--) {
+                LOOSE_GENERATIONS.put(missing.get(i), ++generation);
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * Returns the parent of a commit, or null for the initial commit.
+     * @param id SHA1 of the commit
+     */
+    static ObjectId getParent(ObjectId id) {
+        CommitGraph graph = get();
+        int position = graph.position(id);
+        if (position < 0) {
+            return Commit.getParentID(id);
+        }
+        int parent = graph.parentAt(position);
+        return parent < 0 ? null : graph.idAt(parent);
+    }
+
+    /**
+     * Returns the root tree of a commit if it is in the graph, or null.
+     * @param id SHA1 of the commit
+     */
+    static ObjectId getTree(ObjectId id) {
+        CommitGraph graph = get();
+        int position = graph.position(id);
+        return position < 0 ? null : graph.treeAt(position);
+    }
+
+    /**
+     * Returns whether a commit may have changed a path, according to its changed-path filter.
+     * Commits that are not in the graph, or have no filter, may have changed any path.
+     * @param id SHA1 of the commit
+     * @param query the path
+     */
+    static boolean mightHaveChanged(ObjectId id, ChangedPathFilter.Query query) {
+        CommitGraph graph = get();
+        int position = graph.position(id);
+        if (position < 0) {
+            return true;
+        }
+        Layer layer = graph.layerOf(position);
+        if (!layer.hasFilters) {
+            return true;
+        }
+        int start = layer.filterStart(position);
+        return ChangedPathFilter.mightContain(layer.buffer, layer.filterDataOffset() + start, layer.filterEnd(position) - start, query);
+    }
+
+    /**
+     * Returns the number of commits in the graph.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the global position of a commit, or -1 if it isn't in the graph.
+     */
+    int position(ObjectId id) {
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            int position = layers.get(i).position(id);
+            if (position >= 0) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    ObjectId idAt(int position) {
+        Layer layer = layerOf(position);
+        return ObjectId.fromRaw(layer.buffer, IDS_OFFSET + (position - layer.base) * ObjectId.RAW_LENGTH);
+    }
+
+    ObjectId treeAt(int position) {
+        Layer layer = layerOf(position);
+        return ObjectId.fromRaw(layer.buffer, layer.dataOffset(position));
+    }
+
+    int parentAt(int position) {
+        Layer layer = layerOf(position);
+        return layer.buffer.getInt(layer.dataOffset(position) + ObjectId.RAW_LENGTH);
+    }
+
+    int generationAt(int position) {
+        Layer layer = layerOf(position);
+        return layer.buffer.getInt(layer.dataOffset(position) + ObjectId.RAW_LENGTH + 4);
+    }
+
+    /**
+     * Returns a copy of the changed-path filter of a commit, or null if its layer has no filters.
+     */
+    byte[] filterAt(int position) {
+        Layer layer = layerOf(position);
+        if (!layer.hasFilters) {
+            return null;
+        }
+        int start = layer.filterStart(position);
+        byte[] filter = new byte[layer.filterEnd(position) - start];
+        layer.buffer.get(layer.filterDataOffset() + start, filter);
+        return filter;
+    }
+
+    private Layer layerOf(int position) {
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            if (position >= layers.get(i).base) {
+                return layers.get(i);
+            }
+        }
+        throw new IllegalArgumentException("Commit-graph position out of range: " + position);
+    }
+
+    /**
+     * Adds the commits reachable from the given ones that are not in the graph yet, as a new layer.
+     * Called after new commits are created.
+     * @param tips SHA1s of the new commits
+     */
+    static synchronized void update(ObjectId... tips) {
+        CommitGraph current = get();
+        LinkedHashMap<ObjectId, Commit> added = new LinkedHashMap<>();
+        for (ObjectId tip : tips) {
+            for (ObjectId id = tip; id != null && !added.containsKey(id) && current.position(id) < 0; ) {
+                Commit commit = Commit.read(id);
+                added.put(id, commit);
+                id = commit.getParentID();
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        List<Layer> kept = new ArrayList<>(current.layers);
+        List<Layer> merged = new ArrayList<>();
+        // geometric merging: fold the new commits into the top layers while they are not much bigger
+        int newCount = added.size();
+        while (!kept.isEmpty() && (long) newCount * MERGE_FACTOR >= kept.get(kept.size() - 1).count) {
+            Layer top = kept.remove(kept.size() - 1);
+            merged.add(top);
+            newCount += top.count;
+        }
+        CommitGraph base = new CommitGraph(kept);
+        List<GraphCommit> commits = new ArrayList<>(newCount);
+        for (Layer layer : merged) {
+            for (int position = layer.base; position < layer.end(); position++) {
+                int parent = current.parentAt(position);
+                commits.add(new GraphCommit(current.idAt(position), current.treeAt(position),
+                        parent < 0 ? null : current.idAt(parent), current.filterAt(position)));
+            }
+        }
+        for (Commit commit : added.values()) {
+            commits.add(new GraphCommit(commit.getCommitID(), commit.getSnapshotID(), commit.getParentID(), null));
+        }
+        List<String> replaced = new ArrayList<>();
+        for (Layer layer : merged) {
+            replaced.add(layer.name);
+        }
+        writeChain(base, commits, replaced);
+    }
+
+    /**
+     * Rewrites the whole graph as a single layer holding the commits reachable from the given ones.
+     * Used by gc, which may have pruned commits that are still in the graph.
+     * Layer files left behind by interrupted updates are deleted as well.
+     * @param tips SHA1s of the commits to start from
+     */
+    static synchronized void rewrite(Collection<ObjectId> tips) {
+        CommitGraph current = get();
+        LinkedHashMap<ObjectId, GraphCommit> commits = new LinkedHashMap<>();
+        for (ObjectId tip : tips) {
+            for (ObjectId id = tip; id != null && !commits.containsKey(id); ) {
+                int position = current.position(id);
+                ObjectId parent = getParent(id);
+                if (position >= 0) {
+                    commits.put(id, new GraphCommit(id, current.treeAt(position), parent, current.filterAt(position)));
+                } else {
+                    commits.put(id, new GraphCommit(id, Commit.getSnapshotID(id), parent, null));
+                }
+                id = parent;
+            }
+        }
+        List<String> replaced = new ArrayList<>();
+        String[] files = LAYERS_DIR.list((dir, name) -> name.startsWith("graph-") && name.endsWith(".graph"));
+        if (files != null) {
+            for (String file : files) {
+                replaced.add(file.substring("graph-".length(), file.length() - ".graph".length()));
+            }
+        }
+        writeChain(new CommitGraph(new ArrayList<>()), new ArrayList<>(commits.values()), replaced);
+    }
+
+    /**
+     * Writes a new top layer on top of base and replaces the chain.
+     * @param base the layers that are kept
+     * @param commits commits of the new layer
+     * @param replaced names of the layers that are no longer part of the chain, deleted once it is replaced
+     */
+    private static void writeChain(CommitGraph base, List<GraphCommit> commits, List<String> replaced) {
+        if (!LAYERS_DIR.isDirectory() && !LAYERS_DIR.mkdirs()) {
+            exit("Could not create directory %s.", LAYERS_DIR.getPath());
+        }
+        List<String> names = new ArrayList<>();
+        for (Layer layer : base.layers) {
+            names.add(layer.name);
+        }
+        if (!commits.isEmpty()) {
+            names.add(writeLayer(base, commits));
+        }
+        File temp = join(INFO_DIR, CHAIN.getName() + ".tmp");
+        writeContents(temp, names.isEmpty() ? "" : String.join("\n", names) + "\n");
+        try {
+            Files.move(temp.toPath(), CHAIN.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            exit("Could not replace %s.", CHAIN.getPath());
+        }
+        reload();
+        for (String name : replaced) {
+            if (!names.contains(name)) {
+                layerFile(name).delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a layer holding the given commits on top of base. Parents must be in base or among the commits.
+     * @return the checksum naming the layer
+     */
+    private static String writeLayer(CommitGraph base, List<GraphCommit> commits) {
+        commits.sort(Comparator.comparing(c -> c.id));
+        Map<ObjectId, Integer> positions = new HashMap<>(commits.size() * 2);
+        for (int i = 0; i < commits.size(); i++) {
+            positions.put(commits.get(i).id, base.count + i);
+        }
+        // generations, computed parents first
+        Map<ObjectId, Integer> generations = new HashMap<>(commits.size() * 2);
+        for (GraphCommit commit : commits) {
+            List<GraphCommit> pending = new ArrayList<>();
+            GraphCommit current = commit;
+            int generation = 0;
+            while (true) {
+                Integer known = generations.get(current.id);
+                if (known != null) {
+                    generation = known;
+                    break;
+                }
+                pending.add(current);
+                if (current.parent == null) {
+                    break;
+                }
+                Integer position = positions.get(current.parent);
+                if (position == null) {
+                    generation = base.generationAt(basePosition(base, current));
+                    break;
+                }
+                current = commits.get(position - base.count);
+            }
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                generations.put(pending.get(i).id, ++generation);
+            }
+        }
+
+        for (GraphCommit commit : commits) {
+            if (commit.filter == null) {
+                ObjectId parentTree = null;
+                if (commit.parent != null) {
+                    Integer position = positions.get(commit.parent);
+                    parentTree = position != null ? commits.get(position - base.count).tree : Commit.getSnapshotID(commit.parent);
+                }
+                commit.filter = ChangedPathFilter.compute(commit.tree, parentTree);
+            }
+        }
+
+        int[] fanout = new int[256];
+        for (GraphCommit commit : commits) {
+            fanout[commit.id.getFirstByte()]++;
+        }
+        File temp = join(LAYERS_DIR, "tmp_graph_" + ProcessHandle.current().pid());
+        MessageDigest checksum = ObjectId.newDigest();
+        byte[] digest = null;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new java.security.DigestOutputStream(new FileOutputStream(temp), checksum)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(commits.size());
+            out.writeInt(base.count);
+            int cumulative = 0;
+            for (int i = 0; i < 256; i++) {
+                cumulative += fanout[i];
+                out.writeInt(cumulative);
+            }
+            for (GraphCommit commit : commits) {
+                out.write(commit.id.toRaw());
+            }
+            for (GraphCommit commit : commits) {
+                out.write(commit.tree.toRaw());
+                int parent = -1;
+                if (commit.parent != null) {
+                    Integer position = positions.get(commit.parent);
+                    parent = position != null ? position : basePosition(base, commit);
+                }
+                out.writeInt(parent);
+                out.writeInt(generations.get(commit.id));
+            }
+            int filterEnd = 0;
+            for (GraphCommit commit : commits) {
+                filterEnd += commit.filter.length;
+                out.writeInt(filterEnd);
+            }
+            for (GraphCommit commit : commits) {
+                out.write(commit.filter);
+            }
+            out.flush();
+            digest = checksum.digest();
+            out.write(digest);
+        } catch (IOException e) {
+            temp.delete();
+            exit("Could not write the commit-graph: %s", e.getMessage());
+        }
+        String name = ObjectId.toHex(digest);
+        try {
+            Files.move(temp.toPath(), layerFile(name).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            exit("Could not write the commit-graph: %s", e.getMessage());
+        }
+        return name;
+    }
+
+    /**
+     * Returns the position in base of the parent of a commit that is being written.
+     */
+    private static int basePosition(CommitGraph base, GraphCommit commit) {
+        int position = base.position(commit.parent);
+        if (position < 0) {
+            throw new IllegalArgumentException("Commit-graph is missing the parent of " + commit.id);
+        }
+        return position;
+    }
+
+    private static File layerFile(String name) {
+        return join(LAYERS_DIR, "graph-" + name + ".graph");
+    }
+
+    /**
+     * Maps the layers listed in the chain file. A chain that can't be read is ignored: every commit is then read from
+     * the object store, and the next update writes a new chain.
+     */
+    private static List<Layer> readLayers() {
+        List<Layer> layers = new ArrayList<>();
+        if (!CHAIN.isFile()) {
+            return layers;
+        }
+        int base = 0;
+        for (String name : fileContentsToString(CHAIN).split("\n")) {
+            if (name.isBlank()) {
+                continue;
+            }
+            try {
+                Layer layer = new Layer(name.trim(), layerFile(name.trim()));
+                if (layer.base != base) {
+                    throw new IOException("layer " + name + " doesn't match the chain");
+                }
+                layers.add(layer);
+                base = layer.end();
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable commit-graph: " + e.getMessage());
+                return new ArrayList<>();
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * A memory-mapped layer of the chain.
+     */
+    private static class Layer {
+        final String name;
+        final MappedByteBuffer buffer;
+        final int count;
+        /** Global position of the first commit of this layer. */
+        final int base;
+        /** Whether this layer stores changed-path filters (version 2 and later). */
+        final boolean hasFilters;
+
+        Layer(String name, File file) throws IOException {
+            this.name = name;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    throw new IOException("not a commit-graph: " + file.getName());
+                }
+            }
+            int version = buffer.getInt(4);
+            if (version != 1 && version != VERSION) {
+                throw new IOException("unsupported commit-graph version " + version);
+            }
+            this.count = buffer.getInt(8);
+            this.base = buffer.getInt(12);
+            this.hasFilters = version >= 2;
+            long minimum = IDS_OFFSET + (long) count * (ObjectId.RAW_LENGTH + DATA_LENGTH) + ObjectId.RAW_LENGTH;
+            if (hasFilters) {
+                minimum += 4L * count + (count == 0 ? 0 : buffer.getInt(filterIndexOffset() + (count - 1) * 4));
+            }
+            if (buffer.capacity() < minimum) {
+                throw new IOException("truncated commit-graph: " + file.getName());
+            }
+        }
+
+        int end() {
+            return base + count;
+        }
+
+        int dataOffset(int position) {
+            return IDS_OFFSET + count * ObjectId.RAW_LENGTH + (position - base) * DATA_LENGTH;
+        }
+
+        int filterIndexOffset() {
+            return IDS_OFFSET + count * (ObjectId.RAW_LENGTH + DATA_LENGTH);
+        }
+
+        int filterDataOffset() {
+            return filterIndexOffset() + count * 4;
+        }
+
+        /**
+         * Returns the offset of a commit's filter in the filter data.
+         */
+        int filterStart(int position) {
+            return position == base ? 0 : buffer.getInt(filterIndexOffset() + (position - base - 1) * 4);
+        }
+
+        int filterEnd(int position) {
+            return buffer.getInt(filterIndexOffset() + (position - base) * 4);
+        }
+
+        /**
+         * Binary searches this layer for a commit.
+         * @return the global position of the commit, or -1 if it isn't in this layer
+         */
+        int position(ObjectId id) {
+            int first = id.getFirstByte();
+            int low = first == 0 ? 0 : buffer.getInt(FANOUT_OFFSET + (first - 1) * 4);
+            int high = buffer.getInt(FANOUT_OFFSET + first * 4) - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = id.compareTo(buffer, IDS_OFFSET + mid * ObjectId.RAW_LENGTH);
+                if (cmp > 0) {
+                    low = mid + 1;
+                } else if (cmp < 0) {
+                    high = mid - 1;
+                } else {
+                    return base + mid;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A commit while it is being written to a layer.
+     */
+    private static class GraphCommit {
+        final ObjectId id;
+        final ObjectId tree;
+        /** Parent commit, or null for the initial commit. */
+        final ObjectId parent;
+        /** Changed-path filter, or null until it is computed. */
+        byte[] filter;
+
+        GraphCommit(ObjectId id, ObjectId tree, ObjectId parent, byte[] filter) {
+            this.id = id;
+            this.tree = tree;
+            this.parent = parent;
+            this.filter = filter;
+        }
+    }
+}
@@ -15,12 +15,106 @@ class Config {
         writeContents(Repository.CONFIG, sb);
     }
     static String getAuthor() {
-        String str = fileContentsToString(Repository.CONFIG);
-        return str.split("\n")[0].split(": ")[1];
+        return get("author");
     }
 
     static String getEmail() {
-        String str = fileContentsToString(Repository.CONFIG);
-        return str.split("\n")[1].split(": ")[1];
+        return get("email");
+    }
+
+    /**
+     * Returns the number of threads used for parallel work (scanning the working directory, hashing, gc).
+     * Set by a "threads: N" line in the config; defaults to the number of available processors.
+     */
+    static int getThreads() {
+        return getPositiveInt("threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the number of files written or deleted at the same time by checkout and merge (see {@link WorkingTreeWriter}).
+     * Set by a "checkout-threads: N" line in the config; defaults to {@link #getThreads()}.
+     */
+    static int getCheckoutThreads() {
+        return getPositiveInt("checkout-threads", getThreads());
+    }
+
+    /**
+     * Returns the line diff algorithm used by diff and merge (see {@link LineDiff}).
+     * Set by a "diff-algorithm: myers|histogram" line in the config; defaults to histogram.
+     */
+    static LineDiff.Algorithm getDiffAlgorithm() {
+        LineDiff.Algorithm algorithm = LineDiff.Algorithm.parse(get("diff-algorithm"));
+        return algorithm == null ? LineDiff.Algorithm.HISTOGRAM : algorithm;
+    }
+
+    /**
+     * Returns the minimum similarity, in percent, of a removed and an added file for diff, status and merge
+     * to treat them as a rename (see {@link RenameDetector}).
+     * Set by a "rename-threshold: N" line in the config; defaults to {@link RenameDetector#DEFAULT_THRESHOLD}.
+     */
+    static int getRenameThreshold() {
+        return Math.min(100, getPositiveInt("rename-threshold", RenameDetector.DEFAULT_THRESHOLD));
+    }
+
+    /**
+     * Returns the size, in bytes, from which files are stored as chunks shared between their versions (see {@link ChunkedBlob}).
+     * Set by a "chunk-threshold: N" line in the config, where N may end with k, m or g, and 0 turns chunking off;
+     * defaults to {@link PackFile#MAX_PACKED_OBJECT_SIZE}, the size from which a file can't be delta compressed in a pack.
+     */
+    static long getChunkThreshold() {
+        String value = get("chunk-threshold");
+        if (value == null) {
+            return PackFile.MAX_PACKED_OBJECT_SIZE;
+        }
+        value = value.trim().toLowerCase();
+        long unit = 1;
+        if (!value.isEmpty() && "kmg".indexOf(value.charAt(value.length() - 1)) >= 0) {
+            unit = 1L << (10 * ("kmg".indexOf(value.charAt(value.length() - 1)) + 1));
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            long n = Long.parseLong(value);
+            if (n == 0) {
+                return Long.MAX_VALUE;
+            }
+            if (n > 0) {
+                return n * unit;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return PackFile.MAX_PACKED_OBJECT_SIZE;
+    }
+
+    /**
+     * Returns the value of a key as a positive number, or defaultValue if the key is missing or not a positive number.
+     */
+    private static int getPositiveInt(String key, int defaultValue) {
+        String value = get(key);
+        if (value != null) {
+            try {
+                int n = Integer.parseInt(value.trim());
+                if (n > 0) {
+                    return n;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value of a "key: value" line of the config, or null if the key is missing.
+     */
+    static String get(String key) {
+        if (!Repository.CONFIG.exists()) {
+            return null;
+        }
+        for (String line : fileContentsToString(Repository.CONFIG).split("\n")) {
+            String[] tokens = line.split(": ", 2);
+            if (tokens.length == 2 && tokens[0].equals(key)) {
+                return tokens[1];
+            }
+        }
+        return null;
     }
 }
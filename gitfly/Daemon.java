@@ -0,0 +1,274 @@
+package gitfly;
+
+import static gitfly.Utils.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+
+/**
+ * A long-running gitfly process for one repository, which runs the commands forwarded by {@link DaemonClient}.
+ * Commands run in a JVM that is already warmed up, and reuse what earlier commands loaded: parsed commits and trees
+ * ({@link ObjectCache}), the commit-graph, the pack indexes, the mapped index and the worker pool.
+ *
+ * The daemon listens on the Unix domain socket .gitfly/daemon.sock and runs one command at a time.
+ * While a command runs, System.out and System.err are redirected to the client. Before each command the staging state
+ * is reset as if the process had just started. A WatchService reports changes to the files under .gitfly
+ * (refs, packs, commit-graph), made by the daemon or by other processes; the commit-graph and the packs are reopened
+ * before the next command when that happens. Objects never change once written, so the ObjectCache stays valid.
+ *
+ *     daemon          start the daemon in the foreground
+ *     daemon --stop   stop the running daemon
+ */
+class Daemon {
+    /** Directories whose changes invalidate the daemon's state, relative to .gitfly. */
+    private static final List<String> WATCHED = List.of("", "refs", "refs/heads", "refs/tags", "objects",
+            "objects/pack", "objects/info", "objects/info/commit-graphs");
+
+    private static File socket;
+    private static volatile boolean changed;
+    private static boolean running;
+
+    /**
+     * Runs the daemon command.
+     * @param args empty to start the daemon, or "--stop" to stop it
+     */
+    static void run(String... args) {
+        Repository.checkIfGitflyInitialized();
+        socket = join(Repository.GITFLY_DIR, DaemonClient.SOCKET_NAME);
+        if (args.length == 1 && args[0].equals("--stop")) {
+            if (DaemonClient.forward(new String[]{"daemon", "--stop"}) == DaemonClient.RUN_LOCALLY) {
+                exit("No daemon is running.");
+            }
+        } else if (args.length == 0) {
+            serve();
+        } else {
+            exit("Usage: daemon [--stop]");
+        }
+    }
+
+    private static void serve() {
+        if (socket.exists()) {
+            try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                probe.connect(UnixDomainSocketAddress.of(socket.toPath()));
+                exit("A daemon is already running for this repository.");
+            } catch (IOException e) {
+                // left behind by a daemon that didn't shut down cleanly
+                socket.delete();
+            }
+        }
+        WatchService watcher = startWatcher();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            socket.deleteOnExit();
+            outputMessage("Daemon listening on %s", socket.getPath());
+            running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException e) {
+                    System.err.println("Lost a client: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            exit("Could not listen on %s: %s", socket.getPath(), e.getMessage());
+        } finally {
+            socket.delete();
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+        }
+        exit("Daemon stopped.");
+    }
+
+    /**
+     * Reads a request, runs the command with its output sent to the client and replies with its exit code.
+     */
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        String cwd = in.readUTF();
+        DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client), 1 << 16));
+        if (!cwd.equals(Repository.CWD.getPath())) {
+            sendExit(reply, DaemonClient.RUN_LOCALLY);
+            return;
+        }
+
+        PrintStream out = new PrintStream(new FrameOutputStream(reply, DaemonClient.STDOUT), false, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(new FrameOutputStream(reply, DaemonClient.STDERR), true, StandardCharsets.UTF_8);
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        System.setOut(out);
+        System.setErr(err);
+        int code = 0;
+        try {
+            if (args.length > 0 && args[0].equals("daemon")) {
+                running = !(args.length == 2 && args[1].equals("--stop"));
+                outputMessage(running ? "A daemon is already running for this repository." : "Daemon stopped.");
+            } else {
+                refresh();
+                Main.run(args);
+            }
+        } catch (ExitException ignored) {
+            // the command printed its message
+        } catch (Throwable e) {
+            e.printStackTrace();
+            code = 1;
+        } finally {
+            out.flush();
+            err.flush();
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+        }
+        sendExit(reply, code);
+    }
+
+    private static void sendExit(DataOutputStream reply, int code) throws IOException {
+        synchronized (reply) {
+            reply.writeByte(DaemonClient.EXIT);
+            reply.writeInt(code);
+            reply.flush();
+        }
+    }
+
+    /**
+     * Drops the state left by the previous command, and the cached files that changed on disk since.
+     */
+    private static void refresh() {
+        Stage.reset();
+        if (changed) {
+            changed = false;
+            CommitGraph.reload();
+            PackFile.reload();
+        }
+    }
+
+    /**
+     * Starts a thread that sets changed whenever a file in one of the WATCHED directories is created, modified or deleted.
+     */
+    private static WatchService startWatcher() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            for (String directory : WATCHED) {
+                register(watcher, Repository.GITFLY_DIR.toPath().resolve(directory));
+            }
+        } catch (IOException e) {
+            exit("Could not watch %s: %s", Repository.GITFLY_DIR.getPath(), e.getMessage());
+            return null;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed = true;
+                        // directories such as objects/pack are only created when first needed
+                        if (event.context() instanceof Path name) {
+                            register(watcher, directory.resolve(name));
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            }
+        }, "gitfly-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return watcher;
+    }
+
+    /**
+     * Watches a directory if it is one of the WATCHED directories and it exists.
+     */
+    private static void register(WatchService watcher, Path directory) {
+        Path relative = Repository.GITFLY_DIR.toPath().relativize(directory);
+        if (!WATCHED.contains(relative.toString().replace(File.separatorChar, '/')) || !directory.toFile().isDirectory()) {
+            return;
+        }
+        try {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Could not watch " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends everything written to it to the client as frames of one type.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream reply;
+        private final byte type;
+        private final byte[] buffer = new byte[8192];
+        private int count;
+
+        FrameOutputStream(DataOutputStream reply, byte type) {
+            this.reply = reply;
+            this.type = type;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - count) {
+                flush();
+            }
+            if (length > buffer.length) {
+                sendFrame(bytes, offset, length);
+            } else {
+                System.arraycopy(bytes, offset, buffer, count, length);
+                count += length;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (count > 0) {
+                sendFrame(buffer, 0, count);
+                count = 0;
+            }
+            synchronized (reply) {
+                reply.flush();
+            }
+        }
+
+        private void sendFrame(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (reply) {
+                reply.writeByte(type);
+                reply.writeInt(length);
+                reply.write(bytes, offset, length);
+            }
+        }
+    }
+}
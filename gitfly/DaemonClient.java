@@ -0,0 +1,85 @@
+package gitfly;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Client side of the {@link Daemon}: forwards a command to the daemon of the repository in the current directory
+ * and copies its output to this process's standard output and error.
+ * Kept separate from the daemon and from {@link Repository} so that forwarding a command loads as few classes as possible.
+ *
+ * A request is the number of arguments, the arguments and the client's working directory (as DataOutput UTF strings).
+ * The reply is a sequence of frames, each a type byte followed by an int:
+ *
+ *     STDOUT {length} {bytes}   output of the command
+ *     STDERR {length} {bytes}   error output of the command
+ *     EXIT {exit code}          end of the reply
+ */
+class DaemonClient {
+    static final String SOCKET_NAME = "daemon.sock";
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+    /** Exit code of a reply telling the client to run the command itself. */
+    static final int RUN_LOCALLY = -1;
+
+    /**
+     * Forwards a command to the daemon, if one is running for the repository in the current directory.
+     * @param args the command name followed by its arguments
+     * @return the exit code of the command, or RUN_LOCALLY if no daemon ran it
+     */
+    static int forward(String[] args) {
+        String cwd = System.getProperty("user.dir");
+        Path socket = Path.of(cwd, ".gitfly", SOCKET_NAME);
+        if (!Files.exists(socket)) {
+            return RUN_LOCALLY;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            // a stale socket left by a daemon that didn't shut down cleanly
+            return RUN_LOCALLY;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.writeUTF(cwd);
+            out.flush();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                int value = in.readInt();
+                if (type == EXIT) {
+                    return value;
+                }
+                OutputStream target = type == STDERR ? System.err : System.out;
+                while (value > 0) {
+                    int n = in.read(buffer, 0, Math.min(value, buffer.length));
+                    if (n < 0) {
+                        throw new IOException("connection closed");
+                    }
+                    target.write(buffer, 0, n);
+                    value -= n;
+                }
+            }
+        } catch (IOException e) {
+            // the command may have run partly, so it can't be run again here
+            System.err.println("Lost the connection to the gitfly daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+}
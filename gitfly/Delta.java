@@ -0,0 +1,209 @@
+package gitfly;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Binary delta encoding used between similar objects of a pack.
+ * A delta describes how to rebuild a target object from a base object:
+ *
+ *     {base size varint} {target size varint} {instruction}*
+ *
+ * Every instruction is either
+ *     1xxxxxxx {offset varint} {length varint}  - copy length bytes of the base, starting at offset
+ *     0nnnnnnn {n literal bytes}                - insert the following n (1..127) bytes
+ *
+ * Matches are found by indexing the base in fixed size blocks and sliding a rolling hash over the target.
+ */
+class Delta {
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_INSERT = 127;
+    private static final int COPY = 0x80;
+    private static final int PRIME = 31;
+    /** PRIME ^ (BLOCK_SIZE - 1), used to remove the outgoing byte from the rolling hash. */
+    private static final int OUTGOING_FACTOR = pow(PRIME, BLOCK_SIZE - 1);
+
+    /**
+     * Creates a delta that turns base into target.
+     * @param base contents of the base object
+     * @param target contents of the target object
+     * @param maxSize the delta is abandoned as soon as it grows larger than this
+     * @return the encoded delta, or null if it would be larger than maxSize
+     */
+    static byte[] create(byte[] base, byte[] target, int maxSize) {
+        if (base.length < BLOCK_SIZE || target.length < BLOCK_SIZE) {
+            return null;
+        }
+        BlockIndex index = new BlockIndex(base);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, target.length) + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int insertStart = 0;
+        int pos = 0;
+        int hash = hash(target, 0);
+        while (pos + BLOCK_SIZE <= target.length) {
+            int match = index.find(hash, base, target, pos);
+            if (match >= 0) {
+                // extend the match backwards into the pending literal bytes, then forwards
+                int baseStart = match;
+                int targetStart = pos;
+                while (baseStart > 0 && targetStart > insertStart && base[baseStart - 1] == target[targetStart - 1]) {
+                    baseStart--;
+                    targetStart--;
+                }
+                int length = pos - targetStart + BLOCK_SIZE;
+                while (baseStart + length < base.length && targetStart + length < target.length
+                        && base[baseStart + length] == target[targetStart + length]) {
+                    length++;
+                }
+                writeInsert(out, target, insertStart, targetStart);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, length);
+                if (out.size() > maxSize) {
+                    return null;
+                }
+                pos = targetStart + length;
+                insertStart = pos;
+                if (pos + BLOCK_SIZE <= target.length) {
+                    hash = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK_SIZE < target.length) {
+                hash = (hash - target[pos] * OUTGOING_FACTOR) * PRIME + target[pos + BLOCK_SIZE];
+            }
+            pos++;
+            if (pos - insertStart > 4096 && out.size() + (pos - insertStart) > maxSize) {
+                return null;
+            }
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.size() > maxSize ? null : out.toByteArray();
+    }
+
+    /**
+     * Rebuilds the target object from its base and a delta created by {@link #create(byte[], byte[], int)}.
+     * @param base contents of the base object
+     * @param delta encoded delta
+     * @return contents of the target object
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        int baseSize = readVarint(delta, pos);
+        int targetSize = readVarint(delta, pos);
+        if (baseSize != base.length) {
+            throw new IllegalArgumentException("Delta base size mismatch");
+        }
+        byte[] target = new byte[targetSize];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int cmd = delta[pos[0]++] & 0xff;
+            if ((cmd & COPY) != 0) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else {
+                System.arraycopy(delta, pos[0], target, written, cmd);
+                pos[0] += cmd;
+                written += cmd;
+            }
+        }
+        if (written != targetSize) {
+            throw new IllegalArgumentException("Corrupt delta");
+        }
+        return target;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int length = Math.min(MAX_INSERT, to - from);
+            out.write(length);
+            out.write(data, from, length);
+            from += length;
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int hash(byte[] data, int from) {
+        int h = 0;
+        for (int i = from; i < from + BLOCK_SIZE; i++) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    private static int pow(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Open addressing hash table from block hashes to the offset of the first base block with that hash.
+     */
+    private static class BlockIndex {
+        private final int[] hashes;
+        private final int[] offsets;
+        private final int mask;
+
+        BlockIndex(byte[] base) {
+            int blocks = base.length / BLOCK_SIZE;
+            int capacity = Integer.highestOneBit(Math.max(blocks, 1) * 2) * 2;
+            this.hashes = new int[capacity];
+            this.offsets = new int[capacity];
+            Arrays.fill(offsets, -1);
+            this.mask = capacity - 1;
+            for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+                int h = hash(base, offset);
+                int slot = mix(h) & mask;
+                while (offsets[slot] >= 0 && hashes[slot] != h) {
+                    slot = (slot + 1) & mask;
+                }
+                if (offsets[slot] < 0) {
+                    hashes[slot] = h;
+                    offsets[slot] = offset;
+                }
+            }
+        }
+
+        int find(int h, byte[] base, byte[] target, int targetPos) {
+            int slot = mix(h) & mask;
+            while (offsets[slot] >= 0) {
+                if (hashes[slot] == h) {
+                    int offset = offsets[slot];
+                    return Arrays.equals(base, offset, offset + BLOCK_SIZE, target, targetPos, targetPos + BLOCK_SIZE) ? offset : -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package gitfly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stat data of a working directory file, recorded in the index next to the file's SHA1.
+ * If a file's stat data still matches the recorded one, its contents are assumed unchanged and it isn't hashed again.
+ */
+class FileStat {
+    private static boolean unixAttributes = true;
+
+    final long mtime;
+    final long ctime;
+    final long size;
+    final long inode;
+
+    FileStat(long mtime, long ctime, long size, long inode) {
+        this.mtime = mtime;
+        this.ctime = ctime;
+        this.size = size;
+        this.inode = inode;
+    }
+
+    /**
+     * Reads the stat data of a file. Times are in nanoseconds since the epoch.
+     * Uses the "unix" attribute view (real ctime and inode) where available, and falls back to the basic view.
+     * @param file file to stat
+     * @return the stat data, or null if the file can't be read
+     */
+    static FileStat of(File file) {
+        Path path = file.toPath();
+        try {
+            if (unixAttributes) {
+                try {
+                    Map<String, Object> attributes = Files.readAttributes(path, "unix:lastModifiedTime,ctime,size,ino");
+                    return new FileStat(nanos((FileTime) attributes.get("lastModifiedTime")),
+                            nanos((FileTime) attributes.get("ctime")),
+                            (Long) attributes.get("size"),
+                            (Long) attributes.get("ino"));
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    unixAttributes = false;
+                }
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Object key = attributes.fileKey();
+            return new FileStat(nanos(attributes.lastModifiedTime()), nanos(attributes.creationTime()),
+                    attributes.size(), key == null ? 0 : key.hashCode());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long nanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns whether the file can be assumed unchanged since this stat data was recorded.
+     * An entry whose mtime is not older than the index file itself is "racily clean": the file may have been modified
+     * again within the same timestamp granularity right after it was hashed, so it must be hashed again.
+     * @param current stat data of the file now
+     * @param indexMtime mtime of the index file the entry was read from, in nanoseconds
+     */
+    boolean matches(FileStat current, long indexMtime) {
+        return current != null && mtime == current.mtime && ctime == current.ctime
+                && size == current.size && inode == current.inode && mtime < indexMtime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof FileStat stat)) {
+            return false;
+        }
+        return mtime == stat.mtime && ctime == stat.ctime && size == stat.size && inode == stat.inode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mtime) * 31 + Long.hashCode(inode);
+    }
+}
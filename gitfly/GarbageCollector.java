@@ -0,0 +1,212 @@
+package gitfly;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+import static gitfly.Utils.*;
+
+/**
+ * Removes the objects that can no longer be reached from the repository.
+ * 1. Mark: every object reachable from refs/heads, HEAD, MERGE_HEAD, the index and TO_ADD is marked.
+ *    Commit chains and trees are walked in parallel on a fork/join pool. Blobs are never read.
+ * 2. Repack: the marked objects are written into a single new pack (see {@link PackFile}),
+ *    which also takes the chunks of the chunked blobs it reads (see {@link ChunkedBlob}),
+ *    and the commit-graph is rewritten with the reachable commits only (see {@link CommitGraph}).
+ * 3. Prune: old packs and loose objects are deleted.
+ *    Unreachable loose objects younger than the grace period are kept, since a concurrent
+ *    command may have just written them.
+ * gc holds index.lock (see {@link Stage#lock()}) from the mark to the prune, so no command stages or commits in between:
+ * such a command could skip writing an object it finds in an old pack, and reference it after the mark has missed it.
+ */
+class GarbageCollector {
+    /** Unreachable loose objects modified more recently than this are not pruned, unless --prune=now is given. */
+    static final long PRUNE_GRACE_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Runs the garbage collector.
+     * @param args optional "--prune=now", which prunes unreachable objects regardless of their age
+     */
+    static void gc(String... args) {
+        long grace = PRUNE_GRACE_MILLIS;
+        for (String arg : args) {
+            if (arg.equals("--prune=now")) {
+                grace = 0;
+            } else {
+                exit("Unknown gc option: %s", arg);
+            }
+        }
+
+        Stage.lock();
+        long start = System.nanoTime();
+        Set<ObjectId> reachable = mark();
+        long marked = System.nanoTime();
+        outputMessage("Marked %d reachable objects in %d ms using %d threads.", reachable.size(), millis(start, marked),
+                Workers.pool().getParallelism());
+
+        // the graph may hold commits that are about to be pruned
+        CommitGraph.rewrite(getCommitRoots());
+
+        List<ObjectId> packable = new ArrayList<>(reachable.size());
+        for (ObjectId id : reachable) {
+            if (ObjectStore.exists(id)) {
+                packable.add(id);
+            }
+        }
+        List<PackFile> oldPacks = new ArrayList<>(PackFile.getPacks());
+        PackFile newPack = packable.isEmpty() ? null : PackFile.write(packable);
+        long packed = System.nanoTime();
+        outputMessage("Packed %d objects in %d ms.", packable.size(), millis(marked, packed));
+
+        int pruned = 0;
+        long now = System.currentTimeMillis();
+        for (ObjectId id : ObjectStore.getLooseObjectIDs()) {
+            boolean inPack = newPack != null && newPack.contains(id);
+            // the chunks of chunked blobs aren't marked, but are in the new pack
+            boolean unreachable = !inPack && !reachable.contains(id);
+            if (inPack || (unreachable && now - ObjectStore.getLooseObjectFile(id).lastModified() >= grace)) {
+                ObjectStore.deleteLoose(id);
+                if (unreachable) {
+                    pruned++;
+                }
+            }
+        }
+        for (PackFile pack : oldPacks) {
+            if (newPack == null || !pack.getName().equals(newPack.getName())) {
+                for (ObjectId id : pack.getObjectIDs()) {
+                    if (!reachable.contains(id) && (newPack == null || !newPack.contains(id))) {
+                        pruned++;
+                    }
+                }
+                pack.delete();
+            }
+        }
+        PackFile.reload();
+        outputMessage("Pruned %d unreachable objects in %d ms.", pruned, millis(packed, System.nanoTime()));
+        exit("gc finished in %d ms.", millis(start, System.nanoTime()));
+    }
+
+    /**
+     * Marks every object reachable from the roots of the repository, on the shared pool (see {@link Workers}).
+     * @return the set of reachable object IDs
+     */
+    static Set<ObjectId> mark() {
+        Set<ObjectId> reachable = ConcurrentHashMap.newKeySet();
+        // the empty tree is the base every new tree is built on
+        reachable.add(Repository.EMPTY_FILE_ID);
+        for (ObjectId blobID : getIndexRoots()) {
+            reachable.add(blobID);
+        }
+        List<MarkCommits> tasks = new ArrayList<>();
+        for (ObjectId commitID : getCommitRoots()) {
+            tasks.add(new MarkCommits(commitID, reachable));
+        }
+        try {
+            Workers.pool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            exit("gc aborted, the repository is missing objects: %s", e.getMessage());
+        }
+        return reachable;
+    }
+
+    /**
+     * Returns the commits referenced by the branches, HEAD and MERGE_HEAD.
+     */
+    private static Set<ObjectId> getCommitRoots() {
+        Set<ObjectId> roots = new HashSet<>();
+        File[] branches = Repository.HEADS_DIR.listFiles();
+        if (branches != null) {
+            for (File branch : branches) {
+                roots.add(ObjectId.fromHex(fileContentsToString(branch)));
+            }
+        }
+        roots.add(Repository.getCurrentCommitID());
+        if (Repository.MERGE_HEAD.exists()) {
+            roots.add(ObjectId.fromHex(fileContentsToString(Repository.MERGE_HEAD)));
+        }
+        return roots;
+    }
+
+    /**
+     * Returns the blobs referenced by the index (at every stage) and by TO_ADD.
+     */
+    private static Set<ObjectId> getIndexRoots() {
+        Set<ObjectId> roots = new HashSet<>(Stage.getIndexFiles().values());
+        Stage.readFilesToBeAdded();
+        roots.addAll(Stage.TO_ADD_FILES.values());
+        // entries without an object, such as conflict stages missing on one side
+        roots.remove(null);
+        return roots;
+    }
+
+    private static long millis(long from, long to) {
+        return (to - from) / 1_000_000;
+    }
+
+    /**
+     * Walks a chain of commits down to the initial commit (or to the first commit that is already marked),
+     * forking a tree walk for every snapshot.
+     */
+    @SuppressWarnings("serial")
+    private static class MarkCommits extends RecursiveAction {
+        private final ObjectId commitID;
+        private final Set<ObjectId> reachable;
+
+        MarkCommits(ObjectId commitID, Set<ObjectId> reachable) {
+            this.commitID = commitID;
+            this.reachable = reachable;
+        }
+
+        @Override
+        protected void compute() {
+            List<MarkTree> trees = new ArrayList<>();
+            ObjectId current = commitID;
+            while (current != null && reachable.add(current)) {
+                MarkTree tree = new MarkTree(Commit.getSnapshotID(current), reachable);
+                tree.fork();
+                trees.add(tree);
+                current = Commit.getParentID(current);
+            }
+            for (MarkTree tree : trees) {
+                tree.join();
+            }
+        }
+    }
+
+    /**
+     * Marks a tree, its blobs, and (in parallel) its subtrees.
+     */
+    @SuppressWarnings("serial")
+    private static class MarkTree extends RecursiveAction {
+        private final ObjectId treeID;
+        private final Set<ObjectId> reachable;
+
+        MarkTree(ObjectId treeID, Set<ObjectId> reachable) {
+            this.treeID = treeID;
+            this.reachable = reachable;
+        }
+
+        @Override
+        protected void compute() {
+            if (!reachable.add(treeID)) {
+                return;
+            }
+            Tree tree = Tree.read(treeID);
+            List<MarkTree> subtrees = new ArrayList<>();
+            for (int i = 0; i < tree.size(); i++) {
+                if (tree.isTree(i)) {
+                    subtrees.add(new MarkTree(tree.getID(i), reachable));
+                } else {
+                    reachable.add(tree.getID(i));
+                }
+            }
+            invokeAll(subtrees);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package gitfly;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static gitfly.Utils.*;
+
+/**
+ * Binary file format shared by the index, TO_ADD and TO_REMOVE.
+ *
+ *     "GFIN" {version int} {entry count int} {restart interval int} {restart count int}
+ *     {restart offsets: one int per restart point}
+ *     {entry}*  where entry = {flags byte} {shared prefix length varint} {suffix length varint} {suffix bytes}
+ *                             [{ID, 20 bytes}] [{mtime long} {ctime long} {size long} {inode long}]
+ *     {SHA1 of everything above, 20 bytes}
+ *
+ * Entries are sorted by path (as unsigned UTF-8 bytes) and then by stage.
+ * The low bits of flags hold the stage (0 - not in conflict, 1..3 - conflict stages), NO_ID marks entries without an object ID
+ * (used by TO_REMOVE) and HAS_STAT marks entries carrying the stat data of the working directory file (see {@link FileStat}).
+ * Version 1 files are the same, except that they never contain stat data.
+ * Paths are prefix-compressed against the previous entry, except at restart points (every RESTART_INTERVAL entries),
+ * which store the full path. Lookups binary search the restart points through a MappedByteBuffer and then decode at most
+ * RESTART_INTERVAL entries, so a single path can be found without materializing the whole file.
+ */
+class IndexFile {
+    private static final byte[] MAGIC = {'G', 'F', 'I', 'N'};
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int RESTART_INTERVAL = 16;
+    private static final int RAW_ID_LENGTH = ObjectId.RAW_LENGTH;
+    private static final int CHECKSUM_LENGTH = 20;
+    private static final int STAGE_MASK = 0x0f;
+    private static final int NO_ID = 0x80;
+    private static final int HAS_STAT = 0x40;
+    private static final int STAT_LENGTH = 32;
+
+    private static final IndexFile EMPTY = new IndexFile(null, 0, 0, 0);
+
+    /**
+     * A single path of an index file.
+     */
+    static class Entry {
+        final String name;
+        final int stage;
+        /** SHA1 of the staged contents, or null for entries without an object (TO_REMOVE). */
+        final ObjectId id;
+        /** Stat data of the working directory file when it was last hashed, or null. */
+        final FileStat stat;
+        private final byte[] nameBytes;
+
+        Entry(String name, int stage, ObjectId id) {
+            this(name, stage, id, null);
+        }
+
+        Entry(String name, int stage, ObjectId id, FileStat stat) {
+            this.name = name;
+            this.stage = stage;
+            this.id = id;
+            this.stat = id == null ? null : stat;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Receives the entries of an index file, in order.
+     */
+    interface EntryVisitor {
+        void visit(String name, int stage, ObjectId id, FileStat stat);
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int restartCount;
+    private final long mtime;
+
+    private IndexFile(MappedByteBuffer buffer, int count, int restartCount, long mtime) {
+        this.buffer = buffer;
+        this.count = count;
+        this.restartCount = restartCount;
+        this.mtime = mtime;
+    }
+
+    /**
+     * Memory-maps an index file and verifies its checksum.
+     * Missing and empty files are read as an index without entries.
+     * @param file file to open
+     * @return the mapped file, or null if the file was written with Java serialization by an older gitfly
+     */
+    static IndexFile open(File file) {
+        if (!file.isFile() || file.length() == 0) {
+            return EMPTY;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.get(0) == (byte) 0xAC && buffer.get(1) == (byte) 0xED) {
+                return null;
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    throw new IllegalArgumentException("Not an index file: " + file.getPath());
+                }
+            }
+            if (buffer.getInt(4) != 1 && buffer.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("Unsupported index version " + buffer.getInt(4) + ": " + file.getPath());
+            }
+            verifyChecksum(buffer, file);
+            long mtime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+            return new IndexFile(buffer, buffer.getInt(8), buffer.getInt(16), mtime);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read index file " + file.getPath());
+        }
+    }
+
+    /**
+     * Writes entries to an index file. The entries are sorted first.
+     * The file is written next to its destination and then renamed over it, so readers (which may have the old
+     * file mapped) never see a partially written index.
+     * @param file destination
+     * @param entries entries to write
+     * @return size of the file written, in bytes
+     */
+    static long write(File file, Collection<Entry> entries) {
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, IndexFile::compare);
+        int restartCount = (sorted.length + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(sorted.length * 48);
+        byte[] raw = new byte[RAW_ID_LENGTH];
+        int[] restarts = new int[restartCount];
+        int bodyStart = HEADER_SIZE + restartCount * 4;
+        byte[] previous = new byte[0];
+        for (int i = 0; i < sorted.length; i++) {
+            Entry entry = sorted[i];
+            int shared = 0;
+            if (i % RESTART_INTERVAL == 0) {
+                restarts[i / RESTART_INTERVAL] = bodyStart + body.size();
+            } else {
+                int max = Math.min(previous.length, entry.nameBytes.length);
+                while (shared < max && previous[shared] == entry.nameBytes[shared]) {
+                    shared++;
+                }
+            }
+            body.write(entry.stage | (entry.id == null ? NO_ID : 0) | (entry.stat != null ? HAS_STAT : 0));
+            Delta.writeVarint(body, shared);
+            Delta.writeVarint(body, entry.nameBytes.length - shared);
+            body.write(entry.nameBytes, shared, entry.nameBytes.length - shared);
+            if (entry.id != null) {
+                entry.id.copyRawTo(raw, 0);
+                body.write(raw, 0, RAW_ID_LENGTH);
+            }
+            if (entry.stat != null) {
+                writeLong(body, entry.stat.mtime);
+                writeLong(body, entry.stat.ctime);
+                writeLong(body, entry.stat.size);
+                writeLong(body, entry.stat.inode);
+            }
+            previous = entry.nameBytes;
+        }
+
+        File temp = join(file.getParentFile(), file.getName() + ".tmp");
+        MessageDigest checksum = ObjectId.digest();
+        long length = 0;
+        try (FileOutputStream target = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new java.security.DigestOutputStream(target, checksum)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.length);
+            out.writeInt(RESTART_INTERVAL);
+            out.writeInt(restartCount);
+            for (int restart : restarts) {
+                out.writeInt(restart);
+            }
+            body.writeTo(out);
+            out.flush();
+            out.write(checksum.digest());
+            out.flush();
+            // on disk before the rename, so that a crash can't leave a renamed but empty index
+            target.getChannel().force(true);
+            length = out.size();
+        } catch (IOException e) {
+            temp.delete();
+            exit("Could not write %s.", file.getPath());
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            exit("Could not replace %s.", file.getPath());
+        }
+        return length;
+    }
+
+    /**
+     * Returns the mtime of the file when it was opened, in nanoseconds.
+     * Entries whose stat data is not older than this are racily clean (see {@link FileStat#matches(FileStat, long)}).
+     */
+    long getMtime() {
+        return mtime;
+    }
+
+    /**
+     * Returns the size of the file when it was opened, in bytes.
+     */
+    long getLength() {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+    /**
+     * Returns the checksum stored at the end of the file, which identifies its contents; all zeros if the file is missing or empty.
+     */
+    byte[] getChecksum() {
+        byte[] checksum = new byte[CHECKSUM_LENGTH];
+        if (buffer != null) {
+            buffer.get(buffer.capacity() - CHECKSUM_LENGTH, checksum);
+        }
+        return checksum;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Looks a single entry up without decoding the rest of the file.
+     * @param name path of the entry
+     * @param stage stage of the entry
+     * @return SHA1 of the entry, or null if there is no such entry (or it has no ID)
+     */
+    ObjectId get(String name, int stage) {
+        if (count == 0) {
+            return null;
+        }
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        // last restart point whose entry is <= key
+        int low = 0;
+        int high = restartCount - 1;
+        int start = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareRestart(mid, key, stage);
+            if (cmp <= 0) {
+                start = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+        int[] pos = {buffer.getInt(HEADER_SIZE + start * 4)};
+        byte[] current = new byte[Math.max(64, key.length)];
+        int end = Math.min(count, (start + 1) * RESTART_INTERVAL);
+        for (int i = start * RESTART_INTERVAL; i < end; i++) {
+            int flags = buffer.get(pos[0]++) & 0xff;
+            int shared = readVarint(pos);
+            int suffix = readVarint(pos);
+            if (shared + suffix > current.length) {
+                current = Arrays.copyOf(current, Math.max(shared + suffix, current.length * 2));
+            }
+            buffer.get(pos[0], current, shared, suffix);
+            pos[0] += suffix;
+            int cmp = compare(current, shared + suffix, flags & STAGE_MASK, key, stage);
+            if (cmp == 0) {
+                return (flags & NO_ID) != 0 ? null : readID(pos[0]);
+            } else if (cmp > 0) {
+                return null;
+            }
+            if ((flags & NO_ID) == 0) {
+                pos[0] += RAW_ID_LENGTH;
+            }
+            if ((flags & HAS_STAT) != 0) {
+                pos[0] += STAT_LENGTH;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes every entry, in order.
+     * @param visitor receives the entries
+     */
+    void forEach(EntryVisitor visitor) {
+        if (count == 0) {
+            return;
+        }
+        int[] pos = {HEADER_SIZE + restartCount * 4};
+        byte[] current = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int flags = buffer.get(pos[0]++) & 0xff;
+            int shared = readVarint(pos);
+            int suffix = readVarint(pos);
+            if (shared + suffix > current.length) {
+                current = Arrays.copyOf(current, Math.max(shared + suffix, current.length * 2));
+            }
+            buffer.get(pos[0], current, shared, suffix);
+            pos[0] += suffix;
+            ObjectId id = null;
+            if ((flags & NO_ID) == 0) {
+                id = readID(pos[0]);
+                pos[0] += RAW_ID_LENGTH;
+            }
+            FileStat stat = null;
+            if ((flags & HAS_STAT) != 0) {
+                int at = pos[0];
+                stat = new FileStat(buffer.getLong(at), buffer.getLong(at + 8), buffer.getLong(at + 16), buffer.getLong(at + 24));
+                pos[0] += STAT_LENGTH;
+            }
+            visitor.visit(new String(current, 0, shared + suffix, StandardCharsets.UTF_8), flags & STAGE_MASK, id, stat);
+        }
+    }
+
+    private int compareRestart(int restart, byte[] key, int stage) {
+        int[] pos = {buffer.getInt(HEADER_SIZE + restart * 4)};
+        int flags = buffer.get(pos[0]++) & 0xff;
+        readVarint(pos);
+        int length = readVarint(pos);
+        byte[] name = new byte[length];
+        buffer.get(pos[0], name);
+        return compare(name, length, flags & STAGE_MASK, key, stage);
+    }
+
+    private ObjectId readID(int position) {
+        return ObjectId.fromRaw(buffer, position);
+    }
+
+    private int readVarint(int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.get(pos[0]++) & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static int compare(Entry a, Entry b) {
+        return compare(a.nameBytes, a.nameBytes.length, a.stage, b.nameBytes, b.stage);
+    }
+
+    private static int compare(byte[] name, int length, int stage, byte[] key, int keyStage) {
+        int cmp = Arrays.compareUnsigned(name, 0, length, key, 0, key.length);
+        return cmp != 0 ? cmp : Integer.compare(stage, keyStage);
+    }
+
+    private static void verifyChecksum(MappedByteBuffer buffer, File file) {
+        int length = buffer.capacity() - CHECKSUM_LENGTH;
+        if (length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated index file: " + file.getPath());
+        }
+        MessageDigest digest = ObjectId.digest();
+        digest.update(buffer.slice(0, length));
+        byte[] expected = new byte[CHECKSUM_LENGTH];
+        buffer.get(length, expected);
+        if (!MessageDigest.isEqual(digest.digest(), expected)) {
+            throw new IllegalArgumentException("Index file checksum mismatch: " + file.getPath());
+        }
+    }
+}
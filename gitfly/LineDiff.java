@@ -0,0 +1,520 @@
+package gitfly;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Line diffs of byte arrays. Files are split into {@link Lines}, which only record where each line starts;
+ * every distinct line is then given an integer id with a hash table that compares the bytes in place (see
+ * {@link #intern(Lines...)}), so the algorithms compare ints and never build a String per line.
+ *
+ *     MYERS      Myers' O(ND) algorithm, in its linear space variant: finds a shortest edit script
+ *     HISTOGRAM  splits the files around the longest run of lines that occur the least in the old file, then recurses
+ *                on both sides; falls back to Myers for regions where every common line is too frequent.
+ *                Lines such as "}" or blank lines don't drag unrelated parts of the files together, which makes its
+ *                diffs easier to read, and it is usually faster than Myers on large files
+ *
+ * Both return the differences as {@link Edit}s, which also drive {@link LineMerge} and the unified diffs of the diff command.
+ */
+class LineDiff {
+    enum Algorithm {
+        MYERS, HISTOGRAM;
+
+        /**
+         * Returns the algorithm with the given name, in any case, or null if there is none.
+         */
+        static Algorithm parse(String name) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.name().equalsIgnoreCase(name == null ? "" : name.trim())) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Lines occurring more often than this in a region of the old file are not used to split it (histogram). */
+    private static final int MAX_CHAIN_LENGTH = 64;
+    /** Files with a NUL byte in their first BINARY_PROBE bytes are binary, and aren't diffed line by line. */
+    private static final int BINARY_PROBE = 8000;
+
+    /**
+     * The lines of a byte array. Line i spans starts[i] (inclusive) to starts[i + 1] (exclusive) and includes its '\n';
+     * the last line has none if the contents don't end with one.
+     */
+    static class Lines {
+        final byte[] content;
+        private final int[] starts;
+
+        Lines(byte[] content) {
+            this.content = content;
+            int count = 0;
+            for (byte b : content) {
+                if (b == '\n') {
+                    count++;
+                }
+            }
+            boolean unterminated = content.length > 0 && content[content.length - 1] != '\n';
+            starts = new int[count + (unterminated ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < content.length; i++) {
+                if (content[i] == '\n') {
+                    starts[line++] = i + 1;
+                }
+            }
+            starts[starts.length - 1] = content.length;
+        }
+
+        int size() {
+            return starts.length - 1;
+        }
+
+        int start(int line) {
+            return starts[line];
+        }
+
+        int end(int line) {
+            return starts[line + 1];
+        }
+
+        /**
+         * Returns whether a line ends with '\n'; only the last line may not.
+         */
+        boolean isTerminated(int line) {
+            return end(line) > start(line) && content[end(line) - 1] == '\n';
+        }
+
+        /**
+         * Writes lines from (inclusive) to to (exclusive), as they are.
+         */
+        void write(ByteArrayOutputStream out, int from, int to) {
+            if (from < to) {
+                out.write(content, start(from), end(to - 1) - start(from));
+            }
+        }
+
+        /**
+         * Returns whether lines [from, to) hold the same bytes as lines [otherFrom, otherTo) of other.
+         */
+        boolean equals(int from, int to, Lines other, int otherFrom, int otherTo) {
+            if (to - from != otherTo - otherFrom) {
+                return false;
+            }
+            if (from == to) {
+                return true;
+            }
+            return Arrays.equals(content, start(from), end(to - 1), other.content, other.start(otherFrom), other.end(otherTo - 1));
+        }
+    }
+
+    /**
+     * A region that differs: lines [beginA, endA) of the old file were replaced by lines [beginB, endB) of the new one.
+     * An empty A range is an insertion, an empty B range a deletion.
+     */
+    static class Edit {
+        final int beginA;
+        final int endA;
+        final int beginB;
+        final int endB;
+
+        Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+
+        @Override
+        public String toString() {
+            return "Edit[" + beginA + "-" + endA + "," + beginB + "-" + endB + "]";
+        }
+    }
+
+    /**
+     * Returns whether contents look binary: a NUL byte in the first few thousand bytes, as git decides.
+     */
+    static boolean isBinary(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, BINARY_PROBE); i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the edits that turn a into b.
+     * @return the edits, sorted, with no two of them touching
+     */
+    static List<Edit> diff(Lines a, Lines b, Algorithm algorithm) {
+        int[][] ids = intern(a, b);
+        return diff(ids[0], ids[1], algorithm);
+    }
+
+    /**
+     * Computes the edits that turn sequence a into sequence b, given as line ids (see {@link #intern(Lines...)}).
+     */
+    static List<Edit> diff(int[] a, int[] b, Algorithm algorithm) {
+        List<Edit> edits = new ArrayList<>();
+        if (algorithm == Algorithm.MYERS) {
+            new Myers(a, b, edits).compare(0, a.length, 0, b.length);
+        } else {
+            new Histogram(a, b, edits).run();
+        }
+        return normalize(edits);
+    }
+
+    /**
+     * Gives every line of the texts an id, so that two lines, of the same text or of different ones, have the same id
+     * if and only if they hold the same bytes.
+     * @return the ids of the lines of each text, in the order of the texts
+     */
+    static int[][] intern(Lines... texts) {
+        int total = 0;
+        for (Lines text : texts) {
+            total += text.size();
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, total * 2 - 1)) << 1;
+        int mask = capacity - 1;
+        // slot -> id + 1 (0 = empty); id -> hash, and text and line of its first occurrence
+        int[] table = new int[capacity];
+        int[] hashes = new int[total];
+        int[] owners = new int[total];
+        int[] lines = new int[total];
+        int count = 0;
+        int[][] ids = new int[texts.length][];
+        for (int t = 0; t < texts.length; t++) {
+            Lines text = texts[t];
+            ids[t] = new int[text.size()];
+            for (int line = 0; line < text.size(); line++) {
+                int hash = hash(text.content, text.start(line), text.end(line));
+                int slot = hash & mask;
+                while (true) {
+                    int entry = table[slot];
+                    if (entry == 0) {
+                        hashes[count] = hash;
+                        owners[count] = t;
+                        lines[count] = line;
+                        table[slot] = ++count;
+                        ids[t][line] = count - 1;
+                        break;
+                    }
+                    int id = entry - 1;
+                    Lines other = texts[owners[id]];
+                    if (hashes[id] == hash && other.equals(lines[id], lines[id] + 1, text, line, line + 1)) {
+                        ids[t][line] = id;
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static int hash(byte[] content, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + content[i];
+        }
+        // spreads the low bits, which pick the slot
+        return hash ^ (hash >>> 16) ^ (hash >>> 7);
+    }
+
+    /**
+     * Sorts edits and merges the ones that touch, such as a deletion followed by an insertion at the same place.
+     */
+    private static List<Edit> normalize(List<Edit> edits) {
+        edits.sort(Comparator.comparingInt((Edit e) -> e.beginA).thenComparingInt(e -> e.beginB));
+        List<Edit> merged = new ArrayList<>(edits.size());
+        for (Edit edit : edits) {
+            if (edit.beginA == edit.endA && edit.beginB == edit.endB) {
+                continue;
+            }
+            Edit last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last.endA == edit.beginA && last.endB == edit.beginB) {
+                merged.set(merged.size() - 1, new Edit(last.beginA, edit.endA, last.beginB, edit.endB));
+            } else {
+                merged.add(edit);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Myers' algorithm, "An O(ND) Difference Algorithm and Its Variations" (1986), section 4b: finds the middle snake
+     * of the shortest edit script with a forward and a backward search, then recurses on both halves.
+     */
+    private static class Myers {
+        private final int[] a;
+        private final int[] b;
+        private final List<Edit> edits;
+        /**
+         * Furthest x reached on each diagonal, searching forward and backward; indexed by offset + k, where the diagonal
+         * is x - y = k forward and x - y = k + delta backward.
+         */
+        private final int[] forward;
+        private final int[] backward;
+        private final int offset;
+
+        Myers(int[] a, int[] b, List<Edit> edits) {
+            this.a = a;
+            this.b = b;
+            this.edits = edits;
+            offset = a.length + b.length + 2;
+            forward = new int[2 * offset + 1];
+            backward = new int[2 * offset + 1];
+        }
+
+        void compare(int a0, int a1, int b0, int b1) {
+            while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+                a0++;
+                b0++;
+            }
+            while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+                a1--;
+                b1--;
+            }
+            if (a0 == a1 || b0 == b1) {
+                edits.add(new Edit(a0, a1, b0, b1));
+                return;
+            }
+            int[] snake = middleSnake(a0, a1, b0, b1);
+            compare(a0, snake[0], b0, snake[1]);
+            compare(snake[2], a1, snake[3], b1);
+        }
+
+        /**
+         * Returns the start and end {x, y, u, v} of the middle snake of a[a0, a1) and b[b0, b1), in absolute positions.
+         */
+        private int[] middleSnake(int a0, int a1, int b0, int b1) {
+            int n = a1 - a0;
+            int m = b1 - b0;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0;
+            forward[offset + 1] = 0;
+            backward[offset - 1] = n;
+            for (int d = 0; d <= (n + m + 1) / 2; d++) {
+                for (int k = -d; k <= d; k += 2) {
+                    int x;
+                    if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                        x = forward[offset + k + 1];
+                    } else {
+                        x = forward[offset + k - 1] + 1;
+                    }
+                    int y = x - k;
+                    int startX = x;
+                    int startY = y;
+                    while (x < n && y < m && a[a0 + x] == b[b0 + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[offset + k] = x;
+                    if (odd && k >= delta - (d - 1) && k <= delta + (d - 1) && x >= backward[offset + k - delta]) {
+                        return new int[]{a0 + startX, b0 + startY, a0 + x, b0 + y};
+                    }
+                }
+                for (int k = -d; k <= d; k += 2) {
+                    int diagonal = k + delta;
+                    int x;
+                    if (k == d || (k != -d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                        x = backward[offset + k - 1];
+                    } else {
+                        x = backward[offset + k + 1] - 1;
+                    }
+                    int y = x - diagonal;
+                    int endX = x;
+                    int endY = y;
+                    while (x > 0 && y > 0 && a[a0 + x - 1] == b[b0 + y - 1]) {
+                        x--;
+                        y--;
+                    }
+                    backward[offset + k] = x;
+                    if (!odd && diagonal >= -d && diagonal <= d && x <= forward[offset + diagonal]) {
+                        return new int[]{a0 + x, b0 + y, a0 + endX, b0 + endY};
+                    }
+                }
+            }
+            throw new IllegalStateException("No middle snake");
+        }
+    }
+
+    /**
+     * Histogram diff, as in JGit: the regions left to diff are kept on a stack rather than recursed into,
+     * so that files with many small changes can't overflow the call stack.
+     */
+    private static class Histogram {
+        private final int[] a;
+        private final int[] b;
+        private final List<Edit> edits;
+        /** For each line id: the number of times it occurs in the region of a being split, and its first position. */
+        private final int[] counts;
+        private final int[] heads;
+        /** For each position of a: the next position in the region with the same line, or -1. */
+        private final int[] next;
+        private Myers myers;
+
+        Histogram(int[] a, int[] b, List<Edit> edits) {
+            this.a = a;
+            this.b = b;
+            this.edits = edits;
+            int ids = 0;
+            for (int id : a) {
+                ids = Math.max(ids, id + 1);
+            }
+            counts = new int[ids];
+            heads = new int[ids];
+            Arrays.fill(heads, -1);
+            next = new int[a.length];
+        }
+
+        void run() {
+            Deque<int[]> regions = new ArrayDeque<>();
+            regions.push(new int[]{0, a.length, 0, b.length});
+            while (!regions.isEmpty()) {
+                int[] region = regions.pop();
+                split(region[0], region[1], region[2], region[3], regions);
+            }
+        }
+
+        private void split(int a0, int a1, int b0, int b1, Deque<int[]> regions) {
+            while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+                a0++;
+                b0++;
+            }
+            while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+                a1--;
+                b1--;
+            }
+            if (a0 == a1 || b0 == b1) {
+                edits.add(new Edit(a0, a1, b0, b1));
+                return;
+            }
+            for (int i = a1 - 1; i >= a0; i--) {
+                int id = a[i];
+                next[i] = heads[id];
+                heads[id] = i;
+                counts[id]++;
+            }
+            int bestCount = MAX_CHAIN_LENGTH + 1;
+            int bestLength = 0;
+            int bestA = 0;
+            int bestB = 0;
+            boolean frequent = false;
+            for (int bi = b0; bi < b1; ) {
+                int id = b[bi];
+                int nextB = bi + 1;
+                if (id < counts.length && counts[id] > 0) {
+                    if (counts[id] > MAX_CHAIN_LENGTH) {
+                        frequent = true;
+                    } else if (counts[id] <= bestCount) {
+                        for (int ai = heads[id]; ai != -1; ai = next[ai]) {
+                            int startA = ai;
+                            int startB = bi;
+                            int count = counts[id];
+                            while (startA > a0 && startB > b0 && a[startA - 1] == b[startB - 1]) {
+                                startA--;
+                                startB--;
+                                count = Math.min(count, counts[a[startA]]);
+                            }
+                            int endA = ai + 1;
+                            int endB = bi + 1;
+                            while (endA < a1 && endB < b1 && a[endA] == b[endB]) {
+                                count = Math.min(count, counts[a[endA]]);
+                                endA++;
+                                endB++;
+                            }
+                            if (count < bestCount || (count == bestCount && endA - startA > bestLength)) {
+                                bestCount = count;
+                                bestLength = endA - startA;
+                                bestA = startA;
+                                bestB = startB;
+                            }
+                            nextB = Math.max(nextB, endB);
+                        }
+                    }
+                }
+                bi = nextB;
+            }
+            for (int i = a0; i < a1; i++) {
+                heads[a[i]] = -1;
+                counts[a[i]] = 0;
+            }
+            if (bestLength == 0) {
+                if (frequent) {
+                    if (myers == null) {
+                        myers = new Myers(a, b, edits);
+                    }
+                    myers.compare(a0, a1, b0, b1);
+                } else {
+                    edits.add(new Edit(a0, a1, b0, b1));
+                }
+                return;
+            }
+            regions.push(new int[]{bestA + bestLength, a1, bestB + bestLength, b1});
+            regions.push(new int[]{a0, bestA, b0, bestB});
+        }
+    }
+
+    /**
+     * Writes the edits as the hunks of a unified diff, with the given number of lines of context around each change.
+     * Hunks whose context would overlap are joined.
+     */
+    static void writeUnified(ByteArrayOutputStream out, Lines a, Lines b, List<Edit> edits, int context) {
+        int i = 0;
+        while (i < edits.size()) {
+            // edits [i, j) form one hunk
+            int j = i + 1;
+            while (j < edits.size() && edits.get(j).beginA - edits.get(j - 1).endA <= 2 * context) {
+                j++;
+            }
+            Edit first = edits.get(i);
+            Edit last = edits.get(j - 1);
+            int startA = Math.max(0, first.beginA - context);
+            int startB = first.beginB - (first.beginA - startA);
+            int endA = Math.min(a.size(), last.endA + context);
+            int endB = last.endB + (endA - last.endA);
+            write(out, "@@ -" + range(startA, endA - startA) + " +" + range(startB, endB - startB) + " @@\n");
+            int lineA = startA;
+            for (int e = i; e < j; e++) {
+                Edit edit = edits.get(e);
+                writeLines(out, ' ', a, lineA, edit.beginA);
+                writeLines(out, '-', a, edit.beginA, edit.endA);
+                writeLines(out, '+', b, edit.beginB, edit.endB);
+                lineA = edit.endA;
+            }
+            writeLines(out, ' ', a, lineA, endA);
+            i = j;
+        }
+    }
+
+    /**
+     * Returns the range of a hunk header: the first line (counted from 1, or the line before an empty range) and the count.
+     */
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    private static void writeLines(ByteArrayOutputStream out, char prefix, Lines lines, int from, int to) {
+        for (int line = from; line < to; line++) {
+            out.write(prefix);
+            out.write(lines.content, lines.start(line), lines.end(line) - lines.start(line));
+            if (!lines.isTerminated(line)) {
+                write(out, "\n\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,161 @@
+package gitfly;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Three-way merge of the lines of a file, as diff3 does it. Both versions are diffed against the base
+ * (see {@link LineDiff}); the edits of either side are then walked in the order of the base lines, and edits of the two
+ * sides that overlap (or insert at the same place) are grouped in a chunk:
+ *
+ *     a chunk changed by one side only       takes that side's lines
+ *     a chunk changed the same way by both   takes those lines once
+ *     any other chunk                        is a conflict, written between markers:
+ *
+ *         <<<<<<< HEAD
+ *         receiver's lines
+ *         ||||||| base
+ *         base lines
+ *         =======
+ *         giver's lines
+ *         >>>>>>> giver branch
+ *
+ * Base lines outside every chunk are copied as they are. Two edits that only touch (one ends on the line where the other
+ * starts) don't conflict, unless one of them is an insertion at that line.
+ */
+class LineMerge {
+    /**
+     * Merged contents, with conflict markers around the chunks both sides changed differently.
+     */
+    static class Result {
+        final byte[] content;
+        final int conflicts;
+
+        Result(byte[] content, int conflicts) {
+            this.content = content;
+            this.conflicts = conflicts;
+        }
+
+        boolean isClean() {
+            return conflicts == 0;
+        }
+    }
+
+    /**
+     * Merges the changes that receiver and giver made to base.
+     * @param base contents of the common ancestor, empty if the file didn't exist
+     * @param receiverLabel name of the receiver in the conflict markers
+     * @param giverLabel name of the giver in the conflict markers
+     */
+    static Result merge(byte[] base, byte[] receiver, byte[] giver, String receiverLabel, String giverLabel, LineDiff.Algorithm algorithm) {
+        LineDiff.Lines baseLines = new LineDiff.Lines(base);
+        LineDiff.Lines receiverLines = new LineDiff.Lines(receiver);
+        LineDiff.Lines giverLines = new LineDiff.Lines(giver);
+        int[][] ids = LineDiff.intern(baseLines, receiverLines, giverLines);
+        List<LineDiff.Edit> ours = LineDiff.diff(ids[0], ids[1], algorithm);
+        List<LineDiff.Edit> theirs = LineDiff.diff(ids[0], ids[2], algorithm);
+
+        Output out = new Output(Math.max(receiver.length, giver.length) + 64);
+        int conflicts = 0;
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        // line of a side = line of the base + delta, for base lines that come after that side's edits so far
+        int oursDelta = 0;
+        int theirsDelta = 0;
+        while (i < ours.size() || j < theirs.size()) {
+            boolean oursFirst = j == theirs.size() || (i < ours.size() && ours.get(i).beginA <= theirs.get(j).beginA);
+            LineDiff.Edit first = oursFirst ? ours.get(i) : theirs.get(j);
+            int start = first.beginA;
+            int end = first.endA;
+            int oursEnd = i;
+            int theirsEnd = j;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                while (oursEnd < ours.size() && overlaps(ours.get(oursEnd), start, end, oursEnd == i && oursFirst)) {
+                    end = Math.max(end, ours.get(oursEnd++).endA);
+                    grown = true;
+                }
+                while (theirsEnd < theirs.size() && overlaps(theirs.get(theirsEnd), start, end, theirsEnd == j && !oursFirst)) {
+                    end = Math.max(end, theirs.get(theirsEnd++).endA);
+                    grown = true;
+                }
+            }
+            baseLines.write(out, position, start);
+
+            int oursShift = shift(ours, i, oursEnd);
+            int theirsShift = shift(theirs, j, theirsEnd);
+            int oursStart = start + oursDelta;
+            int oursStop = end + oursDelta + oursShift;
+            int theirsStart = start + theirsDelta;
+            int theirsStop = end + theirsDelta + theirsShift;
+            if (theirsEnd == j) {
+                receiverLines.write(out, oursStart, oursStop);
+            } else if (oursEnd == i || receiverLines.equals(oursStart, oursStop, giverLines, theirsStart, theirsStop)) {
+                giverLines.write(out, theirsStart, theirsStop);
+            } else {
+                conflicts++;
+                marker(out, "<<<<<<< " + receiverLabel);
+                receiverLines.write(out, oursStart, oursStop);
+                marker(out, "||||||| base");
+                baseLines.write(out, start, end);
+                marker(out, "=======");
+                giverLines.write(out, theirsStart, theirsStop);
+                marker(out, ">>>>>>> " + giverLabel);
+            }
+            oursDelta += oursShift;
+            theirsDelta += theirsShift;
+            position = end;
+            i = oursEnd;
+            j = theirsEnd;
+        }
+        baseLines.write(out, position, baseLines.size());
+        return new Result(out.toByteArray(), conflicts);
+    }
+
+    /**
+     * Returns whether an edit belongs to the chunk [start, end) of base lines: it overlaps it, or inserts at one of its
+     * ends, or the chunk is an insertion at the line where the edit starts.
+     * @param opens whether the edit is the one the chunk was started with
+     */
+    private static boolean overlaps(LineDiff.Edit edit, int start, int end, boolean opens) {
+        if (opens || edit.beginA < end) {
+            return true;
+        }
+        return edit.beginA == end && (edit.beginA == edit.endA || start == end);
+    }
+
+    /**
+     * Returns how many lines edits [from, to) add to their side, in total.
+     */
+    private static int shift(List<LineDiff.Edit> edits, int from, int to) {
+        int shift = 0;
+        for (int e = from; e < to; e++) {
+            LineDiff.Edit edit = edits.get(e);
+            shift += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+        }
+        return shift;
+    }
+
+    /**
+     * Writes a conflict marker on a line of its own, ending the previous line first if it has no '\n'.
+     */
+    private static void marker(Output out, String marker) {
+        if (out.size() > 0 && out.last() != '\n') {
+            out.write('\n');
+        }
+        out.writeBytes((marker + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+        Output(int size) {
+            super(size);
+        }
+
+        byte last() {
+            return buf[count - 1];
+        }
+    }
+}
@@ -1,18 +1,64 @@
 package gitfly;
 import static gitfly.Utils.*;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class Main {
     // Usage: java gitfly.Main <command> <arg1> <arg2> ...
+    // Commands are forwarded to the repository's daemon when one is running (see Daemon), and run in this process otherwise.
+    // Set GITFLY_NO_DAEMON to always run them in this process.
+    // java gitfly.Main --stats <command> ... prints what the command spent its time on to stderr (see Telemetry).
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && !args[0].equals("daemon") && System.getenv("GITFLY_NO_DAEMON") == null) {
+            int code = DaemonClient.forward(args);
+            if (code >= 0) {
+                System.out.flush();
+                if (code != 0) {
+                    System.exit(code);
+                }
+                return;
+            }
+        }
+        try {
+            run(args);
+        } catch (ExitException ignored) {
+            // the command ended early through Utils.exit, which already printed its message
+        }
+    }
+
+    /**
+     * Runs a command in this process.
+     * @param args the command name followed by its arguments
+     * @throws ExitException if the command ends early through {@link Utils#exit(String, Object...)}
+     */
+    static void run(String[] args) throws IOException {
         if (args.length == 0) {
             exit("Please specify a command.");
         }
+        if (args[0].equals("--stats")) {
+            String[] command = Arrays.copyOfRange(args, 1, args.length);
+            Telemetry.enableStats();
+            try {
+                run(command);
+            } finally {
+                Telemetry.printStats(command.length == 0 ? "" : command[0], System.err);
+            }
+            return;
+        }
 
         String commandName = args[0];
         String[] commandArgs = new String[args.length - 1];
         System.arraycopy(args, 1, commandArgs, 0, commandArgs.length);
 
+        try {
+            runCommand(commandName, commandArgs);
+        } finally {
+            // commands that change the staging area lock it (see Stage)
+            Stage.unlock();
+        }
+    }
+
+    private static void runCommand(String commandName, String[] commandArgs) throws IOException {
         switch (commandName) {
             case "init" -> {
                 checkNumberOfArguments(commandArgs, 0);
@@ -32,8 +78,11 @@ public class Main {
             }
             case "log" -> {
                 Repository.checkIfGitflyInitialized();
-                checkNumberOfArguments(commandArgs, 0);
-                Repository.log();
+                Repository.log(commandArgs);
+            }
+            case "diff" -> {
+                Repository.checkIfGitflyInitialized();
+                Repository.printDiff(commandArgs);
             }
             case "branch" -> {
                 Repository.checkIfGitflyInitialized();
@@ -59,6 +108,16 @@ public class Main {
                 checkNumberOfArguments(commandArgs, 1);
                 Repository.merge(commandArgs[0]);
             }
+            case "repack" -> {
+                Repository.checkIfGitflyInitialized();
+                checkNumberOfArguments(commandArgs, 0);
+                Repository.repack();
+            }
+            case "gc" -> {
+                Repository.checkIfGitflyInitialized();
+                GarbageCollector.gc(commandArgs);
+            }
+            case "daemon" -> Daemon.run(commandArgs);
             default -> exit("Unknown command: %s", commandName);
         }
     }
@@ -0,0 +1,110 @@
+package gitfly;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * In-process cache of parsed objects ({@link Commit}s and {@link Tree}s), shared by every command.
+ * Walking history or comparing snapshots touches the same commits and trees over and over;
+ * with the cache each of them is read from the object store and parsed once per process.
+ * The cache is an LRU bounded by the estimated memory use of its entries rather than by their number,
+ * so a few huge trees can't push the process out of memory. Entries larger than a quarter of the budget are not cached.
+ * Objects are immutable, so entries never become stale.
+ */
+class ObjectCache {
+    /** Estimated memory the cached entries may use, in bytes. */
+    static final long MAX_WEIGHT = 32L * 1024 * 1024;
+
+    /**
+     * An object that can be cached.
+     */
+    interface Cacheable {
+        /**
+         * Returns an estimate of the memory used by this object, in bytes.
+         */
+        long getWeight();
+    }
+
+    private static final LinkedHashMap<ObjectId, Cacheable> ENTRIES = new LinkedHashMap<>(256, 0.75f, true);
+    private static long weight;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    /**
+     * Returns a cached object, loading and caching it on a miss.
+     * The loader runs outside the cache lock, so several threads may load different objects at the same time.
+     * @param id SHA1 of the object
+     * @param type expected class of the object
+     * @param loader reads and parses the object on a miss
+     */
+    static <T extends Cacheable> T get(ObjectId id, Class<T> type, Function<ObjectId, T> loader) {
+        synchronized (ObjectCache.class) {
+            Cacheable cached = ENTRIES.get(id);
+            if (type.isInstance(cached)) {
+                hits++;
+                return type.cast(cached);
+            }
+            misses++;
+        }
+        T value = loader.apply(id);
+        put(id, value);
+        return value;
+    }
+
+    /**
+     * Adds an object to the cache, evicting the least recently used entries if it goes over MAX_WEIGHT.
+     * @param id SHA1 of the object
+     * @param value parsed object
+     */
+    static synchronized void put(ObjectId id, Cacheable value) {
+        long entryWeight = value.getWeight();
+        if (entryWeight > MAX_WEIGHT / 4) {
+            return;
+        }
+        Cacheable old = ENTRIES.put(id, value);
+        if (old != null) {
+            weight -= old.getWeight();
+        }
+        weight += entryWeight;
+        Iterator<Map.Entry<ObjectId, Cacheable>> eldest = ENTRIES.entrySet().iterator();
+        while (weight > MAX_WEIGHT && eldest.hasNext()) {
+            weight -= eldest.next().getValue().getWeight();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes every entry. The counters are kept.
+     */
+    static synchronized void clear() {
+        ENTRIES.clear();
+        weight = 0;
+    }
+
+    static synchronized long getHits() {
+        return hits;
+    }
+
+    static synchronized long getMisses() {
+        return misses;
+    }
+
+    static synchronized long getEvictions() {
+        return evictions;
+    }
+
+    static synchronized int size() {
+        return ENTRIES.size();
+    }
+
+    /**
+     * Returns the estimated memory used by the cached entries, in bytes.
+     */
+    static synchronized long getWeight() {
+        return weight;
+    }
+}
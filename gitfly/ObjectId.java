@@ -0,0 +1,264 @@
+package gitfly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Immutable SHA1 of an object.
+ * The 20 bytes are kept in three primitive words instead of a 40 character String, which makes equals and hashCode
+ * a few integer comparisons and shrinks the maps from paths to SHA1s.
+ * Hex conversions are table driven, and hashing reuses one MessageDigest per thread.
+ */
+final class ObjectId implements Comparable<ObjectId> {
+    static final int RAW_LENGTH = 20;
+    static final int HEX_LENGTH = 40;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Value of every ASCII character as a hex digit, or -1. */
+    private static final byte[] HEX_VALUES = new byte[128];
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(ObjectId::newDigest);
+
+    static {
+        java.util.Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < HEX_DIGITS.length; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    /** Bytes 0..7, big-endian. */
+    private final long w1;
+    /** Bytes 8..15, big-endian. */
+    private final long w2;
+    /** Bytes 16..19, big-endian. */
+    private final int w3;
+
+    private ObjectId(long w1, long w2, int w3) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * Parses 40 hex digits.
+     * @throws IllegalArgumentException if the string is not a valid SHA1
+     */
+    static ObjectId fromHex(String hex) {
+        if (!isValidHex(hex)) {
+            throw new IllegalArgumentException("Not a valid object ID: " + hex);
+        }
+        return new ObjectId(hexWord(hex, 0, 16), hexWord(hex, 16, 16), (int) hexWord(hex, 32, 8));
+    }
+
+    /**
+     * Returns whether a string is made of exactly 40 hex digits.
+     */
+    static boolean isValidHex(String hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = hex.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a raw 20 byte SHA1.
+     * @param raw array holding the SHA1
+     * @param offset position of the first byte
+     */
+    static ObjectId fromRaw(byte[] raw, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(raw, offset, RAW_LENGTH);
+        return new ObjectId(buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    /**
+     * Reads a raw 20 byte SHA1 at an absolute position of a buffer.
+     */
+    static ObjectId fromRaw(ByteBuffer buffer, int position) {
+        return new ObjectId(buffer.getLong(position), buffer.getLong(position + 8), buffer.getInt(position + 16));
+    }
+
+    /**
+     * Returns the SHA1 of a byte array.
+     */
+    static ObjectId hash(byte[] data) {
+        return hash(data, 0, data.length);
+    }
+
+    /**
+     * Returns the SHA1 of a part of a byte array.
+     */
+    static ObjectId hash(byte[] data, int offset, int length) {
+        Telemetry.Hash event = new Telemetry.Hash();
+        event.start();
+        MessageDigest digest = digest();
+        digest.update(data, offset, length);
+        ObjectId id = fromRaw(digest.digest(), 0);
+        event.bytes = length;
+        event.finish(Telemetry.Phase.HASH, length);
+        return id;
+    }
+
+    /**
+     * Returns the SHA1 of a file's contents, reading it in fixed size buffers so that memory use doesn't depend on the file size.
+     */
+    static ObjectId hash(File file) {
+        Telemetry.Hash event = new Telemetry.Hash();
+        event.start();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest digest = digest();
+            ByteBuffer buffer = ByteBuffer.allocate(ObjectStore.STREAM_BUFFER_SIZE);
+            long bytes = 0;
+            while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                bytes += buffer.remaining();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            event.bytes = bytes;
+            event.finish(Telemetry.Phase.HASH, bytes);
+            return fromRaw(digest.digest(), 0);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read contents of file");
+        }
+    }
+
+    /**
+     * Returns this thread's SHA1 digest, reset and ready to use.
+     * Callers must finish with the digest before hashing anything else on the same thread.
+     */
+    static MessageDigest digest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Compares this ID with the raw SHA1 at an absolute position of a buffer, in unsigned byte order.
+     */
+    int compareTo(ByteBuffer buffer, int position) {
+        int cmp = Long.compareUnsigned(w1, buffer.getLong(position));
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(w2, buffer.getLong(position + 8));
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w3, buffer.getInt(position + 16));
+        }
+        return cmp;
+    }
+
+    /**
+     * Returns the first byte of this ID, used by fanout tables.
+     */
+    int getFirstByte() {
+        return (int) (w1 >>> 56);
+    }
+
+    /**
+     * Writes the raw 20 bytes into an array.
+     */
+    void copyRawTo(byte[] raw, int offset) {
+        ByteBuffer.wrap(raw, offset, RAW_LENGTH).putLong(w1).putLong(w2).putInt(w3);
+    }
+
+    /**
+     * Returns the raw 20 bytes.
+     */
+    byte[] toRaw() {
+        byte[] raw = new byte[RAW_LENGTH];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    /**
+     * Returns the 40 hex digits of this ID.
+     */
+    String toHex() {
+        char[] hex = new char[HEX_LENGTH];
+        formatWord(hex, 0, w1, 16);
+        formatWord(hex, 16, w2, 16);
+        formatWord(hex, 32, w3 & 0xffffffffL, 8);
+        return new String(hex);
+    }
+
+    /**
+     * Converts raw bytes into hex digits.
+     */
+    static String toHex(byte[] raw) {
+        char[] hex = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(raw[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[raw[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof ObjectId other)) {
+            return false;
+        }
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // the bytes of a SHA1 are uniformly distributed, any of them make a good hash
+        return (int) (w1 >>> 32);
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(w1, other.w1);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(w2, other.w2);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w3, other.w3);
+        }
+        return cmp;
+    }
+
+    private static long hexWord(String hex, int from, int digits) {
+        long word = 0;
+        for (int i = from; i < from + digits; i++) {
+            word = (word << 4) | HEX_VALUES[hex.charAt(i)];
+        }
+        return word;
+    }
+
+    private static void formatWord(char[] hex, int from, long word, int digits) {
+        for (int i = from + digits - 1; i >= from; i--) {
+            hex[i] = HEX_DIGITS[(int) (word & 0xf)];
+            word >>>= 4;
+        }
+    }
+
+    /**
+     * Returns a new SHA1 digest, for digests that stay in use while other objects are hashed.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("SHA-1 algorithm not found. Fatal error.");
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package gitfly;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitfly.Utils.*;
+
+/**
+ * Storage layer for the objects (blobs, trees and commits) of a repository.
+ * Objects are looked up in the packs first (see {@link PackFile}).
+ * Every other object is stored as a loose file fanned out by the first two hex digits of its ID:
+ *
+ *     .gitfly/objects/ab/cdef0123...
+ *
+ * A loose file starts with a one byte storage tag:
+ *
+ *     {@link #DEFLATED}  followed by the zlib-compressed contents of the object
+ *     {@link #CHUNKED}   followed by the chunk list of a large blob (see {@link ChunkedBlob}); the chunks are objects of their own
+ *
+ * Objects are compressed and decompressed as streams, so callers that only need to copy
+ * an object somewhere never hold its full contents in memory.
+ */
+class ObjectStore {
+    /** Marker file recording that OBJECTS_DIR uses the sharded, compressed layout. */
+    static final File LAYOUT = join(Repository.OBJECTS_DIR, "layout");
+    static final String LAYOUT_VERSION = "sharded-zlib";
+    private static final int DEFLATED = 'z';
+    private static final int CHUNKED = 'c';
+    private static final int BUFFER_SIZE = 8192;
+    /** Size of the buffers files are read in when they are hashed and stored. */
+    static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Returns the loose file of an object: OBJECTS_DIR/{first two hex digits}/{remaining 38 hex digits}.
+     * @param id SHA1 of the object
+     */
+    static File getLooseObjectFile(ObjectId id) {
+        String hex = id.toHex();
+        return join(Repository.OBJECTS_DIR, hex.substring(0, 2), hex.substring(2));
+    }
+
+    /**
+     * Returns whether an object with the given ID is found in the store.
+     * @param id SHA1 of the object
+     */
+    static boolean exists(ObjectId id) {
+        if (id == null) {
+            return false;
+        }
+        return PackFile.find(id) != null || getLooseObjectFile(id).isFile();
+    }
+
+    /**
+     * Returns whether the given object is stored as a loose file.
+     * @param id SHA1 of the object
+     */
+    static boolean isLoose(ObjectId id) {
+        return getLooseObjectFile(id).isFile();
+    }
+
+    /**
+     * Stores an object given as a String.
+     * @param id SHA1 of the object
+     * @param content contents of the object
+     */
+    static void write(ObjectId id, String content) {
+        write(id, content.getBytes());
+    }
+
+    /**
+     * Stores an object given as a byte array.
+     * Objects are immutable, so nothing is written if the object already exists.
+     * @param id SHA1 of the object
+     * @param content contents of the object
+     */
+    static void write(ObjectId id, byte[] content) {
+        write(id, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Stores an object by deflating the given stream into a temporary file, which is then renamed into place.
+     * The rename makes sure that readers never see a partially written object.
+     * @param id SHA1 of the object
+     * @param content stream with the contents of the object
+     */
+    static void write(ObjectId id, InputStream content) {
+        Telemetry.ObjectWrite event = new Telemetry.ObjectWrite();
+        event.start();
+        File object = getLooseObjectFile(id);
+        if (object.exists() || PackFile.find(id) != null) {
+            finishWrite(event, id, "object", 0, false);
+            return;
+        }
+        File shard = object.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+            exit("Could not create directory %s.", shard.getPath());
+        }
+        File temp = null;
+        long bytes;
+        try {
+            temp = File.createTempFile("tmp_obj_", null, shard);
+            // DeflaterOutputStream doesn't end a Deflater it was given, which would hold native memory until it is collected
+            Deflater zlib = new Deflater(Deflater.BEST_SPEED);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE)) {
+                out.write(DEFLATED);
+                DeflaterOutputStream deflater = new DeflaterOutputStream(out, zlib, BUFFER_SIZE);
+                bytes = content.transferTo(deflater);
+                deflater.finish();
+            } finally {
+                zlib.end();
+            }
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            finishWrite(event, id, "object", bytes, true);
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            exit("Could not write object %s.", id);
+        }
+    }
+
+    /**
+     * Stores a file of the working directory as a blob, in a single streaming pass.
+     * The file is read through a FileChannel in fixed size buffers; each buffer updates the SHA1 and is deflated into
+     * a temporary file, which is renamed to its loose object path once the SHA1 is known.
+     * Memory use doesn't depend on the size of the file.
+     * Files of at least {@link Config#getChunkThreshold()} bytes are stored as chunks instead (see {@link #writeChunked(File)}).
+     * @param file file to store
+     * @return SHA1 of the file's contents
+     */
+    static ObjectId writeFile(File file) {
+        long length = file.length();
+        if (length >= ChunkedBlob.MAX_SIZE && length >= Config.getChunkThreshold()) {
+            return writeChunked(file);
+        }
+        Telemetry.ObjectWrite event = new Telemetry.ObjectWrite();
+        event.start();
+        MessageDigest digest = ObjectId.digest();
+        long bytes = 0;
+        File temp = null;
+        try {
+            temp = File.createTempFile("tmp_obj_", null, Repository.OBJECTS_DIR);
+            Deflater zlib = new Deflater(Deflater.BEST_SPEED);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE)) {
+                out.write(DEFLATED);
+                DeflaterOutputStream deflater = new DeflaterOutputStream(out, zlib, BUFFER_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+                while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    deflater.write(buffer.array(), 0, buffer.limit());
+                    bytes += buffer.limit();
+                    buffer.clear();
+                }
+                deflater.finish();
+            } finally {
+                zlib.end();
+            }
+            ObjectId id = ObjectId.fromRaw(digest.digest(), 0);
+            File object = getLooseObjectFile(id);
+            if (object.exists() || PackFile.find(id) != null) {
+                temp.delete();
+                finishWrite(event, id, "blob", bytes, false);
+                return id;
+            }
+            File shard = object.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+                exit("Could not create directory %s.", shard.getPath());
+            }
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            finishWrite(event, id, "blob", bytes, true);
+            return id;
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            exit("Could not store %s: %s", file.getPath(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a file of the working directory as a chunked blob (see {@link ChunkedBlob}).
+     * Every chunk is stored as an object of its own, unless it already is, so the versions of a large file that is
+     * edited in place or appended to share most of their chunks. The chunk list is then stored under the SHA1 of the
+     * whole file, which is computed in the same pass.
+     * @param file file to store
+     * @return SHA1 of the file's contents
+     */
+    private static ObjectId writeChunked(File file) {
+        Telemetry.ObjectWrite event = new Telemetry.ObjectWrite();
+        event.start();
+        // chunks are hashed with ObjectId.digest() while the digest of the whole file is still open
+        MessageDigest digest = ObjectId.newDigest();
+        File temp = null;
+        try {
+            ChunkedBlob blob;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                blob = ChunkedBlob.write(channel, digest);
+            }
+            ObjectId id = ObjectId.fromRaw(digest.digest(), 0);
+            File object = getLooseObjectFile(id);
+            if (object.exists() || PackFile.find(id) != null) {
+                finishWrite(event, id, "chunked", blob.size, false);
+                return id;
+            }
+            File shard = object.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+                exit("Could not create directory %s.", shard.getPath());
+            }
+            temp = File.createTempFile("tmp_obj_", null, shard);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(CHUNKED);
+                out.write(blob.encode());
+            }
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            finishWrite(event, id, "chunked", blob.size, true);
+            return id;
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            exit("Could not store %s: %s", file.getPath(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the chunk list of an object stored as a chunked blob (see {@link ChunkedBlob}),
+     * or null if the object is stored whole or is missing.
+     * @param id SHA1 of the object
+     */
+    static ChunkedBlob getChunked(ObjectId id) {
+        PackFile pack = PackFile.find(id);
+        if (pack != null) {
+            return pack.getChunked(id);
+        }
+        File object = getLooseObjectFile(id);
+        if (!object.isFile()) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(object), BUFFER_SIZE)) {
+            return in.read() == CHUNKED ? ChunkedBlob.decode(in) : null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read object " + id);
+        }
+    }
+
+    /**
+     * Opens a stream over the decompressed contents of an object.
+     * The chunks of a chunked blob are opened one at a time, as the stream reaches them.
+     * @param id SHA1 of the object
+     * @return stream which must be closed by the caller
+     */
+    static InputStream open(ObjectId id) {
+        PackFile pack = PackFile.find(id);
+        if (pack != null) {
+            return openPacked(pack, id);
+        }
+        File object = getLooseObjectFile(id);
+        if (!object.isFile()) {
+            // another process (such as gc) may have moved the object into a pack that isn't open yet
+            PackFile.reload();
+            pack = PackFile.find(id);
+            if (pack != null) {
+                return openPacked(pack, id);
+            }
+            throw new IllegalArgumentException("Object not found: " + id);
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(object), BUFFER_SIZE);
+            int tag = in.read();
+            if (tag == CHUNKED) {
+                try (in) {
+                    return ChunkedBlob.decode(in).open();
+                }
+            }
+            if (tag != DEFLATED) {
+                in.close();
+                throw new IllegalArgumentException("Corrupt object: " + id);
+            }
+            return new InflaterInputStream(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read object " + id);
+        }
+    }
+
+    private static InputStream openPacked(PackFile pack, ObjectId id) {
+        ChunkedBlob chunked = pack.getChunked(id);
+        return chunked != null ? chunked.open() : new ByteArrayInputStream(pack.read(id));
+    }
+
+    /**
+     * Returns the decompressed contents of an object.
+     * @param id SHA1 of the object
+     */
+    static byte[] read(ObjectId id) {
+        Telemetry.ObjectRead event = new Telemetry.ObjectRead();
+        event.start();
+        PackFile pack = PackFile.find(id);
+        byte[] contents;
+        if (pack != null) {
+            contents = pack.read(id);
+        } else {
+            try (InputStream in = open(id)) {
+                contents = in.readAllBytes();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to read object " + id);
+            }
+        }
+        finishRead(event, id, pack != null, contents.length);
+        return contents;
+    }
+
+    /**
+     * Returns the size of an object, without holding its contents in memory.
+     * @param id SHA1 of the object
+     */
+    static long size(ObjectId id) {
+        PackFile pack = PackFile.find(id);
+        if (pack != null) {
+            ChunkedBlob chunked = pack.getChunked(id);
+            return chunked != null ? chunked.size : pack.read(id).length;
+        }
+        File object = getLooseObjectFile(id);
+        if (!object.isFile()) {
+            // see open: the object may have just been packed
+            PackFile.reload();
+            if (PackFile.find(id) != null) {
+                return size(id);
+            }
+            throw new IllegalArgumentException("Object not found: " + id);
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(object), BUFFER_SIZE)) {
+            int tag = in.read();
+            if (tag == CHUNKED) {
+                return ChunkedBlob.decode(in).size;
+            }
+            if (tag != DEFLATED) {
+                throw new IllegalArgumentException("Corrupt object: " + id);
+            }
+            try (InputStream inflater = new InflaterInputStream(in)) {
+                return inflater.transferTo(OutputStream.nullOutputStream());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read object " + id);
+        }
+    }
+
+    /**
+     * A loose object as it is stored, read by {@link PackFile#write(java.util.Collection)}: either the contents of the
+     * object, or the chunk list of a chunked blob.
+     */
+    static class LooseObject {
+        /** Contents of the object, or null if it is a chunked blob or larger than the limit it was read with. */
+        final byte[] contents;
+        final ChunkedBlob chunked;
+
+        LooseObject(byte[] contents, ChunkedBlob chunked) {
+            this.contents = contents;
+            this.chunked = chunked;
+        }
+    }
+
+    /**
+     * Reads a loose object in a single pass, without reassembling chunked blobs.
+     * @param id SHA1 of the object
+     * @param limit size above which the contents aren't returned; only limit + 1 bytes are inflated to find out
+     */
+    static LooseObject readLoose(ObjectId id, int limit) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(getLooseObjectFile(id)), BUFFER_SIZE)) {
+            int tag = in.read();
+            if (tag == CHUNKED) {
+                return new LooseObject(null, ChunkedBlob.decode(in));
+            }
+            if (tag != DEFLATED) {
+                throw new IllegalArgumentException("Corrupt object: " + id);
+            }
+            try (InputStream inflater = new InflaterInputStream(in)) {
+                byte[] contents = inflater.readNBytes(limit + 1);
+                return new LooseObject(contents.length > limit ? null : contents, null);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read object " + id);
+        }
+    }
+
+    /**
+     * Returns the IDs of all the loose objects.
+     */
+    static List<ObjectId> getLooseObjectIDs() {
+        List<ObjectId> ids = new ArrayList<>();
+        File[] shards = Repository.OBJECTS_DIR.listFiles(file -> file.isDirectory() && file.getName().length() == 2);
+        if (shards == null) {
+            return ids;
+        }
+        for (File shard : shards) {
+            String[] names = shard.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                String id = shard.getName() + name;
+                if (isObjectID(id)) {
+                    ids.add(ObjectId.fromHex(id));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes the loose file of an object, and its shard directory once it is empty.
+     * @param id SHA1 of the object
+     */
+    static void deleteLoose(ObjectId id) {
+        File object = getLooseObjectFile(id);
+        if (object.delete()) {
+            object.getParentFile().delete();
+        }
+    }
+
+    /**
+     * Returns the decompressed contents of an object as a String.
+     * @param id SHA1 of the object
+     */
+    static String readString(ObjectId id) {
+        return new String(read(id), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the contents of an object to a file in the working directory, creating missing parent directories.
+     * The object is inflated straight into the file.
+     * @param id SHA1 of the object
+     * @param file destination file
+     */
+    static void writeToFile(ObjectId id, File file) {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        try {
+            copyTo(id, file);
+        } catch (FileNotFoundException e) {
+            exit("Not a valid file: %s", file.getPath());
+        } catch (IOException e) {
+            exit("Could not write to file: %s", file.getPath());
+        }
+    }
+
+    /**
+     * Writes the contents of an object to a file whose directory already exists, reporting failures to the caller.
+     * Safe to call from several threads.
+     * @param id SHA1 of the object
+     * @param file file to create or overwrite
+     * @throws IOException if the file can't be written
+     */
+    static void copyTo(ObjectId id, File file) throws IOException {
+        Telemetry.ObjectRead event = new Telemetry.ObjectRead();
+        event.start();
+        long bytes;
+        try (InputStream in = open(id); OutputStream out = new FileOutputStream(file)) {
+            bytes = in.transferTo(out);
+        }
+        finishRead(event, id, event.shouldCommit() && PackFile.find(id) != null, bytes);
+    }
+
+    private static void finishRead(Telemetry.ObjectRead event, ObjectId id, boolean packed, long bytes) {
+        if (event.shouldCommit()) {
+            event.id = id.toHex();
+            event.type = packed ? "pack" : "loose";
+        }
+        event.bytes = bytes;
+        event.finish(Telemetry.Phase.OBJECT_READ, bytes);
+    }
+
+    private static void finishWrite(Telemetry.ObjectWrite event, ObjectId id, String type, long bytes, boolean written) {
+        if (event.shouldCommit()) {
+            event.id = id.toHex();
+        }
+        event.type = type;
+        event.bytes = bytes;
+        event.written = written;
+        event.finish(Telemetry.Phase.OBJECT_WRITE, bytes);
+    }
+
+    /**
+     * Writes the layout marker. Called when a repository is initialized.
+     */
+    static void initLayout() {
+        writeContents(LAYOUT, LAYOUT_VERSION);
+    }
+
+    /**
+     * Migrates repositories created with the old flat, uncompressed layout (every object stored directly
+     * in OBJECTS_DIR) to the sharded, compressed one.
+     * Only checks the layout marker when the repository was already migrated.
+     */
+    static void migrateFlatLayout() {
+        if (LAYOUT.exists()) {
+            return;
+        }
+        File[] files = Repository.OBJECTS_DIR.listFiles();
+        int migrated = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isFile() || !isObjectID(file.getName())) {
+                    continue;
+                }
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+                    write(ObjectId.fromHex(file.getName()), in);
+                } catch (IOException e) {
+                    exit("Could not migrate object %s.", file.getName());
+                }
+                if (!file.delete()) {
+                    exit("Could not delete migrated object %s.", file.getPath());
+                }
+                migrated++;
+            }
+        }
+        initLayout();
+        if (migrated > 0) {
+            outputMessage("Migrated %d objects to the sharded object layout.", migrated);
+        }
+    }
+
+    /**
+     * Returns whether a name looks like an object ID (40 lowercase hex digits).
+     */
+    static boolean isObjectID(String name) {
+        if (name.length() != ObjectId.HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,553 @@
+package gitfly;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static gitfly.Utils.*;
+
+/**
+ * A pack stores many objects in one data file, next to a sorted index used to find them.
+ *
+ *     .gitfly/objects/pack/pack-{checksum}.pack
+ *         "GFPK" {version int} {object count int}
+ *         {entry}*  where entry = {type byte} {inflated size int} [{base ID, 20 bytes} if delta] {deflated size int} {deflated data}
+ *                   and type = FULL (the object), DELTA (a delta against the base) or CHUNKED (the chunk list of a large blob)
+ *         {SHA1 of everything above, 20 bytes}
+ *
+ *     .gitfly/objects/pack/pack-{checksum}.idx
+ *         "GFPI" {version int}
+ *         {fanout: 256 ints, number of objects whose first ID byte is <= i}
+ *         {object IDs, 20 bytes each, sorted}
+ *         {pack offsets, one long per object}
+ *
+ * The index is memory-mapped and binary searched, so looking an object up costs no system calls.
+ * Similar objects are stored as deltas (see {@link Delta}) against another object of the same pack.
+ * Chunked blobs (see {@link ChunkedBlob}) are packed as their chunk list, next to their chunks.
+ */
+class PackFile {
+    static final File PACK_DIR = join(Repository.OBJECTS_DIR, "pack");
+    private static final byte[] PACK_MAGIC = {'G', 'F', 'P', 'K'};
+    private static final byte[] INDEX_MAGIC = {'G', 'F', 'P', 'I'};
+    private static final int VERSION = 1;
+    private static final int RAW_ID_LENGTH = ObjectId.RAW_LENGTH;
+    private static final int FANOUT_OFFSET = 8;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+    private static final byte CHUNKED = 3;
+    /** Number of preceding objects tried as delta bases for each object. */
+    private static final int DELTA_WINDOW = 10;
+    /** Total size of the objects kept in the delta window; larger objects are never delta bases. */
+    private static final long DELTA_WINDOW_BYTES = 64 * 1024 * 1024;
+    /** Total size of the loose objects kept in memory between the pass that sizes them and the one that packs them. */
+    private static final long PRELOAD_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_DELTA_DEPTH = 16;
+    private static final int MIN_DELTA_SIZE = 64;
+    /** Objects larger than this stay loose, so that they can be streamed. */
+    static final int MAX_PACKED_OBJECT_SIZE = 32 * 1024 * 1024;
+
+    private static List<PackFile> packs;
+
+    private final File packFile;
+    private final File indexFile;
+    private final MappedByteBuffer index;
+    private final FileChannel data;
+    private final int count;
+
+    private PackFile(File indexFile) throws IOException {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        this.packFile = join(PACK_DIR, name.substring(0, name.length() - ".idx".length()) + ".pack");
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (index.capacity() < IDS_OFFSET) {
+            throw new IOException("Truncated pack index: " + indexFile.getPath());
+        }
+        for (int i = 0; i < INDEX_MAGIC.length; i++) {
+            if (index.get(i) != INDEX_MAGIC[i]) {
+                throw new IOException("Not a pack index: " + indexFile.getPath());
+            }
+        }
+        this.count = index.getInt(FANOUT_OFFSET + 255 * 4);
+        if (count < 0 || index.capacity() < (long) IDS_OFFSET + (long) count * (RAW_ID_LENGTH + 8)) {
+            throw new IOException("Truncated pack index: " + indexFile.getPath());
+        }
+        this.data = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns the packs of the repository. They are opened the first time this is called.
+     */
+    static synchronized List<PackFile> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            File[] files = PACK_DIR.listFiles((dir, name) -> name.endsWith(".idx"));
+            if (files != null) {
+                for (File file : files) {
+                    try {
+                        packs.add(new PackFile(file));
+                    } catch (IOException e) {
+                        System.err.println("Ignoring unreadable pack " + file.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Closes the open packs, so that the next lookup rescans PACK_DIR.
+     */
+    static synchronized void reload() {
+        if (packs != null) {
+            for (PackFile pack : packs) {
+                pack.close();
+            }
+        }
+        packs = null;
+    }
+
+    /**
+     * Returns the pack containing the given object, or null if the object is not packed.
+     */
+    static PackFile find(ObjectId id) {
+        for (PackFile pack : getPacks()) {
+            if (pack.position(id) >= 0) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether this pack contains the given object.
+     */
+    boolean contains(ObjectId id) {
+        return position(id) >= 0;
+    }
+
+    /**
+     * Returns the name of this pack (pack-{checksum}).
+     */
+    String getName() {
+        String name = indexFile.getName();
+        return name.substring(0, name.length() - ".idx".length());
+    }
+
+    /**
+     * Returns the contents of an object of this pack, resolving delta chains.
+     * @param id SHA1 of the object
+     */
+    byte[] read(ObjectId id) {
+        int position = position(id);
+        if (position < 0) {
+            throw new IllegalArgumentException("Object not found: " + id);
+        }
+        long offset = index.getLong(offsetsOffset() + 8 * position);
+        byte[] contents = readAt(offset, 0);
+        if (typeAt(offset) != CHUNKED) {
+            return contents;
+        }
+        try (InputStream in = ChunkedBlob.decode(new ByteArrayInputStream(contents)).open()) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read chunked object " + id);
+        }
+    }
+
+    /**
+     * Returns the chunk list of an object of this pack, or null if the object is missing or isn't a chunked blob.
+     * @param id SHA1 of the object
+     */
+    ChunkedBlob getChunked(ObjectId id) {
+        int position = position(id);
+        if (position < 0) {
+            return null;
+        }
+        long offset = index.getLong(offsetsOffset() + 8 * position);
+        if (typeAt(offset) != CHUNKED) {
+            return null;
+        }
+        try {
+            return ChunkedBlob.decode(new ByteArrayInputStream(readAt(offset, 0)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt chunk list " + id + " in " + packFile.getName());
+        }
+    }
+
+    /**
+     * Returns the IDs of all the objects in this pack.
+     */
+    List<ObjectId> getObjectIDs() {
+        List<ObjectId> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(ObjectId.fromRaw(index, IDS_OFFSET + i * RAW_ID_LENGTH));
+        }
+        return ids;
+    }
+
+    private long offsetOf(ObjectId id) {
+        return index.getLong(offsetsOffset() + 8 * position(id));
+    }
+
+    /**
+     * Returns the size of the object whose entry is at an offset, from the entry header; for a chunk list, its own size.
+     */
+    private int sizeAt(long offset) {
+        ByteBuffer size = ByteBuffer.allocate(4);
+        try {
+            readFully(size, offset + 1);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read from pack " + packFile.getName() + ": " + e.getMessage());
+        }
+        return size.getInt(0);
+    }
+
+    private byte typeAt(long offset) {
+        ByteBuffer type = ByteBuffer.allocate(1);
+        try {
+            readFully(type, offset);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read from pack " + packFile.getName());
+        }
+        return type.get(0);
+    }
+
+    /**
+     * Returns the inflated entry at an offset: the object, the object rebuilt from its delta chain, or a chunk list.
+     */
+    private byte[] readAt(long offset, int depth) {
+        if (depth > MAX_DELTA_DEPTH) {
+            throw new IllegalArgumentException("Delta chain too deep in " + packFile.getName());
+        }
+        try {
+            ByteBuffer header = ByteBuffer.allocate(1 + 4 + RAW_ID_LENGTH + 4);
+            readFully(header, offset);
+            header.flip();
+            byte type = header.get();
+            int size = header.getInt();
+            ObjectId baseID = null;
+            if (type == DELTA) {
+                baseID = ObjectId.fromRaw(header, header.position());
+                header.position(header.position() + RAW_ID_LENGTH);
+            }
+            int deflatedSize = header.getInt();
+            ByteBuffer deflated = ByteBuffer.allocate(deflatedSize);
+            readFully(deflated, offset + header.position());
+            byte[] contents = inflate(deflated.array(), type == DELTA ? -1 : size);
+            if (type == FULL || type == CHUNKED) {
+                return contents;
+            }
+            int basePosition = position(baseID);
+            byte[] base = readAt(index.getLong(offsetsOffset() + 8 * basePosition), depth + 1);
+            return Delta.apply(base, contents);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read from pack " + packFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fills the buffer from the pack, starting at the given offset.
+     * @throws EOFException if the pack ends first, which means it was truncated
+     */
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of pack " + packFile.getName() + " at offset " + (offset + buffer.position()));
+            }
+        }
+    }
+
+    /**
+     * Binary searches the memory-mapped index for an ID.
+     * @return the position of the ID in the index, or -1 if it is missing
+     */
+    private int position(ObjectId id) {
+        int first = id.getFirstByte();
+        int low = first == 0 ? 0 : index.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int high = index.getInt(FANOUT_OFFSET + first * 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = id.compareTo(index, IDS_OFFSET + mid * RAW_ID_LENGTH);
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int offsetsOffset() {
+        return IDS_OFFSET + count * RAW_ID_LENGTH;
+    }
+
+    private void close() {
+        try {
+            data.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Deletes this pack and its index.
+     */
+    void delete() {
+        close();
+        indexFile.delete();
+        packFile.delete();
+    }
+
+    /**
+     * Writes the given objects into a new pack.
+     * Objects are sorted by size, and each one is tried as a delta against the previous DELTA_WINDOW objects,
+     * as long as they add up to at most DELTA_WINDOW_BYTES; a delta is kept when it saves at least half of the object.
+     * Sizes of packed objects are read from their entry headers. Loose objects are read once to be sized,
+     * and kept in memory for the packing pass up to PRELOAD_BYTES in total; only the rest are read again.
+     * Chunked blobs are packed as their chunk list, together with their chunks even when ids doesn't list them,
+     * and are never delta bases. Other objects larger than MAX_PACKED_OBJECT_SIZE are left out.
+     * @param ids SHA1s of the objects to pack; they must all be readable through {@link ObjectStore}
+     * @return the new pack
+     */
+    static PackFile write(Collection<ObjectId> ids) {
+        List<PackEntry> entries = new ArrayList<>(ids.size());
+        List<ObjectId> pending = new ArrayList<>(ids);
+        Set<ObjectId> queued = new HashSet<>(ids);
+        long preloaded = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            ObjectId id = pending.get(i);
+            PackFile pack = find(id);
+            ChunkedBlob chunked;
+            if (pack != null) {
+                long offset = pack.offsetOf(id);
+                if (pack.typeAt(offset) != CHUNKED) {
+                    entries.add(new PackEntry(id, pack.sizeAt(offset)));
+                    continue;
+                }
+                chunked = pack.getChunked(id);
+            } else {
+                ObjectStore.LooseObject loose = ObjectStore.readLoose(id, MAX_PACKED_OBJECT_SIZE);
+                chunked = loose.chunked;
+                if (loose.contents != null) {
+                    PackEntry entry = new PackEntry(id, loose.contents.length);
+                    if (preloaded + loose.contents.length <= PRELOAD_BYTES) {
+                        entry.contents = loose.contents;
+                        preloaded += loose.contents.length;
+                    }
+                    entries.add(entry);
+                }
+                if (chunked == null) {
+                    continue;
+                }
+            }
+            PackEntry entry = new PackEntry(id, 0);
+            entry.chunkList = chunked.encode();
+            entries.add(entry);
+            for (ObjectId chunkID : chunked.ids) {
+                if (queued.add(chunkID)) {
+                    pending.add(chunkID);
+                }
+            }
+        }
+        // Similar versions of an object usually have similar sizes; biggest first, so deltas mostly remove data.
+        entries.sort(Comparator.comparingInt((PackEntry e) -> e.size).reversed().thenComparing(e -> e.id));
+
+        if (!PACK_DIR.exists()) {
+            mkdir(PACK_DIR);
+        }
+        File temp = join(PACK_DIR, "tmp_pack_" + ProcessHandle.current().pid());
+        MessageDigest checksum = ObjectId.newDigest();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new java.security.DigestOutputStream(new FileOutputStream(temp), checksum)))) {
+            out.write(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            long offset = 12;
+            ArrayDeque<PackEntry> window = new ArrayDeque<>();
+            long windowBytes = 0;
+            Deflater deflater = new Deflater();
+            for (PackEntry entry : entries) {
+                if (entry.chunkList != null) {
+                    byte[] deflated = deflate(deflater, entry.chunkList);
+                    entry.offset = offset;
+                    out.writeByte(CHUNKED);
+                    out.writeInt(entry.chunkList.length);
+                    out.writeInt(deflated.length);
+                    out.write(deflated);
+                    offset += 9 + deflated.length;
+                    entry.chunkList = null;
+                    continue;
+                }
+                byte[] contents = entry.contents != null ? entry.contents : ObjectStore.read(entry.id);
+                entry.contents = null;
+                PackEntry base = null;
+                byte[] delta = null;
+                if (contents.length >= MIN_DELTA_SIZE) {
+                    for (PackEntry candidate : window) {
+                        if (candidate.depth >= MAX_DELTA_DEPTH || candidate.size < contents.length / 2) {
+                            continue;
+                        }
+                        int limit = delta == null ? contents.length / 2 : delta.length - 1;
+                        byte[] attempt = Delta.create(candidate.contents, contents, limit);
+                        if (attempt != null) {
+                            delta = attempt;
+                            base = candidate;
+                        }
+                    }
+                }
+                entry.offset = offset;
+                byte[] payload = delta == null ? contents : delta;
+                byte[] deflated = deflate(deflater, payload);
+                out.writeByte(delta == null ? FULL : DELTA);
+                out.writeInt(contents.length);
+                offset += 5;
+                if (delta != null) {
+                    out.write(base.id.toRaw());
+                    offset += RAW_ID_LENGTH;
+                    entry.depth = base.depth + 1;
+                }
+                out.writeInt(deflated.length);
+                out.write(deflated);
+                offset += 4 + deflated.length;
+
+                entry.contents = contents;
+                window.addFirst(entry);
+                windowBytes += contents.length;
+                while (window.size() > DELTA_WINDOW || windowBytes > DELTA_WINDOW_BYTES) {
+                    PackEntry evicted = window.removeLast();
+                    windowBytes -= evicted.contents.length;
+                    evicted.contents = null;
+                }
+            }
+            deflater.end();
+            out.flush();
+            out.write(checksum.digest());
+        } catch (IOException e) {
+            temp.delete();
+            exit("Could not write pack: %s", e.getMessage());
+        }
+
+        String name = "pack-" + ObjectId.toHex(fileChecksum(temp));
+        File packFile = join(PACK_DIR, name + ".pack");
+        File indexFile = join(PACK_DIR, name + ".idx");
+        try {
+            Files.move(temp.toPath(), packFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            writeIndex(indexFile, entries);
+            PackFile pack = new PackFile(indexFile);
+            synchronized (PackFile.class) {
+                if (packs != null) {
+                    packs.add(pack);
+                }
+            }
+            return pack;
+        } catch (IOException e) {
+            exit("Could not write pack index: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeIndex(File indexFile, List<PackEntry> entries) throws IOException {
+        List<PackEntry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(e -> e.id));
+        int[] fanout = new int[256];
+        for (PackEntry entry : sorted) {
+            fanout[entry.id.getFirstByte()]++;
+        }
+        File temp = join(PACK_DIR, "tmp_idx_" + ProcessHandle.current().pid());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.write(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            int cumulative = 0;
+            for (int i = 0; i < 256; i++) {
+                cumulative += fanout[i];
+                out.writeInt(cumulative);
+            }
+            for (PackEntry entry : sorted) {
+                out.write(entry.id.toRaw());
+            }
+            for (PackEntry entry : sorted) {
+                out.writeLong(entry.offset);
+            }
+        }
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data, int expectedSize) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(expectedSize > 0 ? expectedSize : data.length * 2);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated pack entry");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt pack entry");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] fileChecksum(File file) {
+        MessageDigest digest = ObjectId.digest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read " + file.getPath());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * An object while it is being written to a pack.
+     */
+    private static class PackEntry {
+        final ObjectId id;
+        final int size;
+        long offset;
+        int depth;
+        byte[] contents;
+        /** Encoded chunk list, if the object is a chunked blob. */
+        byte[] chunkList;
+
+        PackEntry(ObjectId id, int size) {
+            this.id = id;
+            this.size = size;
+        }
+    }
+}
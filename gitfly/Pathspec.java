@@ -0,0 +1,123 @@
+package gitfly;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Expands the paths given to a command into the files of the working directory they match. A pathspec is one of:
+ *
+ *     a file        the file itself
+ *     a directory   every file under it; "." is the whole working directory
+ *     a glob        every file whose path matches it, with the syntax of {@link FileSystems#getPathMatcher}:
+ *                   * and ? don't cross directories, ** does; a glob without a '/' is matched against
+ *                   the file names at every depth, so "*.txt" matches every .txt file
+ *
+ * Paths are relative to the working directory. Hidden files and directories, such as .gitfly, are only matched
+ * when named explicitly, as in {@link WorkingTreeScanner}.
+ */
+class Pathspec {
+    private final File root;
+    /** Every file of the working directory, listed the first time a glob is matched. */
+    private List<String> allFiles;
+
+    /**
+     * @param root directory the pathspecs are relative to
+     */
+    Pathspec(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns whether a pathspec is a glob rather than a path.
+     */
+    static boolean isGlob(String pathspec) {
+        return pathspec.indexOf('*') >= 0 || pathspec.indexOf('?') >= 0 || pathspec.indexOf('[') >= 0 || pathspec.indexOf('{') >= 0;
+    }
+
+    /**
+     * Returns the files matching a pathspec, relative to the root, with '/' as separator.
+     * @return the matching files, or an empty list if none matches
+     */
+    List<String> match(String pathspec) {
+        String path = normalize(pathspec);
+        if (path == null) {
+            return List.of();
+        }
+        File file = path.isEmpty() ? root : Utils.join(root, path);
+        List<String> files = new ArrayList<>();
+        if (file.isFile()) {
+            files.add(path);
+        } else if (file.isDirectory()) {
+            listFiles(file, path, files);
+        } else if (isGlob(path)) {
+            // a file whose name contains glob characters is matched literally first
+            return matchGlob(path);
+        }
+        return files;
+    }
+
+    private List<String> matchGlob(String glob) {
+        PathMatcher matcher;
+        try {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        } catch (PatternSyntaxException e) {
+            return List.of();
+        }
+        boolean matchNames = glob.indexOf('/') < 0;
+        if (allFiles == null) {
+            allFiles = new ArrayList<>();
+            listFiles(root, "", allFiles);
+        }
+        List<String> files = new ArrayList<>();
+        for (String file : allFiles) {
+            Path path = Path.of(file);
+            if (matcher.matches(matchNames ? path.getFileName() : path)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Adds the files under a directory to files, skipping hidden files and directories.
+     */
+    private static void listFiles(File directory, String prefix, List<String> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            String path = prefix.isEmpty() ? child.getName() : prefix + "/" + child.getName();
+            if (child.isFile()) {
+                files.add(path);
+            } else if (child.isDirectory()) {
+                listFiles(child, path, files);
+            }
+        }
+    }
+
+    /**
+     * Removes "." and redundant separators from a pathspec; the root itself becomes "".
+     * @return the normalized pathspec, or null if it is not a valid path or it points outside the root
+     */
+    private static String normalize(String pathspec) {
+        try {
+            Path path = Path.of(pathspec).normalize();
+            if (path.isAbsolute() || path.startsWith("..")) {
+                return null;
+            }
+            return path.toString().replace(File.separatorChar, '/');
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package gitfly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pairs the files removed between two states with the files added, to find the ones that were renamed or copied.
+ * Done in two passes:
+ *
+ *     exact     an added file with the SHA1 of a removed file is a rename of it (one whose name is the same is preferred)
+ *     similar   the remaining files are compared by their contents: each file is cut into chunks (lines, or 64 bytes
+ *               if a line is longer), and the similarity of two files is the number of chunks they have in common
+ *               over the number of chunks of the larger one, in percent
+ *
+ * Comparing every added file with every removed one would cost their product. Instead each file gets a MinHash sketch
+ * of its chunks, and the sketches are cut into bands (locality-sensitive hashing): only files with a band in common,
+ * which is likely for files that share many chunks, are compared. Bands shared by more than MAX_BUCKET files,
+ * such as the band of a license header, are ignored, so the number of pairs compared grows linearly with the files.
+ *
+ * Pairs at least as similar as the threshold are taken most similar first. A removed file is renamed at most once;
+ * when copies are looked for, other added files similar to it, or to a file that still exists, are copies.
+ */
+class RenameDetector {
+    /** Similarity, in percent, below which two files are not a rename. */
+    static final int DEFAULT_THRESHOLD = 50;
+    private static final int MAX_CHUNK = 64;
+    /** Number of MinHash values in a sketch, cut into BANDS bands of ROWS values. */
+    private static final int HASHES = 48;
+    private static final int ROWS = 2;
+    private static final int BANDS = HASHES / ROWS;
+    /** Bands shared by more source files than this don't make candidates. */
+    private static final int MAX_BUCKET = 100;
+    private static final long[] SEEDS = new long[HASHES];
+
+    static {
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < HASHES; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            SEEDS[i] = seed;
+        }
+    }
+
+    /**
+     * A file of the new state found to be a rename or a copy of a file of the old state.
+     */
+    static class Rename {
+        final String source;
+        final String target;
+        final ObjectId sourceID;
+        final ObjectId targetID;
+        /** Similarity of the two files, in percent. */
+        final int score;
+        final boolean copy;
+
+        Rename(String source, ObjectId sourceID, String target, ObjectId targetID, int score, boolean copy) {
+            this.source = source;
+            this.sourceID = sourceID;
+            this.target = target;
+            this.targetID = targetID;
+            this.score = score;
+            this.copy = copy;
+        }
+
+        @Override
+        public String toString() {
+            return (copy ? "C" : "R") + score + " " + source + " -> " + target;
+        }
+    }
+
+    /**
+     * The chunks of a file, sorted, and its MinHash sketch.
+     */
+    private static class Sketch {
+        final String path;
+        final ObjectId id;
+        /** Hash of every chunk, made distinct for repeated chunks by mixing in their occurrence number. */
+        final long[] chunks;
+        final long[] minimums = new long[HASHES];
+
+        Sketch(String path, ObjectId id) {
+            this.path = path;
+            this.id = id;
+            chunks = chunkHashes(ObjectStore.read(id));
+            Arrays.fill(minimums, Long.MAX_VALUE);
+            for (long chunk : chunks) {
+                for (int i = 0; i < HASHES; i++) {
+                    long value = mix(chunk ^ SEEDS[i]);
+                    if (value < minimums[i]) {
+                        minimums[i] = value;
+                    }
+                }
+            }
+        }
+
+        long band(int band) {
+            long key = band;
+            for (int row = 0; row < ROWS; row++) {
+                key = mix(key * 31 + minimums[band * ROWS + row]);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Finds the renames, and optionally the copies, between two states.
+     * @param removed files of the old state that are missing from the new one, mapped to their SHA1s
+     * @param added files of the new state that are missing from the old one
+     * @param kept files that are in both states, which added files may be copies of; null to only look for renames
+     * @param threshold minimum similarity, in percent
+     * @return the renames and copies found, sorted by target path
+     */
+    static List<Rename> detect(Map<String, ObjectId> removed, Map<String, ObjectId> added, Map<String, ObjectId> kept, int threshold) {
+        List<Rename> found = new ArrayList<>();
+        if (added.isEmpty() || (removed.isEmpty() && kept == null)) {
+            return found;
+        }
+        boolean copies = kept != null;
+        TreeMap<String, ObjectId> sources = new TreeMap<>(removed);
+        TreeMap<String, ObjectId> targets = new TreeMap<>(added);
+        HashSet<String> renamed = new HashSet<>();
+
+        HashMap<ObjectId, List<String>> removedByID = new HashMap<>();
+        for (Map.Entry<String, ObjectId> entry : sources.entrySet()) {
+            removedByID.computeIfAbsent(entry.getValue(), id -> new ArrayList<>()).add(entry.getKey());
+        }
+        HashMap<ObjectId, String> keptByID = new HashMap<>();
+        if (copies) {
+            for (Map.Entry<String, ObjectId> entry : new TreeMap<>(kept).entrySet()) {
+                keptByID.putIfAbsent(entry.getValue(), entry.getKey());
+            }
+        }
+        for (Map.Entry<String, ObjectId> target : new ArrayList<>(targets.entrySet())) {
+            // empty files are similar to nothing, not even to each other
+            if (target.getValue().equals(Repository.EMPTY_FILE_ID)) {
+                targets.remove(target.getKey());
+                continue;
+            }
+            List<String> candidates = removedByID.getOrDefault(target.getValue(), List.of());
+            String source = null;
+            for (String candidate : candidates) {
+                if (!renamed.contains(candidate) && (source == null || sameName(candidate, target.getKey()))) {
+                    source = candidate;
+                }
+            }
+            if (source != null) {
+                renamed.add(source);
+                found.add(new Rename(source, target.getValue(), target.getKey(), target.getValue(), 100, false));
+            } else if (copies && (!candidates.isEmpty() || keptByID.containsKey(target.getValue()))) {
+                source = candidates.isEmpty() ? keptByID.get(target.getValue()) : candidates.get(0);
+                found.add(new Rename(source, target.getValue(), target.getKey(), target.getValue(), 100, true));
+            } else {
+                continue;
+            }
+            targets.remove(target.getKey());
+        }
+
+        if (!targets.isEmpty()) {
+            if (copies) {
+                sources.putAll(kept);
+            } else {
+                sources.keySet().removeAll(renamed);
+            }
+            findSimilar(sources, targets, removed, renamed, copies, threshold, found);
+        }
+        found.sort(Comparator.comparing(rename -> rename.target));
+        return found;
+    }
+
+    private static void findSimilar(Map<String, ObjectId> sources, Map<String, ObjectId> targets, Map<String, ObjectId> removed,
+                                    HashSet<String> renamed, boolean copies, int threshold, List<Rename> found) {
+        List<Sketch> sourceSketches = sketch(sources);
+        List<Sketch> targetSketches = sketch(targets);
+        if (sourceSketches.isEmpty() || targetSketches.isEmpty()) {
+            return;
+        }
+        List<HashMap<Long, List<Integer>>> buckets = new ArrayList<>(BANDS);
+        for (int band = 0; band < BANDS; band++) {
+            HashMap<Long, List<Integer>> bucket = new HashMap<>();
+            for (int s = 0; s < sourceSketches.size(); s++) {
+                bucket.computeIfAbsent(sourceSketches.get(s).band(band), key -> new ArrayList<>()).add(s);
+            }
+            buckets.add(bucket);
+        }
+
+        // candidate pairs, as {score, source, target}
+        List<int[]> pairs = new ArrayList<>();
+        HashSet<Long> compared = new HashSet<>();
+        for (int t = 0; t < targetSketches.size(); t++) {
+            Sketch target = targetSketches.get(t);
+            for (int band = 0; band < BANDS; band++) {
+                List<Integer> bucket = buckets.get(band).get(target.band(band));
+                if (bucket == null || bucket.size() > MAX_BUCKET) {
+                    continue;
+                }
+                for (int s : bucket) {
+                    if (!compared.add(((long) s << 32) | t)) {
+                        continue;
+                    }
+                    int score = score(sourceSketches.get(s), target, threshold);
+                    if (score >= threshold) {
+                        pairs.add(new int[]{score, s, t});
+                    }
+                }
+            }
+        }
+        pairs.sort((p, q) -> {
+            if (p[0] != q[0]) {
+                return Integer.compare(q[0], p[0]);
+            }
+            boolean pSame = sameName(sourceSketches.get(p[1]).path, targetSketches.get(p[2]).path);
+            boolean qSame = sameName(sourceSketches.get(q[1]).path, targetSketches.get(q[2]).path);
+            if (pSame != qSame) {
+                return pSame ? -1 : 1;
+            }
+            int byTarget = targetSketches.get(p[2]).path.compareTo(targetSketches.get(q[2]).path);
+            return byTarget != 0 ? byTarget : sourceSketches.get(p[1]).path.compareTo(sourceSketches.get(q[1]).path);
+        });
+
+        HashSet<String> matched = new HashSet<>();
+        for (int[] pair : pairs) {
+            Sketch source = sourceSketches.get(pair[1]);
+            Sketch target = targetSketches.get(pair[2]);
+            if (matched.contains(target.path)) {
+                continue;
+            }
+            boolean rename = removed.containsKey(source.path) && !renamed.contains(source.path);
+            if (!rename && !copies) {
+                continue;
+            }
+            if (rename) {
+                renamed.add(source.path);
+            }
+            matched.add(target.path);
+            found.add(new Rename(source.path, source.id, target.path, target.id, pair[0], !rename));
+        }
+    }
+
+    /**
+     * Returns the sketches of the files, leaving out empty files, which are similar to nothing.
+     */
+    private static List<Sketch> sketch(Map<String, ObjectId> files) {
+        List<Sketch> sketches = new ArrayList<>(files.size());
+        for (Map.Entry<String, ObjectId> entry : files.entrySet()) {
+            Sketch sketch = new Sketch(entry.getKey(), entry.getValue());
+            if (sketch.chunks.length > 0) {
+                sketches.add(sketch);
+            }
+        }
+        return sketches;
+    }
+
+    /**
+     * Returns the similarity of two files in percent: chunks in common over the chunks of the larger file.
+     * Returns 0 without comparing the chunks if the sizes alone rule out reaching the threshold.
+     */
+    private static int score(Sketch a, Sketch b, int threshold) {
+        int larger = Math.max(a.chunks.length, b.chunks.length);
+        int smaller = Math.min(a.chunks.length, b.chunks.length);
+        if ((long) smaller * 100 < (long) threshold * larger) {
+            return 0;
+        }
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.chunks.length && j < b.chunks.length) {
+            if (a.chunks[i] == b.chunks[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a.chunks[i] < b.chunks[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (int) ((long) common * 100 / larger);
+    }
+
+    /**
+     * Cuts contents into chunks that end after a '\n' or MAX_CHUNK bytes, and returns their hashes, sorted.
+     * The n-th occurrence of a chunk gets a hash of its own, so that a chunk repeated in one file only matches
+     * as many copies of it in the other.
+     */
+    private static long[] chunkHashes(byte[] content) {
+        long[] hashes = new long[content.length / MAX_CHUNK + 16];
+        int count = 0;
+        long hash = 0xCBF29CE484222325L;
+        int length = 0;
+        for (int i = 0; i < content.length; i++) {
+            hash = (hash ^ (content[i] & 0xff)) * 0x100000001B3L;
+            length++;
+            if (content[i] == '\n' || length == MAX_CHUNK || i == content.length - 1) {
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                hashes[count++] = mix(hash);
+                hash = 0xCBF29CE484222325L;
+                length = 0;
+            }
+        }
+        hashes = Arrays.copyOf(hashes, count);
+        Arrays.sort(hashes);
+        long previous = 0;
+        int occurrence = 0;
+        for (int i = 0; i < count; i++) {
+            long value = hashes[i];
+            occurrence = i > 0 && value == previous ? occurrence + 1 : 0;
+            previous = value;
+            if (occurrence > 0) {
+                hashes[i] = mix(value + occurrence * 0x9E3779B97F4A7C15L);
+            }
+        }
+        Arrays.sort(hashes);
+        return hashes;
+    }
+
+    private static boolean sameName(String a, String b) {
+        return a.substring(a.lastIndexOf('/') + 1).equals(b.substring(b.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * Finalizer of SplitMix64: spreads the bits of a value over the whole long.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -2,10 +2,20 @@ package gitfly;
 
 import static gitfly.Utils.*;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class Repository {
     /*
@@ -18,25 +28,34 @@ public class Repository {
      *          to_add
      *          to_remove
      *          objects
-     *              commits
-     *              trees
-     *              blobs
-     *              tags
+     *              layout
+     *              ab
+     *                  cdef... (zlib-compressed object, see ObjectStore)
+     *              pack
+     *                  pack-{checksum}.pack
+     *                  pack-{checksum}.idx
+     *              info
+     *                  commit-graph-chain
+     *                  commit-graphs
+     *                      graph-{checksum}.graph (see CommitGraph)
      *          refs
      *              heads
      *              tags
     */
-    public static final Integer NOT_CONFLICT = 0;
-    public static final Integer CONFLICT_BASE = 1;
-    public static final Integer CONFLICT_RECEIVER = 2;
-    public static final Integer CONFLICT_GIVER = 3;
-    public static final String EMPTY_FILE_ID = getSHA1("");
+    public static final int NOT_CONFLICT = 0;
+    public static final int CONFLICT_BASE = 1;
+    public static final int CONFLICT_RECEIVER = 2;
+    public static final int CONFLICT_GIVER = 3;
+    /** SHA1 of empty contents, which is also the ID of the empty tree. Spelled out so that startup doesn't need a MessageDigest. */
+    public static final ObjectId EMPTY_FILE_ID = ObjectId.fromHex("da39a3ee5e6b4b0d3255bfef95601890afd80709");
     public static final File CWD = new File(System.getProperty("user.dir"));
     public static final File GITFLY_DIR = join(CWD, ".gitfly");
     public static final File HEAD = join(GITFLY_DIR, "HEAD");
     public static final File INDEX = join(GITFLY_DIR, "index");
     public static final File TO_ADD = join(GITFLY_DIR, "to_add");
     public static final File TO_REMOVE = join(GITFLY_DIR, "to_remove");
+    public static final File INDEX_LOCK = join(GITFLY_DIR, "index.lock");
+    public static final File INDEX_JOURNAL = join(GITFLY_DIR, "index.journal");
     public static final File CONFIG = join(GITFLY_DIR, "config");
     public static final File OBJECTS_DIR = join(GITFLY_DIR, "objects");
     public static final File REFS_DIR = join(GITFLY_DIR, "refs");
@@ -48,15 +67,17 @@ public class Repository {
     public static final Character REMOVE = 'R';
     public static final Character CONFLICT = 'C';
     public static final Character SAME = 'S';
-    public static String INITIAL_COMMIT_ID;
+    /** Status of a staged rename in the output of status, reported under the key "{old path} -> {new path}". */
+    public static final Character RENAME = 'N';
+    public static ObjectId INITIAL_COMMIT_ID;
 
-    private static final HashMap<Character, String> STATUS_CODE = new HashMap<Character, String>() {{
-        put(MODIFY, "Modified: ");
-        put(ADD, "Added: ");
-        put(REMOVE, "Removed: ");
-        put(CONFLICT, "Conflicted: ");
-        put(SAME, "Same: ");
-    }};
+    private static final Map<Character, String> STATUS_CODE = Map.of(
+            MODIFY, "Modified: ",
+            ADD, "Added: ",
+            REMOVE, "Removed: ",
+            CONFLICT, "Conflicted: ",
+            SAME, "Same: ",
+            RENAME, "Renamed: ");
 
 
     /**
@@ -72,14 +93,26 @@ public class Repository {
      */
     static class FileStatus {
         private final Character status;
-        private final String receiver;
-        private final String giver;
-        private final String base;
-        public FileStatus(String receiver, String giver, String base) {
+        private final ObjectId receiver;
+        private final ObjectId giver;
+        private final ObjectId base;
+        /** SHA1 of the line-level merge of a file in conflict (see {@link LineMerge}), if it merged without conflicts. */
+        private ObjectId merged;
+        /** Path of the file in the receiver and the base, when the giver renamed it to this path. */
+        private final String renamedFrom;
+        public FileStatus(ObjectId receiver, ObjectId giver, ObjectId base) {
+            this(receiver, giver, base, null);
+        }
+
+        /**
+         * @param renamedFrom path of the file in the receiver and base, if the giver renamed it (see {@link RenameDetector})
+         */
+        FileStatus(ObjectId receiver, ObjectId giver, ObjectId base, String renamedFrom) {
             this.status = fileStatus(receiver, giver, base);
             this.receiver = receiver;
             this.giver = giver;
             this.base = base;
+            this.renamedFrom = renamedFrom;
         }
         @Override
         public String toString() {
@@ -90,11 +123,51 @@ public class Repository {
             return status;
         }
 
-        public String getReceiver() {
+        public ObjectId getReceiver() {
             return receiver;
         }
-        public String getBase() { return base; }
-        public String getGiver() { return giver; }
+        public ObjectId getBase() { return base; }
+        public ObjectId getGiver() { return giver; }
+
+        /**
+         * Returns the SHA1 of the file after the merge: the version of the side that changed it,
+         * or the line-level merge of both versions; null if the file is removed or still in conflict.
+         */
+        public ObjectId getMerged() {
+            if (status == CONFLICT) {
+                return merged;
+            } else if (status == REMOVE) {
+                return null;
+            } else if (giver == null) {
+                return receiver;
+            } else if (receiver == null) {
+                return giver;
+            }
+            return giver.equals(base) ? receiver : giver;
+        }
+
+        /**
+         * Returns whether the merged file differs from the file at this path in the receiver,
+         * so that the working directory and the staging area have to be updated.
+         */
+        public boolean changesReceiver() {
+            return !Objects.equals(getMerged(), renamedFrom == null ? receiver : null);
+        }
+
+        public String getRenamedFrom() {
+            return renamedFrom;
+        }
+
+        /**
+         * Returns whether the file is in conflict after its lines were merged.
+         */
+        public boolean isConflicted() {
+            return status == CONFLICT && merged == null;
+        }
+
+        void setMerged(ObjectId merged) {
+            this.merged = merged;
+        }
     }
 
     /**
@@ -113,6 +186,7 @@ public class Repository {
         }
         mkdir(GITFLY_DIR);
         mkdir(OBJECTS_DIR);
+        ObjectStore.initLayout();
         mkdir(REFS_DIR);
         mkdir(HEADS_DIR);
         mkdir(TAGS_DIR);
@@ -129,10 +203,10 @@ public class Repository {
         }
         Config.initConfig();
         // Create empty snapshot of the working directory
-        String emptyTreeID = getSHA1("");
-        addObjectToObjectDirectory(emptyTreeID, "");
-        String initialCommitID = initCommit();
+        addObjectToObjectDirectory(EMPTY_FILE_ID, "");
+        ObjectId initialCommitID = initCommit();
         initBranch(initialCommitID);
+        CommitGraph.update(initialCommitID);
 
         exit("Initialized empty gitfly repository in %s", CWD.getPath());
     }
@@ -140,7 +214,7 @@ public class Repository {
     /**
      * Initializes the master branch with the initial commit.
      */
-    private static void initBranch(String commitID) {
+    private static void initBranch(ObjectId commitID) {
         File branch_file = join(HEADS_DIR, "master");
         try {
             if (branch_file.createNewFile()) {
@@ -253,8 +327,8 @@ public class Repository {
      * @return a HashSet of untracked files
      */
     private static HashSet<String> getUntrackedFiles() {
-        HashMap<String, String> workingDirectoryContents = getWorkingDirectoryContents();
-        HashMap<String, String> indexContents = Stage.getIndexContents();
+        Map<String, ObjectId> workingDirectoryContents = getWorkingDirectoryContents();
+        HashMap<String, ObjectId> indexContents = Stage.getIndexContents();
         HashSet<String> untrackedFiles = new HashSet<>();
         for (String key : workingDirectoryContents.keySet()) {
             if (!indexContents.containsKey(key)) {
@@ -270,8 +344,26 @@ public class Repository {
      * @return a HashMap of files with changes to be committed and their status codes (whether they have been added, modified or removed)
      */
     private static HashMap<String, Character> getChangesToBeCommitted() {
-        HashMap<String, FileStatus> changesFromHeadToIndex = diff("INDEX", getCurrentCommitID(), null);
-        return getStringCharacterHashMap(changesFromHeadToIndex);
+        HashMap<String, FileStatus> changesFromHeadToIndex = new HashMap<>();
+        TreeDiff.walk((path, ids) -> changesFromHeadToIndex.put(path, new FileStatus(ids[0], ids[1], ids[0])),
+                Commit.getSnapshotID(getCurrentCommitID()), Stage.getIndexContents());
+        HashMap<String, Character> changesToBeCommitted = getStringCharacterHashMap(changesFromHeadToIndex);
+        // a staged removal and a staged addition of the same or similar contents are one rename
+        HashMap<String, ObjectId> removed = new HashMap<>();
+        HashMap<String, ObjectId> added = new HashMap<>();
+        for (Map.Entry<String, FileStatus> entry : changesFromHeadToIndex.entrySet()) {
+            if (entry.getValue().getStatus() == REMOVE) {
+                removed.put(entry.getKey(), entry.getValue().getReceiver());
+            } else if (entry.getValue().getStatus() == ADD) {
+                added.put(entry.getKey(), entry.getValue().getGiver());
+            }
+        }
+        for (RenameDetector.Rename rename : RenameDetector.detect(removed, added, null, Config.getRenameThreshold())) {
+            changesToBeCommitted.remove(rename.source);
+            changesToBeCommitted.remove(rename.target);
+            changesToBeCommitted.put(rename.source + " -> " + rename.target, RENAME);
+        }
+        return changesToBeCommitted;
     }
 
     /**
@@ -287,7 +379,7 @@ public class Repository {
     /**
      * Transforms a HashMap of files with changes from the index to the working copy and their File Status objects (status, giver, receiver, base contents)
      * into a HashMap which maps filenames to status codes (only if they have been added, modified or removed).
-     * @param changesFromIndexToWorkingCopy a HashMap of files with changes from the index to the working copy {@link #diff(String, String, String)}
+     * @param changesFromIndexToWorkingCopy a HashMap of files with changes from the index to the working copy {@link #diff(ObjectId, ObjectId, ObjectId)}
      * @return a HashMap of files with changes not staged for commit and their status codes (whether they have been added, modified or removed)
      */
     private static HashMap<String, Character> getStringCharacterHashMap(HashMap<String, FileStatus> changesFromIndexToWorkingCopy) {
@@ -303,32 +395,11 @@ public class Repository {
 
     /**
      * Returns whether a given hash represents a commit ID by analyzing the contents of the file in the objects directory.
-     * @param commitID the hash to be checked
+     * @param argument the hash to be checked, as hex digits
      * @return true if the hash represents a commit ID, false otherwise
      */
-    private static boolean isCommitID(String commitID) {
-        File commitFile = join(OBJECTS_DIR, commitID);
-        if (!commitFile.exists()) {
-            return false;
-        }
-        return fileContentsToString(commitFile).split("\n")[1].split(" ")[0].equals("parent");
-    }
-
-    /*
-     * Returns the contents of the commit with the given commit ID.
-     * Used in checkoutToCommit function.
-     * The contents are returned as a HashMap mapping filenames to their contents.
-     * Every file is given by default the status NOT_CONFLICT, since this function is only used when checking out to a commit, which can be done only if there are no merge conflicts.
-     * @param commitID the commit ID of the commit whose contents are to be returned
-     */
-    private static HashMap<Stage.NameAndStatus, String> getIndexContent(String commitID) {
-        HashMap<Stage.NameAndStatus, String> indexContent = new HashMap<>();
-        // status is only used when dealing with merge conflicts, so it is set to NOT_CONFLICT at the moment.
-        HashMap<String, String> commitContent = getCommitContents(commitID);
-        for (String key : commitContent.keySet()) {
-            indexContent.put(new Stage.NameAndStatus(key, NOT_CONFLICT), commitContent.get(key));
-        }
-        return indexContent;
+    private static boolean isCommitID(String argument) {
+        return ObjectId.isValidHex(argument) && Commit.isCommit(ObjectId.fromHex(argument));
     }
 
     /**
@@ -338,8 +409,8 @@ public class Repository {
      * 2. diff between the current commit and the given commit ID
      * and then finding the intersection of files that are different in both diffs.
      */
-    private static HashSet<String> getFilesCommitWouldOverwrite(String commitID) {
-        String currentCommitID = getCurrentCommitID();
+    private static HashSet<String> getFilesCommitWouldOverwrite(ObjectId commitID) {
+        ObjectId currentCommitID = getCurrentCommitID();
         HashMap<String, FileStatus> diff1 = diff(null, getCurrentCommitID(), null);
         HashMap<String, FileStatus> diff2 = diff(commitID, getCurrentCommitID(), null);
         HashSet<String> filesToOverwrite = new HashSet<>();
@@ -357,8 +428,8 @@ public class Repository {
      * The contents are returned as a HashMap mapping filenames to their contents (SHA1s).
      * @param commitID the commit ID of the commit whose contents are to be returned
      */
-    private static HashMap<String, String> getCommitContents(String commitID) {
-        String treeID = Commit.getSnapshotID(commitID);
+    private static HashMap<String, ObjectId> getCommitContents(ObjectId commitID) {
+        ObjectId treeID = Commit.getSnapshotID(commitID);
         return getTreeContents("", treeID);
     }
 
@@ -370,56 +441,38 @@ public class Repository {
      * @param treeID the tree ID of the tree whose contents are to be returned, object whose contents can be found in OBJECTS_DIR
      * @return a HashMap mapping filenames to their contents (SHA1s)
      */
-    private static HashMap<String, String> getTreeContents(String currentDirectoryPrefix, String treeID) {
-        HashMap<String, String> result = new HashMap<>();
-        String treeContents = fileContentsToString(new File(OBJECTS_DIR, treeID));
-        if (treeContents.equals("")) {
-            return result;
-        }
-        String[] lines = treeContents.split("\n");
-        for (String line : lines) {
-            String[] tokens = line.split(" ");
-            String prefix = currentDirectoryPrefix.equals("") ? "" : currentDirectoryPrefix + "/";
-            if (tokens[0].equals("blob")) {
-                result.put(prefix + tokens[2], tokens[1]);
-            } else {
-                result.putAll(getTreeContents(prefix + tokens[2], tokens[1]));
-            }
-        }
+    static HashMap<String, ObjectId> getTreeContents(String currentDirectoryPrefix, ObjectId treeID) {
+        HashMap<String, ObjectId> result = new HashMap<>();
+        addTreeContents(result, currentDirectoryPrefix, treeID);
         return result;
     }
 
     /**
-     * Returns the contents of the working directory (the root in which .gitfly is found) as a HashMap mapping filenames to their contents (SHA1s).
+     * Adds the files of a tree (read through the {@link ObjectCache}) and of its subtrees to result.
      */
-    private static HashMap<String, String> getWorkingDirectoryContents() {
-        return getWorkingDirectoryContentsHelper(CWD, "");
+    private static void addTreeContents(HashMap<String, ObjectId> result, String currentDirectoryPrefix, ObjectId treeID) {
+        Tree tree = Tree.read(treeID);
+        String prefix = currentDirectoryPrefix.equals("") ? "" : currentDirectoryPrefix + "/";
+        for (int i = 0; i < tree.size(); i++) {
+            if (tree.isTree(i)) {
+                addTreeContents(result, prefix + tree.getName(i), tree.getID(i));
+            } else {
+                result.put(prefix + tree.getName(i), tree.getID(i));
+            }
+        }
     }
 
     /**
-     * Helper function for getWorkingDirectoryContents.
-     * Returns the contents of the working directory (the root in which .gitfly is found) as a HashMap mapping filenames to their contents (SHA1s).
-     * Gets called recursively on each subdirectory.
-     * Ignores hidden files and directories, such as .gitfly.
+     * Returns the contents of the working directory (the root in which .gitfly is found) as a Map mapping filenames to their contents (SHA1s).
+     * The directory is scanned and hashed in parallel (see {@link WorkingTreeScanner}).
+     * Files whose stat data matches their index entry reuse the SHA1 from the index instead of being hashed again.
+     * Stat data refreshed along the way is written back to the index.
      */
-    private static HashMap<String, String> getWorkingDirectoryContentsHelper(File currDirectory, String currDirectoryPrefix) {
-        File[] files = currDirectory.listFiles();
-        HashMap<String, String> result = new HashMap<>();
-        if (files == null) {
-            return result;
-        }
-        for (File file : files) {
-            if (file.getName().startsWith(".")) {
-                continue;
-            }
-            String prefix = currDirectoryPrefix.equals("") ? "" : currDirectoryPrefix + "/";
-            if (file.isFile()) {
-                result.put(prefix + file.getName(), getSHA1(fileContentsToString(file)));
-            } else {
-                result.putAll(getWorkingDirectoryContentsHelper(file, prefix + file.getName()));
-            }
-        }
-        return result;
+    static Map<String, ObjectId> getWorkingDirectoryContents() {
+        Stage.readIndex();
+        Map<String, ObjectId> contents = WorkingTreeScanner.scan(CWD, Stage.getIndexSize());
+        Stage.writeRefreshedStats();
+        return contents;
     }
 
     /**
@@ -427,9 +480,9 @@ public class Repository {
      * @param branchName the name of the branch
      * @return SHA1 of the most recent commit on the respective branch
      */
-    private static String getCommitOfBranch(String branchName) {
+    private static ObjectId getCommitOfBranch(String branchName) {
         File branch_file = join(HEADS_DIR, branchName);
-        return fileContentsToString(branch_file);
+        return ObjectId.fromHex(fileContentsToString(branch_file));
     }
 
     /**
@@ -446,14 +499,14 @@ public class Repository {
      * Returns the commit ID of the current commit by checking the contents of HEAD.
      * If HEAD is a branch, then the commit ID is the contents of the respective branch file.
      */
-    private static String getCurrentCommitID() {
+    static ObjectId getCurrentCommitID() {
         String head = fileContentsToString(HEAD);
         if (head.startsWith("ref")) {
             String[] head_split = head.split(" ");
             File branch_file = join(GITFLY_DIR, head_split[1]);
-            return fileContentsToString(branch_file);
+            return ObjectId.fromHex(fileContentsToString(branch_file));
         } else {
-            return head;
+            return ObjectId.fromHex(head);
         }
     }
 
@@ -463,7 +516,7 @@ public class Repository {
      * Parent commit for all the future commits, irrespective of branch.
      * @return the commit ID of the initial commit
      */
-    private static String initCommit() {
+    private static ObjectId initCommit() {
         Commit initialCommit = new Commit("Initial commit", EMPTY_FILE_ID, null);
         Repository.INITIAL_COMMIT_ID = initialCommit.getCommitID();
         return initialCommit.getCommitID();
@@ -476,7 +529,7 @@ public class Repository {
      * @param base SHA1 of the file in the base commit
      * @return the status of the file (ADD, REMOVE, MODIFY, CONFLICT, SAME)
      */
-    private static Character fileStatus(String receiver, String giver, String base) {
+    private static Character fileStatus(ObjectId receiver, ObjectId giver, ObjectId base) {
         if (receiver != null && giver != null && !receiver.equals(giver)) {
             if (!receiver.equals(base) && !giver.equals(base)) {
                 return CONFLICT;
@@ -496,34 +549,107 @@ public class Repository {
 
     /**
      * Computes the diff between the repository in two different states.
-     * @param giver the state of the repository before the change; if null, then the state represents the index, else a commit id
-     * @param receiver the state of the repository after the change; if null, then the state represents the working directory, else a commit id
+     * When both states are commits, their trees are compared with {@link TreeDiff}, which skips identical subtrees,
+     * and only the files that differ between the states are returned. When a base is given too, files renamed
+     * on one side carry the other side's changes to their new path (see {@link #followRenames(HashMap)}).
+     * @param giver the state of the repository before the change; if null, then the state represents the working directory, else a commit id
+     * @param receiver the state of the repository after the change; if null, then the state represents the index, else a commit id
      * @param base the base state of the repository; if null, then the base state is the same as the receiver state; used in merging
-     * @return
+     * @return a HashMap mapping filenames to their FileStatus: every filename found in any of the states,
+     *         or only the changed ones when giver and receiver are commits
      */
-    private static HashMap<String, FileStatus> diff(String giver, String receiver, String base) {
-        HashMap<String, String> receiverContents = receiver == null ? Stage.getIndexContents() : getCommitContents(receiver);
-        HashMap<String, String> giverContents;
-        if (giver == null) {
-            giverContents = getWorkingDirectoryContents();
-        } else {
-            giverContents = giver.equals("INDEX") ? Stage.getIndexContents() : getCommitContents(giver);
-        }
-        // HashMap<String, String> giverContents = giver == null ? getWorkingDirectoryContents() : getCommitContents(giver);
-//        HashMap<String, String> receiverContents;
-//        if (receiver == null) {
-//            receiverContents = getWorkingDirectoryContents();
-//        } else {
-//            receiverContents = receiver.equals("INDEX") ? Stage.getIndexContents() : getCommitContents(receiver);
-//        }
-        HashMap<String, String> baseContents = base == null ? receiverContents : getCommitContents(base);
+    static HashMap<String, FileStatus> diff(ObjectId giver, ObjectId receiver, ObjectId base) {
+        if (giver != null && receiver != null) {
+            HashMap<String, FileStatus> diffResult = new HashMap<>();
+            ObjectId giverTree = Commit.getSnapshotID(giver);
+            ObjectId receiverTree = Commit.getSnapshotID(receiver);
+            if (base == null) {
+                TreeDiff.walk((path, ids) -> diffResult.put(path, new FileStatus(ids[1], ids[0], ids[1])), giverTree, receiverTree);
+            } else {
+                TreeDiff.walk((path, ids) -> diffResult.put(path, new FileStatus(ids[1], ids[0], ids[2])),
+                        giverTree, receiverTree, Commit.getSnapshotID(base));
+                followRenames(diffResult);
+            }
+            return diffResult;
+        }
+        Map<String, ObjectId> receiverContents = receiver == null ? Stage.getIndexContents() : getCommitContents(receiver);
+        Map<String, ObjectId> giverContents = giver == null ? getWorkingDirectoryContents() : getCommitContents(giver);
+        Map<String, ObjectId> baseContents = base == null ? null : getCommitContents(base);
+        return diffContents(giverContents, receiverContents, baseContents);
+    }
+
+    /**
+     * Rewrites the diff of a merge so that the changes made to a file follow it when the other side renamed it.
+     * Renames between the base and each side are found with {@link RenameDetector}, among the files that side removed
+     * and the files it added. When one side renamed a file, its new path gets the base version and each side's version,
+     * which are then merged as any other file, and its old path stays removed. A file both sides renamed to the same path
+     * is merged with its base version; a file renamed to two different paths, removed by the other side, or renamed to a
+     * path the other side added a file at is left as a removal and an addition.
+     * @param diffResult diff between the receiver, the giver and their base
+     */
+    private static void followRenames(HashMap<String, FileStatus> diffResult) {
+        HashMap<String, ObjectId> removedByReceiver = new HashMap<>();
+        HashMap<String, ObjectId> addedByReceiver = new HashMap<>();
+        HashMap<String, ObjectId> removedByGiver = new HashMap<>();
+        HashMap<String, ObjectId> addedByGiver = new HashMap<>();
+        for (Map.Entry<String, FileStatus> entry : diffResult.entrySet()) {
+            FileStatus status = entry.getValue();
+            if (status.getBase() != null && status.getReceiver() == null) {
+                removedByReceiver.put(entry.getKey(), status.getBase());
+            } else if (status.getBase() == null && status.getReceiver() != null) {
+                addedByReceiver.put(entry.getKey(), status.getReceiver());
+            }
+            if (status.getBase() != null && status.getGiver() == null) {
+                removedByGiver.put(entry.getKey(), status.getBase());
+            } else if (status.getBase() == null && status.getGiver() != null) {
+                addedByGiver.put(entry.getKey(), status.getGiver());
+            }
+        }
+        int threshold = Config.getRenameThreshold();
+        HashMap<String, String> receiverRenames = new HashMap<>();
+        for (RenameDetector.Rename rename : RenameDetector.detect(removedByReceiver, addedByReceiver, null, threshold)) {
+            receiverRenames.put(rename.source, rename.target);
+        }
+        HashMap<String, String> giverRenames = new HashMap<>();
+        for (RenameDetector.Rename rename : RenameDetector.detect(removedByGiver, addedByGiver, null, threshold)) {
+            giverRenames.put(rename.source, rename.target);
+        }
+
+        for (Map.Entry<String, String> rename : giverRenames.entrySet()) {
+            FileStatus source = diffResult.get(rename.getKey());
+            FileStatus target = diffResult.get(rename.getValue());
+            String receiverTarget = receiverRenames.get(rename.getKey());
+            if (receiverTarget != null) {
+                if (receiverTarget.equals(rename.getValue())) {
+                    diffResult.put(rename.getValue(), new FileStatus(target.getReceiver(), target.getGiver(), source.getBase()));
+                }
+            } else if (source.getReceiver() != null && target.getReceiver() == null) {
+                diffResult.put(rename.getValue(), new FileStatus(source.getReceiver(), target.getGiver(), source.getBase(), rename.getKey()));
+            }
+        }
+        for (Map.Entry<String, String> rename : receiverRenames.entrySet()) {
+            FileStatus source = diffResult.get(rename.getKey());
+            FileStatus target = diffResult.get(rename.getValue());
+            if (!giverRenames.containsKey(rename.getKey()) && source.getGiver() != null && target.getGiver() == null) {
+                diffResult.put(rename.getValue(), new FileStatus(target.getReceiver(), source.getGiver(), source.getBase()));
+            }
+        }
+    }
+
+    /**
+     * Computes the diff between the contents of two states of the repository, given as maps from filenames to SHA1s.
+     * @param baseContents contents of the base state; if null, then the base state is the same as the receiver state
+     */
+    private static HashMap<String, FileStatus> diffContents(Map<String, ObjectId> giverContents, Map<String, ObjectId> receiverContents, Map<String, ObjectId> baseContents) {
+        if (baseContents == null) {
+            baseContents = receiverContents;
+        }
         HashMap<String, FileStatus> diffResult = new HashMap<>();
         Set<String> allKeys = new HashSet<>(receiverContents.keySet());
         allKeys.addAll(giverContents.keySet());
         allKeys.addAll(baseContents.keySet());
-        String defaultValue = null;
         for (String key : allKeys) {
-            diffResult.put(key, new FileStatus(receiverContents.getOrDefault(key, null), giverContents.getOrDefault(key, null), baseContents.getOrDefault(key, defaultValue)));
+            diffResult.put(key, new FileStatus(receiverContents.get(key), giverContents.get(key), baseContents.get(key)));
         }
         return diffResult;
     }
@@ -531,71 +657,95 @@ public class Repository {
     /**
      * Returns the contents of a file found in conflict by concatenating the contents of the giver and receiver files.
      * The contents of the two file's versions are separated by the conflict markers.
-     * Will be used to write the contents of the conflicted file to the working directory at the 5th step of merging.
+     * Only used for binary files, whose lines can't be merged (see {@link LineMerge}).
      * @param giverID SHA1 of the giver file
      * @param receiverID SHA1 of the receiver file
+     * @param giver name of the giver branch
      * @return the contents of the file found in conflict
      */
-    private static String getContentOfConflictedFile(String giverID, String receiverID) {
-        return "<<<<<<< HEAD\n" + fileContentsToString(join(OBJECTS_DIR, receiverID)) +
+    private static String getContentOfConflictedFile(ObjectId giverID, ObjectId receiverID, String giver) {
+        return "<<<<<<< HEAD\n" + ObjectStore.readString(receiverID) +
                 "=======\n" +
-                fileContentsToString(join(OBJECTS_DIR, giverID)) +
-                ">>>>>>> branch\n";
+                ObjectStore.readString(giverID) +
+                ">>>>>>> " + giver + "\n";
     }
 
     /**
      * Writes the contents of the files in the working directory based on the diff between the giver, receiver and base commits.
-     * @param giver commit ID of the giver commit
-     * @param receiver commit ID of the receiver commit
-     * @param base commit ID of the base commit
+     * The lines of files in conflict are merged with {@link LineMerge}: a file whose changes don't overlap is stored
+     * and recorded as merged in its FileStatus, so it is no longer in conflict; otherwise only the overlapping chunks get
+     * conflict markers. Files that only the receiver changed are left as they are.
+     * The files are written and deleted in parallel by a {@link WorkingTreeWriter}.
+     * @param writeToWorkingCopy diff between the giver, receiver and base commits
+     * @param giver name of the giver branch, used in the conflict markers
      */
-    private static void writeToWorkingCopyForMerge(String giver, String receiver, String base) {
-        HashMap<String, FileStatus> writeToWorkingCopy = diff(giver, receiver, base);
+    private static void writeToWorkingCopyForMerge(HashMap<String, FileStatus> writeToWorkingCopy, String giver) {
+        WorkingTreeWriter writer = new WorkingTreeWriter(CWD);
         for (String key : writeToWorkingCopy.keySet()) {
-            if (writeToWorkingCopy.get(key).getStatus() == MODIFY) {
-                writeContents(join(CWD, key), fileContentsToString(join(OBJECTS_DIR, writeToWorkingCopy.get(key).getGiver())));
-            } else if (writeToWorkingCopy.get(key).getStatus() == REMOVE) {
-                join(CWD, key).delete();
-            } else if (writeToWorkingCopy.get(key).getStatus() == ADD) {
-                if (writeToWorkingCopy.get(key).getGiver() != null) {
-                    writeContents(join(CWD, key), fileContentsToString(join(OBJECTS_DIR, writeToWorkingCopy.get(key).getGiver())));
+            FileStatus status = writeToWorkingCopy.get(key);
+            if (status.getStatus() == CONFLICT) {
+                byte[] receiverContent = ObjectStore.read(status.getReceiver());
+                byte[] giverContent = ObjectStore.read(status.getGiver());
+                byte[] baseContent = status.getBase() == null ? new byte[0] : ObjectStore.read(status.getBase());
+                if (LineDiff.isBinary(receiverContent) || LineDiff.isBinary(giverContent) || LineDiff.isBinary(baseContent)) {
+                    writer.write(key, getContentOfConflictedFile(status.getGiver(), status.getReceiver(), giver)
+                            .getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                LineMerge.Result result = LineMerge.merge(baseContent, receiverContent, giverContent, "HEAD", giver, Config.getDiffAlgorithm());
+                if (result.isClean()) {
+                    ObjectId merged = ObjectId.hash(result.content);
+                    ObjectStore.write(merged, result.content);
+                    status.setMerged(merged);
+                    writer.write(key, merged);
+                } else {
+                    writer.write(key, result.content);
+                }
+            } else if (status.changesReceiver()) {
+                if (status.getMerged() == null) {
+                    writer.delete(key);
                 } else {
-                    writeContents(join(CWD, key), fileContentsToString(join(OBJECTS_DIR, writeToWorkingCopy.get(key).getReceiver())));
+                    writer.write(key, status.getMerged());
                 }
-            } else if (writeToWorkingCopy.get(key).getStatus() == CONFLICT) {
-                writeContents(join(CWD, key), getContentOfConflictedFile(writeToWorkingCopy.get(key).getGiver(), writeToWorkingCopy.get(key).getReceiver()));
             }
         }
+        writer.apply();
     }
 
     /**
      * Modifies the working directory and the index to match the files in the given commit ID.
-     * Aborts if there are files that would be overwritten by checkout.
+     * Only the files that differ between the current commit and the given one are touched: the two trees are compared
+     * with {@link TreeDiff}, which skips identical subtrees, and only the matching index entries are updated,
+     * so the cost depends on the number of changed files rather than on the size of the snapshot.
+     * The files are written and deleted in parallel by a {@link WorkingTreeWriter}.
      * @param commitID commit ID of the commit to check out to
      */
-    private static void checkoutToCommit(String commitID) {
-//        HashSet<String> filesThatWouldBeOverwritten = getFilesCommitWouldOverwrite(commitID);
-//        if (!filesThatWouldBeOverwritten.isEmpty()) {
-//            exit("There are files that would be overwritten by checkout.");
-//        }
-        // Modify the working directory to match the files in the given commit ID
-        // writeToWorkingCopyForMerge(getCurrentCommitID(), commitID, null);
-        HashMap<String, FileStatus> writeToWorkingCopy = diff(commitID, getCurrentCommitID(), null);
-        for (String key : writeToWorkingCopy.keySet()) {
-            if (writeToWorkingCopy.get(key).getStatus() == MODIFY) {
-                writeContents(join(CWD, key), fileContentsToString(join(OBJECTS_DIR, writeToWorkingCopy.get(key).getGiver())));
-            } else if (writeToWorkingCopy.get(key).getStatus() == REMOVE) {
-                join(CWD, key).delete();
-            } else if (writeToWorkingCopy.get(key).getStatus() == ADD) {
-                if (writeToWorkingCopy.get(key).getReceiver() != null) {
-                    writeContents(join(CWD, key), fileContentsToString(join(OBJECTS_DIR, writeToWorkingCopy.get(key).getReceiver())));
-                } else {
-                    writeContents(join(CWD, key), fileContentsToString(join(OBJECTS_DIR, writeToWorkingCopy.get(key).getGiver())));
-                }
+    private static void checkoutToCommit(ObjectId commitID) {
+        Stage.lock();
+        WorkingTreeWriter writer = new WorkingTreeWriter(CWD);
+        LinkedHashMap<String, ObjectId> written = new LinkedHashMap<>();
+        List<String> deleted = new ArrayList<>();
+        TreeDiff.walk((path, ids) -> {
+            if (ids[1] == null) {
+                writer.delete(path);
+                deleted.add(path);
+            } else {
+                writer.write(path, ids[1]);
+                written.put(path, ids[1]);
             }
+        }, Commit.getSnapshotID(getCurrentCommitID()), Commit.getSnapshotID(commitID));
+        writer.apply();
+
+        Stage.readIndex();
+        for (String path : deleted) {
+            Stage.removeFromIndex(path, 0);
+        }
+        for (Map.Entry<String, ObjectId> entry : written.entrySet()) {
+            // the file now matches the entry, so later scans don't have to hash it again
+            Stage.addToIndex(entry.getKey(), 0, entry.getValue(), writer.getStat(entry.getKey()));
         }
-        // update the index to match the files in the given commit ID
-        Stage.updateIndex(getIndexContent(commitID));
+        Stage.save();
+        outputMessage("Updated %d files, deleted %d files.", writer.getWritten(), writer.getDeleted());
     }
 
     /**
@@ -621,7 +771,7 @@ public class Repository {
             if (argument.equals(fileContentsToString(HEAD))) {
                 exit("[DETACHED HEAD STATE]\nNo need to checkout the current commit.");
             }
-            checkoutToCommit(argument);
+            checkoutToCommit(ObjectId.fromHex(argument));
             modifyHEAD(argument);
             exit("Note: checking out to %s\nYou are in detached HEAD state", argument);
         } else {
@@ -642,7 +792,8 @@ public class Repository {
      *      3.4. Generate a diff that specifies the status of each file analyzing the contents of the receiver, giver and base.
      *          3.4.1. If the file is different in all three commits, then it is a merge conflict.
      *      3.5. Apply changes to the working directory.
-     *          3.5.1. If there are any files found in conflict, write both versions (receiver and giver) to the working directory (invoke getContentOfConflictedFile function).
+     *          3.5.1. If there are any files found in conflict, merge their lines (see {@link LineMerge}): files whose changes don't overlap are merged,
+     *                 the others get conflict markers around the overlapping chunks.
      *      3.6. Write the contents of the working directory to the index.
      *          3.6.1. If there are any files found in conflict, write three versions in the index: 1 - SHA1 of base contents, 2 - SHA1 of receiver contents, 3 - SHA1 of giver contents
      *
@@ -661,11 +812,11 @@ public class Repository {
         if (detachedHeadState()) {
             exit("Merges are unsupported in detached head state");
         }
-        String receiverID = getCurrentCommitID();
+        ObjectId receiverID = getCurrentCommitID();
         if (!isBranchName(giver)) {
             exit("Branch %s doesn't exist.", giver);
         }
-        String giverID = getCommitIDOfBranch(giver);
+        ObjectId giverID = getCommitIDOfBranch(giver);
         if (giverID.equals(receiverID)) {
             exit("Cannot merge a branch with itself.");
         }
@@ -681,16 +832,17 @@ public class Repository {
         if (MERGE_HEAD.exists()) {
             exit("Merge already happening.");
         }
+        Stage.lock();
         try {
             MERGE_HEAD.createNewFile();
         } catch (IOException e) {
             exit("Error creating MERGE_HEAD file.");
         }
         writeContents(MERGE_HEAD, giverID);
-        String baseID = getLCA(giverID, receiverID);
+        ObjectId baseID = getLCA(giverID, receiverID);
         HashMap<String, FileStatus> diffResult = diff(giverID, receiverID, baseID);
 
-        writeToWorkingCopyForMerge(giverID, receiverID, baseID);
+        writeToWorkingCopyForMerge(diffResult, giver);
 
         Stage.updateIndexFromDiff(diffResult);
 
@@ -698,10 +850,13 @@ public class Repository {
 
         if (filesInConflict.isEmpty()) {
             String commitMessage = "Merged " + giver + " into " + getCurrentBranchName() + ".";
-            String newTreeID = buildUpdatedTree(CWD, EMPTY_FILE_ID, getWorkingDirectoryContents(), null);
+            ObjectId newTreeID = buildUpdatedTree(CWD, Commit.getSnapshotID(receiverID), Stage.TO_ADD_FILES, Stage.TO_REMOVE_FILES);
+            Stage.clear();
+            Stage.writeAll();
             Commit newCommit = new Commit(commitMessage, newTreeID, giverID);
             MERGE_HEAD.delete();
             updateCurrentBranch(newCommit.getCommitID());
+            CommitGraph.update(newCommit.getCommitID());
             exit("Merged %s into %s.", giver, getCurrentBranchName());
         } else {
             exit("Encountered a merge conflict.\nThe following files are in conflict:\n%s", filesInConflict.toString().replace("[", "").replace("]", ""));
@@ -712,7 +867,7 @@ public class Repository {
      * Returns a HashSet of the files found in conflict by extracting entries with status different to 0 in index.
      */
     private static HashSet<String> getFilesInConflict() {
-        HashMap<Stage.NameAndStatus, String> indexFiles = Stage.getIndexFiles();
+        HashMap<Stage.NameAndStatus, ObjectId> indexFiles = Stage.getIndexFiles();
         HashSet<String> filesInConflict = new HashSet<>();
         for (Stage.NameAndStatus nameAndStatus : indexFiles.keySet()) {
             if (nameAndStatus.getStatus() != 0) {
@@ -725,12 +880,12 @@ public class Repository {
     /**
      * Returns a HashSet of files found in conflict by analyzing the contents of a diff object.
      * @param files diff object
-     * @return  file entries with status CONFLICT in the files HashMap
+     * @return  file entries with status CONFLICT in the files HashMap whose lines couldn't be merged
      */
     private static HashSet<String> getFilesInConflict(HashMap<String, FileStatus> files) {
         HashSet<String> filesInConflict = new HashSet<>();
         for (String filename : files.keySet()) {
-            if (files.get(filename).getStatus() == CONFLICT) {
+            if (files.get(filename).isConflicted()) {
                 filesInConflict.add(filename);
             }
         }
@@ -739,49 +894,45 @@ public class Repository {
 
     /**
      * Identify the higher commit in the commit tree.
-     * Traverse the two arrays simultaneously until a common commit is found.
-     * Complexity of reading operation: O(commit tree height)
-     * Complexity of LCA identification: O(commit tree height)
-     * Thus, the complexity of the query is linear in terms of the commit tree height.
+     * The commit with the higher generation number (see {@link CommitGraph}) is first moved up to the generation of the other one,
+     * then both are moved up together until they meet.
+     * Parents and generations come from the commit-graph, so no commit objects are read for commits already in the graph.
+     * Complexity: O(distance from the two commits to their LCA)
      * @param commit1 SHA1 of the first commit object
      * @param commit2 SHA1 of the second commit object
      * @return SHA1 of the lowest common ancestor of the two commits
      */
-    private static String getLCA(String commit1, String commit2) {
-        ArrayList<String> ancestors1 = getAncestorsOfCommit(commit1);
-        ArrayList<String> ancestors2 = getAncestorsOfCommit(commit2);
-        int minNodeIndex = Math.min(ancestors1.size(), ancestors2.size());
-        for (int i = minNodeIndex - 1; i >= 0; --i) {
-            if (ancestors1.get(i).equals(ancestors2.get(i))) {
-                return ancestors1.get(i);
-            }
+    static ObjectId getLCA(ObjectId commit1, ObjectId commit2) {
+        int generation1 = CommitGraph.getGeneration(commit1);
+        int generation2 = CommitGraph.getGeneration(commit2);
+        for (; generation1 > generation2; generation1--) {
+            commit1 = CommitGraph.getParent(commit1);
+        }
+        for (; generation2 > generation1; generation2--) {
+            commit2 = CommitGraph.getParent(commit2);
         }
-        return null;
+        while (commit1 != null && !commit1.equals(commit2)) {
+            commit1 = CommitGraph.getParent(commit1);
+            commit2 = CommitGraph.getParent(commit2);
+        }
+        return commit1;
     }
 
     /**
-     * Returns whether the commit object identified by childID is a direct descendant of the commit object identified by parentID.
+     * Returns whether the commit object identified by childID is an ancestor of the commit object identified by parentID
+     * (or the same commit).
+     * The walk up from parentID stops as soon as it reaches the generation of childID.
      * @param childID SHA1 of first commit object
      * @param parentID SHA1 of second commit object
-     * @return true if childID is a descendant of parentID
+     * @return true if childID is an ancestor of parentID
      */
-    private static boolean isAncestor(String childID, String parentID) {
-        return getAncestorsOfCommit(parentID).contains(childID);
-    }
-
-    /**
-     * Returns an ArrayList of the SHA1 of the commit objects in the commit tree directly above the commit object identified by commitID.
-     * @param commitID SHA1 of the commit object
-     * @return ArrayList of SHA1 of the commit object ancestors of commitID in the commit tree
-     */
-    private static ArrayList<String> getAncestorsOfCommit(String commitID) {
-        ArrayList<String> ancestors = new ArrayList<>();
-        String currentCommitID = commitID;
-        while (!currentCommitID.equals("null")) {
-            ancestors.add(currentCommitID);
-            currentCommitID = Commit.getParentID(currentCommitID);
+    private static boolean isAncestor(ObjectId childID, ObjectId parentID) {
+        int target = CommitGraph.getGeneration(childID);
+        ObjectId current = parentID;
+        for (int generation = CommitGraph.getGeneration(parentID); generation > target; generation--) {
+            current = CommitGraph.getParent(current);
         }
-        return ancestors;
+        return childID.equals(current);
     }
 
     /**
@@ -789,9 +940,9 @@ public class Repository {
      * @param branch of the branch
      * @return SHA1 of branch's latest commit
      */
-    private static String getCommitIDOfBranch(String branch) {
+    private static ObjectId getCommitIDOfBranch(String branch) {
         File branch_file = join(HEADS_DIR, branch);
-        return fileContentsToString(branch_file);
+        return ObjectId.fromHex(fileContentsToString(branch_file));
     }
 
     /**
@@ -803,80 +954,60 @@ public class Repository {
     }
 
     /**
-     * Accepts a variable number of paths.
-     * Computes an ArrayList of all the files which satisfy the paths (the files that exist in the working directory).
-     * For each such file, builds a Blob object.
-     * Adds to OBJ_DIR a Blob object (name: SHA1 of content, content: binary of original content)
-     * Adds {status} {SHA1} {filename} to index and replaces old SHA1 with new SHA1 if necessary.
-     * If the index contains conflicting entries, the conflicting entries are removed.
-     * @param paths variable number of paths to be added to the index and to the toAdd list
+     * Accepts a variable number of pathspecs: files, directories ("." is the whole working directory) or globs
+     * (see {@link Pathspec}).
+     * The files matching them are hashed and stored as blobs in parallel on the {@link Workers} pool; files whose stat data
+     * matches their index entry reuse the SHA1 from the index instead.
+     * For each file, adds {status} {SHA1} {filename} to the index (removing conflicting entries) and to TO_ADD,
+     * and removes it from TO_REMOVE. All the changes are made in memory and saved at once (see {@link Stage#save()}).
+     * @param paths variable number of pathspecs to be added to the index and to the toAdd list
      */
     static void add(String... paths) {
-        // create array lists with paths that exist in CWD
-        List<File> files = new ArrayList<File>();
+        Pathspec pathspec = new Pathspec(CWD);
+        // a file matched by several pathspecs is added once
+        LinkedHashSet<String> matched = new LinkedHashSet<>();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
         for (String path : paths) {
-            File file = getFile(String.valueOf(CWD), path);
-            if (file == null) {
-                System.out.printf("No files matching %s", path);
-                System.out.println();
-            } else {
-                System.out.println("File added: " + file.getPath());
-                // append file to files array
-                files.add(file);
-            }
-        }
-        Stage.readAll();
-        for (File filename : files) {
-            Blob blob = new Blob(filename);
-            addObjectToObjectDirectory(blob.getID(), blob.getStringData());
-
-            String filepath = blob.getRelativePath();
-            String newBlobHash = blob.getID();
-            ArrayList<String> oldBlobHashes = new ArrayList<>(Arrays.asList(Stage.getFromIndex(NOT_CONFLICT, filepath), Stage.getFromIndex(CONFLICT_BASE, filepath), Stage.getFromIndex(CONFLICT_GIVER, filepath), Stage.getFromIndex(CONFLICT_RECEIVER, filepath)));
-            // OLD :String oldBlobHash = Stage.getFromIndex(NOT_CONFLICT, filepath);
-
-            // Check if merge conflicts exist
-            // If they do, remove them from the index
-            // Add the file to the index with the NOT_CONFLICT status
-            if (oldBlobHashes.get(1) != null || oldBlobHashes.get(2) != null || oldBlobHashes.get(3) != null) {
-                Stage.readIndex();
-                Stage.removeFromIndex(filepath, CONFLICT_BASE);
-                Stage.removeFromIndex(filepath, CONFLICT_GIVER);
-                Stage.removeFromIndex(filepath, CONFLICT_RECEIVER);
-                Stage.addToIndex(filepath, NOT_CONFLICT, newBlobHash);
-                Stage.writeIndex();
-            }
-            // Check if the file is already in the index
-            // If it is, check if the hash is the same
-            // If it is not, replace the hash in the index with the new hash
-            else if (oldBlobHashes.get(0) == null || !oldBlobHashes.get(0).equals(newBlobHash)) {
-                if (oldBlobHashes.get(0) != null) {
-                    Stage.readIndex();
-                    Stage.removeFromIndex(filepath, NOT_CONFLICT);
-                    Stage.writeIndex();
-                }
-                Stage.addToIndex(filepath, NOT_CONFLICT, newBlobHash);
-                Stage.writeAll();
+            List<String> files = pathspec.match(path);
+            if (files.isEmpty()) {
+                out.printf("No files matching %s", path);
+                out.println();
             }
-            // Now the file is in the index with the correct value
-            // If it is in TO_ADD with another value, replace it with the correct value
-            if (Stage.getFromToAdd(filepath) == null || !Stage.getFromToAdd(filepath).equals(newBlobHash)) {
-                if (Stage.getFromToAdd(filepath) != null) {
-                    Stage.readAll();
-                    Stage.removeFromToAdd(filepath);
-                    Stage.writeAll();
+            for (String file : files) {
+                if (matched.add(file)) {
+                    out.println("File added: " + CWD.getPath() + "/" + file);
                 }
-                Stage.readAll();
-                Stage.addToToAdd(filepath, newBlobHash);
-                Stage.writeAll();
             }
-            // Now the file is in TO_ADD with the correct value
-            // If the file is found in TO_REMOVE, remove it from TO_REMOVE
-            if (Stage.isInToRemove(filepath)) {
-                Stage.removeFromToRemove(filepath);
+        }
+        out.flush();
+
+        Stage.lock();
+        Stage.readAll();
+        String[] filepaths = matched.toArray(new String[0]);
+        ObjectId[] ids = new ObjectId[filepaths.length];
+        FileStat[] stats = new FileStat[filepaths.length];
+        Workers.pool().submit(() -> IntStream.range(0, filepaths.length).parallel().forEach(i -> {
+            File file = join(CWD, filepaths[i]);
+            // stat before reading, so that a write racing with the hashing shows up as a stat change later
+            stats[i] = FileStat.of(file);
+            ids[i] = Stage.getUpToDateID(filepaths[i], stats[i]);
+            if (ids[i] == null) {
+                // hashes the file and stores it in the object store in a single streaming pass
+                ids[i] = new Blob(file).getID();
             }
+        })).join();
+
+        for (int i = 0; i < filepaths.length; i++) {
+            String filepath = filepaths[i];
+            // the file replaces the conflicting versions, if it was in conflict
+            Stage.removeFromIndex(filepath, CONFLICT_BASE);
+            Stage.removeFromIndex(filepath, CONFLICT_GIVER);
+            Stage.removeFromIndex(filepath, CONFLICT_RECEIVER);
+            Stage.addToIndex(filepath, NOT_CONFLICT, ids[i], stats[i]);
+            Stage.addToToAdd(filepath, ids[i]);
+            Stage.removeFromToRemove(filepath);
         }
-        Stage.writeAll();
+        Stage.save();
     }
 
     /**
@@ -889,16 +1020,14 @@ public class Repository {
      * @param paths paths to be removed from index and working directory.
      */
     static void rm(String ...paths) {
+        Stage.lock();
         Stage.readAll();
         for (String path : paths) {
-            ArrayList<String> oldBlobHashes = new ArrayList<String>(Arrays.asList(Stage.getFromIndex(NOT_CONFLICT, path), Stage.getFromIndex(CONFLICT_BASE, path), Stage.getFromIndex(CONFLICT_GIVER, path), Stage.getFromIndex(CONFLICT_RECEIVER, path)));
-            if (oldBlobHashes.get(0) != null || oldBlobHashes.get(1) != null || oldBlobHashes.get(2) != null || oldBlobHashes.get(3) != null) {
-                Stage.readIndex();
+            if (Stage.isInIndex(path)) {
                 Stage.removeFromIndex(path, NOT_CONFLICT);
                 Stage.removeFromIndex(path, CONFLICT_BASE);
                 Stage.removeFromIndex(path, CONFLICT_GIVER);
                 Stage.removeFromIndex(path, CONFLICT_RECEIVER);
-                Stage.writeIndex();
                 System.out.println(path + " got removed from index");
                 Stage.addToToRemove(path);
                 if (Stage.getFromToAdd(path) != null) {
@@ -913,17 +1042,16 @@ public class Repository {
                 System.out.println("No reason to remove the file.");
             }
         }
-        Stage.writeAll();
+        Stage.save();
     }
 
     /**
-     * Add a file to the object directory OBJECTS_DIR.
-     * @param name name of file
-     * @param content content of file
+     * Add an object to the object store (see {@link ObjectStore}).
+     * @param name SHA1 of the object
+     * @param content content of the object
      */
-    static void addObjectToObjectDirectory(String name, String content) {
-        File object = join(OBJECTS_DIR, name);
-        writeContents(object, content);
+    static void addObjectToObjectDirectory(ObjectId name, String content) {
+        ObjectStore.write(name, content);
     }
 
     /**
@@ -934,6 +1062,7 @@ public class Repository {
      * @param message message of the commit
      */
     static void commit(String message) {
+        Stage.lock();
         HashSet<String> filesInConflict = getFilesInConflict();
         if (filesInConflict.size() > 0) {
             exit("Cannot perform this command until the merge conflict has been resolved.");
@@ -948,17 +1077,19 @@ public class Repository {
      * @param message message of the commit
      * @param commitID parent of the new commit
      */
-    private static void createCommit(String message, String commitID) {
+    private static void createCommit(String message, ObjectId commitID) {
         Stage.readAll();
-        String buildTree = buildUpdatedTree(CWD, Commit.getSnapshotID(commitID), Stage.TO_ADD_FILES, Stage.TO_REMOVE_FILES);
+        ObjectId buildTree = buildUpdatedTree(CWD, Commit.getSnapshotID(commitID), Stage.TO_ADD_FILES, Stage.TO_REMOVE_FILES);
         if (MERGE_HEAD.exists()) {
             Commit commit = new Commit(message + "\nResolved merge conflict.\n", buildTree, commitID);
             File merge_head = join(GITFLY_DIR, "MERGE_HEAD");
             merge_head.delete();
             updateCurrentBranch(commit.getCommitID());
+            CommitGraph.update(commit.getCommitID());
         } else {
             Commit commit = new Commit(message, buildTree, commitID);
             updateCurrentBranch(commit.getCommitID());
+            CommitGraph.update(commit.getCommitID());
         }
         Stage.clear();
         Stage.writeAll();
@@ -968,7 +1099,7 @@ public class Repository {
      * Updates the current branch to point to the given commit ID.
      * @param newCommitID commit ID to be pointed to
      */
-    private static void updateCurrentBranch(String newCommitID) {
+    private static void updateCurrentBranch(ObjectId newCommitID) {
         String name = getCurrentBranchName();
         if (name == null) {
             writeContents(HEAD, newCommitID);
@@ -980,50 +1111,54 @@ public class Repository {
 
     /**
      * Builds a new tree based on the old tree and the files in TO_ADD and TO_REMOVE.
-     * Used for creating snapshot files of new commits.
+     * Used for creating snapshot files of new commits. toAdd and toRemove are consumed.
+     */
+    static ObjectId buildUpdatedTree(File currentDirectory, ObjectId oldTreeHash, HashMap<String, ObjectId> toAdd, HashSet <String> toRemove) {
+        Telemetry.TreeBuild event = new Telemetry.TreeBuild();
+        event.start();
+        event.added = toAdd.size();
+        event.removed = toRemove.size();
+        ObjectId treeID = buildTree(currentDirectory, oldTreeHash, toAdd, toRemove);
+        event.finish(Telemetry.Phase.TREE_BUILD, 0);
+        return treeID;
+    }
+
+    /**
      * Recursive helper function for buildUpdatedTree.
      */
-    private static String buildUpdatedTree(File currentDirectory, String oldTreeHash, HashMap<String, String> toAdd, HashSet <String> toRemove) {
-        File oldTree = join(OBJECTS_DIR, oldTreeHash);
-        String oldTreeContent = fileContentsToString(oldTree);
+    private static ObjectId buildTree(File currentDirectory, ObjectId oldTreeHash, HashMap<String, ObjectId> toAdd, HashSet <String> toRemove) {
+        Tree oldTree = Tree.read(oldTreeHash);
         StringBuilder newTreeContent = new StringBuilder();
-        if (!oldTreeContent.equals("")) {
-            for (String line : oldTreeContent.split("\n")) {
-                String type, hash, filename;
-                type = line.split(" ")[0];
-                hash = line.split(" ")[1];
-                filename = line.split(" ")[2];
-                // System.out.println("type: " + type + " hash: " + hash + " filename: " + filename);
-                if (type.equals("blob")) {
-                    if (toAdd.containsKey(filename)) {
-                        String newHash = toAdd.get(filename);
-                        newTreeContent.append("blob").append(" ").append(newHash).append(" ").append(filename).append("\n");
-                        toAdd.remove(filename);
-                    }
-                    else if (!toRemove.contains(filename)) {
-                        newTreeContent.append(line).append("\n");
-                    } else {
-                        toRemove.remove(filename);
-                    }
-                } else if (type.equals("tree")) {
-                    // Keys must start with "${filename}/"
-                    HashMap<String, String> newToAdd = fromDirectory(toAdd, filename);
-                    HashSet<String> newToRemove = fromDirectory(toRemove, filename);
-                    removeFilesFromDirectory(toAdd, filename);
-                    removeFilesFromDirectory(toRemove, filename);
-                    if (!newToAdd.isEmpty()|| !newToRemove.isEmpty()) {
-                        File goDown = join(currentDirectory, filename);
-                        String newHash = buildUpdatedTree(goDown, hash, newToAdd, newToRemove);
-                        newTreeContent.append("tree").append(" ").append(newHash).append(" ").append(filename).append("\n");
-                    } else {
-                        newTreeContent.append(line).append("\n");
-                    }
+        for (int i = 0; i < oldTree.size(); i++) {
+            ObjectId hash = oldTree.getID(i);
+            String filename = oldTree.getName(i);
+            if (!oldTree.isTree(i)) {
+                if (toAdd.containsKey(filename)) {
+                    ObjectId newHash = toAdd.get(filename);
+                    newTreeContent.append("blob").append(" ").append(newHash).append(" ").append(filename).append("\n");
+                    toAdd.remove(filename);
+                }
+                else if (!toRemove.contains(filename)) {
+                    newTreeContent.append("blob").append(" ").append(hash).append(" ").append(filename).append("\n");
+                } else {
+                    toRemove.remove(filename);
                 }
+            } else {
+                // Keys must start with "${filename}/"
+                HashMap<String, ObjectId> newToAdd = fromDirectory(toAdd, filename);
+                HashSet<String> newToRemove = fromDirectory(toRemove, filename);
+                removeFilesFromDirectory(toAdd, filename);
+                removeFilesFromDirectory(toRemove, filename);
+                if (!newToAdd.isEmpty()|| !newToRemove.isEmpty()) {
+                    File goDown = join(currentDirectory, filename);
+                    hash = buildTree(goDown, hash, newToAdd, newToRemove);
+                }
+                newTreeContent.append("tree").append(" ").append(hash).append(" ").append(filename).append("\n");
             }
         }
         Set <String> visitedChildDirectories = new HashSet<>();
         for (String filename : toAdd.keySet()) {
-            String hash = toAdd.get(filename);
+            ObjectId hash = toAdd.get(filename);
             // System.out.println("filename: " + filename + " hash: " + hash);
             if (isNormalFile(filename)) {
                 newTreeContent.append("blob").append(" ").append(hash).append(" ").append(filename).append("\n");
@@ -1037,12 +1172,12 @@ public class Repository {
 //                if (goDown.exists()) {
 //                    System.out.println("goDown: " + goDown);
 //                }
-                String newHash = buildUpdatedTree(goDown, getSHA1(""), fromDirectory(toAdd, firstChildDirectory), fromDirectory(toRemove, firstChildDirectory));
+                ObjectId newHash = buildTree(goDown, EMPTY_FILE_ID, fromDirectory(toAdd, firstChildDirectory), fromDirectory(toRemove, firstChildDirectory));
                 newTreeContent.append("tree").append(" ").append(newHash).append(" ").append(firstChildDirectory).append("\n");
             }
         }
-        String newTreeHash = getSHA1(newTreeContent.toString());
         String newTreeContentString = newTreeContent.toString();
+        ObjectId newTreeHash = ObjectId.hash(newTreeContentString.getBytes());
         addObjectToObjectDirectory(newTreeHash, newTreeContentString);
         return newTreeHash;
     }
@@ -1050,8 +1185,8 @@ public class Repository {
     /**
      * Returns a new HashMap with all the keys in toAdd that start with "${filename}/".
      */
-    private static HashMap<String, String> fromDirectory(HashMap<String, String> toAdd, String filename) {
-        HashMap<String, String> newToAdd = new HashMap<>();
+    private static HashMap<String, ObjectId> fromDirectory(HashMap<String, ObjectId> toAdd, String filename) {
+        HashMap<String, ObjectId> newToAdd = new HashMap<>();
         for (String key : toAdd.keySet()) {
             if (key.startsWith(filename + "/")) {
                 newToAdd.put(key.substring(filename.length() + 1), toAdd.get(key));
@@ -1076,12 +1211,8 @@ public class Repository {
     /**
      * Removes all the keys in mp that start with "${filename}/".
      */
-    private static void removeFilesFromDirectory(HashMap<String, String> mp, String filename) {
-        for (String key : mp.keySet()) {
-            if (key.startsWith(filename + "/")) {
-                mp.remove(key);
-            }
-        }
+    private static void removeFilesFromDirectory(HashMap<String, ObjectId> mp, String filename) {
+        mp.keySet().removeIf(key -> key.startsWith(filename + "/"));
     }
 
     /**
@@ -1094,15 +1225,522 @@ public class Repository {
     /**
      * Prints the commit log.
      * Traverses the commit tree from the current commit to the initial commit using the parent pointers.
+     * Every commit is parsed once and the output goes through a single buffered writer,
+     * so the walk stops as soon as the requested number of commits has been printed.
+     *
+     *     -n {N}             print at most N commits
+     *     --oneline          print "{short SHA1} {subject}" for each commit
+     *     --since={date}     stop at the first commit older than date ("yyyy-MM-dd" or "yyyy-MM-dd HH:mm:ss")
+     *     --format={format}  print each commit with format (see {@link #formatCommit})
+     *     -- {path}          print only the commits that changed the file or directory at path
+     *
+     * Commits whose changed-path filter (see {@link ChangedPathFilter}) rules the path out are skipped
+     * without reading their trees; the others are confirmed by comparing the path with the parent's.
+     * @param args options, as above
      */
-    static void log() {
-        String currentCommitID = getCurrentCommitID();
-        do {
-            System.out.println("COMMIT: " + currentCommitID);
-            System.out.println(Commit.getCommitText(currentCommitID));
-            currentCommitID = Commit.getParentID(currentCommitID);
-            System.out.println("==================================");
-        } while (!currentCommitID.equals("null"));
+    static void log(String... args) {
+        long limit = Long.MAX_VALUE;
+        String since = null;
+        String format = null;
+        ChangedPathFilter.Query query = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                if (i != args.length - 2) {
+                    exit("Usage: log [-n <N>] [--oneline] [--since=<date>] [--format=<format>] [-- <path>]");
+                }
+                String path = normalizePath(args[++i]);
+                query = path.isEmpty() ? null : new ChangedPathFilter.Query(path);
+            } else if (arg.startsWith("-n")) {
+                String value = arg.length() > 2 ? arg.substring(2) : (i + 1 < args.length ? args[++i] : "");
+                limit = parseLimit(value);
+            } else if (arg.equals("--oneline")) {
+                format = "%h %s";
+            } else if (arg.startsWith("--format=")) {
+                format = arg.substring("--format=".length());
+            } else if (arg.equals("--since") && i + 1 < args.length) {
+                since = parseSince(args[++i]);
+            } else if (arg.startsWith("--since=")) {
+                since = parseSince(arg.substring("--since=".length()));
+            } else {
+                exit("Unknown log option: %s", arg);
+            }
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        StringBuilder line = new StringBuilder();
+        long printed = 0;
+        ObjectId currentCommitID = getCurrentCommitID();
+        while (currentCommitID != null && printed < limit) {
+            Commit commit = Commit.read(currentCommitID);
+            // history is linear, so every commit after this one is older as well
+            if (since != null && commit.getDatetime() != null && commit.getDatetime().compareTo(since) < 0) {
+                break;
+            }
+            ObjectId parentID = commit.getParentID();
+            if (query == null || changedPath(commit, parentID, query)) {
+                if (format == null) {
+                    out.println("COMMIT: " + currentCommitID);
+                    out.println(commit.getText());
+                    out.println("==================================");
+                } else {
+                    line.setLength(0);
+                    formatCommit(commit, format, line);
+                    out.println(line);
+                }
+                printed++;
+            }
+            currentCommitID = parentID;
+        }
+        out.flush();
+    }
+
+    private static long parseLimit(String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        exit("Invalid number of commits: %s", value);
+        return 0;
+    }
+
+    /**
+     * Validates a --since date and returns it in the format of commit dates, which compare as strings.
+     */
+    private static String parseSince(String value) {
+        try {
+            if (value.length() == "yyyy-MM-dd".length()) {
+                return LocalDate.parse(value).atStartOfDay().format(Commit.DATE_FORMAT);
+            }
+            return LocalDateTime.parse(value, Commit.DATE_FORMAT).format(Commit.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            exit("Invalid date: %s (expected yyyy-MM-dd or yyyy-MM-dd HH:mm:ss)", value);
+            return null;
+        }
+    }
+
+    /**
+     * Appends a commit to out, following a format made of text and these placeholders:
+     *
+     *     %H  SHA1 of the commit         %h  its first 7 characters
+     *     %T  SHA1 of the root tree      %P  SHA1 of the parent, empty for the initial commit
+     *     %an author name                %ae author email
+     *     %ad author date                %s  subject (first line of the message)
+     *     %b  rest of the message        %n  newline
+     *     %%  a "%"
+     *
+     * Unknown placeholders are copied as they are.
+     */
+    private static void formatCommit(Commit commit, String format, StringBuilder out) {
+        String message = commit.getMessage();
+        int newline = message.indexOf('\n');
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 == format.length()) {
+                out.append(c);
+                continue;
+            }
+            char next = format.charAt(i + 1);
+            char after = i + 2 < format.length() ? format.charAt(i + 2) : 0;
+            switch (next) {
+                case 'H' -> out.append(commit.getCommitID());
+                case 'h' -> out.append(commit.getCommitID().toHex(), 0, 7);
+                case 'T' -> out.append(commit.getSnapshotID());
+                case 'P' -> out.append(commit.getParentID() == null ? "" : commit.getParentID().toHex());
+                case 's' -> out.append(newline < 0 ? message : message.substring(0, newline));
+                case 'b' -> out.append(newline < 0 ? "" : message.substring(newline + 1).strip());
+                case 'n' -> out.append('\n');
+                case '%' -> out.append('%');
+                case 'a' -> {
+                    if (after == 'n' || after == 'e' || after == 'd') {
+                        String value = after == 'n' ? commit.getAuthor() : after == 'e' ? commit.getEmail() : commit.getDatetime();
+                        out.append(value == null ? "" : value);
+                        i++;
+                    } else {
+                        out.append("%a");
+                    }
+                }
+                default -> out.append(c).append(next);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Strips "./" and trailing slashes from a path, so it matches the names stored in trees.
+     */
+    private static String normalizePath(String path) {
+        path = path.replace(File.separatorChar, '/');
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.equals(".") ? "" : path;
+    }
+
+    /**
+     * Returns whether a commit changed the file or directory at a path compared to its parent.
+     */
+    private static boolean changedPath(Commit commit, ObjectId parentID, ChangedPathFilter.Query query) {
+        if (!CommitGraph.mightHaveChanged(commit.getCommitID(), query)) {
+            return false;
+        }
+        ObjectId before = parentID == null ? null : getPathID(Commit.getSnapshotID(parentID), query.path);
+        ObjectId after = getPathID(commit.getSnapshotID(), query.path);
+        return !Objects.equals(before, after);
+    }
+
+    /**
+     * Returns the SHA1 of the blob or tree at a path of a snapshot, or null if there is none.
+     * @param treeID root tree of the snapshot
+     * @param path path of the entry, with "/" separators
+     */
+    private static ObjectId getPathID(ObjectId treeID, String path) {
+        ObjectId current = treeID;
+        boolean isTree = true;
+        for (String name : path.split("/")) {
+            if (!isTree) {
+                return null;
+            }
+            Tree tree = Tree.read(current);
+            current = null;
+            for (int i = 0; i < tree.size(); i++) {
+                if (tree.getName(i).equals(name)) {
+                    current = tree.getID(i);
+                    isTree = tree.isTree(i);
+                    break;
+                }
+            }
+            if (current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Prints the differences between two commits. The files that differ are found with {@link TreeDiff},
+     * and the lines that differ with {@link LineDiff}.
+     *
+     *     --name-status              print "{status}\t{path}" for each file, where status is A (added), M (modified) or D (deleted), as in git; the default
+     *     --stat                     print each file with its number of changed lines, followed by the totals
+     *     --patch, -p                print a unified diff of each file; binary files are only reported as different
+     *     -U<n>, --unified=<n>       lines of context around each change in a patch (3 by default); implies --patch
+     *     --diff-algorithm=<name>    myers or histogram (see {@link LineDiff}); defaults to the diff-algorithm of the config
+     *     -M<n>, --find-renames=<n>  minimum similarity of a rename, in percent (see {@link RenameDetector}); defaults to the rename-threshold of the config
+     *     --no-renames               report renamed files as removed and added
+     *     -C, --find-copies          also report added files that are copies of modified files
+     *
+     * Renamed and copied files are printed as "R{similarity}\t{old path}\t{new path}" (C for copies) with --name-status,
+     * as "{old path} => {new path}" with --stat, and with rename or copy headers in patches.
+     * @param args two branch names or commit ids, followed by any of the options above
+     */
+    static void printDiff(String... args) {
+        String usage = "Usage: diff <commitA> <commitB> [--name-status|--stat|--patch] [-U<n>] [--diff-algorithm=myers|histogram]"
+                + " [-M<n>|--no-renames] [-C]";
+        if (args.length < 2) {
+            exit(usage);
+        }
+        String format = "--name-status";
+        int context = 3;
+        LineDiff.Algorithm algorithm = Config.getDiffAlgorithm();
+        int renameThreshold = Config.getRenameThreshold();
+        boolean renames = true;
+        boolean copies = false;
+        for (int i = 2; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--name-status") || option.equals("--stat") || option.equals("--patch")) {
+                format = option;
+            } else if (option.equals("-p")) {
+                format = "--patch";
+            } else if (option.startsWith("-U") || option.startsWith("--unified=")) {
+                String value = option.substring(option.startsWith("-U") ? 2 : "--unified=".length());
+                try {
+                    context = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    context = -1;
+                }
+                if (context < 0) {
+                    exit("Not a number of context lines: %s", value);
+                }
+                format = "--patch";
+            } else if (option.equals("--no-renames")) {
+                renames = false;
+            } else if (option.equals("-C") || option.equals("--find-copies")) {
+                copies = true;
+            } else if (option.startsWith("-M") || option.startsWith("--find-renames")) {
+                String value = option.startsWith("-M") ? option.substring(2) : option.substring("--find-renames".length());
+                value = value.startsWith("=") ? value.substring(1) : value;
+                try {
+                    renameThreshold = value.isEmpty() ? renameThreshold : Integer.parseInt(value.endsWith("%") ? value.substring(0, value.length() - 1) : value);
+                } catch (NumberFormatException e) {
+                    renameThreshold = -1;
+                }
+                if (renameThreshold < 0 || renameThreshold > 100) {
+                    exit("Not a rename similarity: %s", value);
+                }
+                renames = true;
+            } else if (option.startsWith("--diff-algorithm=")) {
+                algorithm = LineDiff.Algorithm.parse(option.substring("--diff-algorithm=".length()));
+                if (algorithm == null) {
+                    exit("Unknown diff algorithm: %s", option.substring("--diff-algorithm=".length()));
+                }
+            } else {
+                exit(usage);
+            }
+        }
+        ObjectId from = resolveCommit(args[0]);
+        ObjectId to = resolveCommit(args[1]);
+        BufferedOutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        List<String> paths = new ArrayList<>();
+        List<ObjectId[]> changes = new ArrayList<>();
+        TreeDiff.walk((path, ids) -> {
+            paths.add(path);
+            changes.add(new ObjectId[]{ids[0], ids[1]});
+        }, Commit.getSnapshotID(from), Commit.getSnapshotID(to));
+        HashMap<String, RenameDetector.Rename> renamesByTarget = new HashMap<>();
+        HashSet<String> renamedSources = new HashSet<>();
+        if (renames || copies) {
+            HashMap<String, ObjectId> removed = new HashMap<>();
+            HashMap<String, ObjectId> added = new HashMap<>();
+            HashMap<String, ObjectId> modified = new HashMap<>();
+            for (int i = 0; i < paths.size(); i++) {
+                ObjectId before = changes.get(i)[0];
+                ObjectId after = changes.get(i)[1];
+                if (after == null) {
+                    removed.put(paths.get(i), before);
+                } else if (before == null) {
+                    added.put(paths.get(i), after);
+                } else {
+                    modified.put(paths.get(i), before);
+                }
+            }
+            for (RenameDetector.Rename rename : RenameDetector.detect(renames ? removed : Map.of(), added, copies ? modified : null, renameThreshold)) {
+                renamesByTarget.put(rename.target, rename);
+                if (!rename.copy) {
+                    renamedSources.add(rename.source);
+                }
+            }
+        }
+        // the files to print: a rename replaces the removal of its source, at the position of its target
+        List<String> sources = new ArrayList<>();
+        List<String> targets = new ArrayList<>();
+        List<ObjectId[]> versions = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            RenameDetector.Rename rename = renamesByTarget.get(path);
+            if (renamedSources.contains(path) && changes.get(i)[1] == null) {
+                continue;
+            }
+            sources.add(rename == null ? path : rename.source);
+            targets.add(path);
+            versions.add(rename == null ? changes.get(i) : new ObjectId[]{rename.sourceID, rename.targetID});
+        }
+        try {
+            if (format.equals("--stat")) {
+                printDiffStat(out, sources, targets, versions, algorithm);
+            } else {
+                for (int i = 0; i < targets.size(); i++) {
+                    ObjectId before = versions.get(i)[0];
+                    ObjectId after = versions.get(i)[1];
+                    RenameDetector.Rename rename = renamesByTarget.get(targets.get(i));
+                    if (format.equals("--patch")) {
+                        printPatch(out, targets.get(i), before, after, rename, context, algorithm);
+                    } else if (rename != null) {
+                        String status = (rename.copy ? "C" : "R") + String.format("%03d", rename.score);
+                        out.write((status + "\t" + rename.source + "\t" + rename.target + "\n").getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        // D, not REMOVE, since R is the status of a rename
+                        char status = before == null ? ADD : after == null ? 'D' : MODIFY;
+                        out.write((status + "\t" + targets.get(i) + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            exit("Could not print the diff: %s", e);
+        }
+    }
+
+    /**
+     * Prints the unified diff of one file, in the format of git diff, without file modes.
+     * @param path path of the file in the second commit, or in the first one if it was removed
+     * @param before SHA1 of the file in the first commit, or null if it was added
+     * @param after SHA1 of the file in the second commit, or null if it was removed
+     * @param rename rename or copy the file is the target of, or null
+     */
+    private static void printPatch(BufferedOutputStream out, String path, ObjectId before, ObjectId after, RenameDetector.Rename rename,
+                                   int context, LineDiff.Algorithm algorithm) throws IOException {
+        String oldPath = rename == null ? path : rename.source;
+        StringBuilder header = new StringBuilder();
+        header.append("diff --git a/").append(oldPath).append(" b/").append(path).append("\n");
+        if (rename != null) {
+            String kind = rename.copy ? "copy" : "rename";
+            header.append("similarity index ").append(rename.score).append("%\n");
+            header.append(kind).append(" from ").append(oldPath).append("\n");
+            header.append(kind).append(" to ").append(path).append("\n");
+            if (before.equals(after)) {
+                out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        } else if (before == null) {
+            header.append("new file\n");
+        } else if (after == null) {
+            header.append("deleted file\n");
+        }
+        header.append("index ").append(before == null ? "0000000" : before.toString().substring(0, 7))
+                .append("..").append(after == null ? "0000000" : after.toString().substring(0, 7)).append("\n");
+        byte[] a = before == null ? new byte[0] : ObjectStore.read(before);
+        byte[] b = after == null ? new byte[0] : ObjectStore.read(after);
+        if (LineDiff.isBinary(a) || LineDiff.isBinary(b)) {
+            header.append("Binary files ").append(before == null ? "/dev/null" : "a/" + oldPath).append(" and ")
+                    .append(after == null ? "/dev/null" : "b/" + path).append(" differ\n");
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        header.append("--- ").append(before == null ? "/dev/null" : "a/" + oldPath).append("\n");
+        header.append("+++ ").append(after == null ? "/dev/null" : "b/" + path).append("\n");
+        out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        LineDiff.Lines linesA = new LineDiff.Lines(a);
+        LineDiff.Lines linesB = new LineDiff.Lines(b);
+        ByteArrayOutputStream hunks = new ByteArrayOutputStream(a.length + b.length);
+        LineDiff.writeUnified(hunks, linesA, linesB, LineDiff.diff(linesA, linesB, algorithm), context);
+        hunks.writeTo(out);
+    }
+
+    /**
+     * Prints, for each file, the number of lines added and removed with a bar of '+' and '-',
+     * followed by the number of files changed, insertions and deletions.
+     * @param sources path of each file in the first commit; differs from its target for renames and copies
+     * @param targets path of each file in the second commit
+     */
+    private static void printDiffStat(BufferedOutputStream out, List<String> sources, List<String> targets, List<ObjectId[]> changes,
+                                      LineDiff.Algorithm algorithm) throws IOException {
+        int files = targets.size();
+        List<String> paths = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            paths.add(sources.get(i).equals(targets.get(i)) ? targets.get(i) : sources.get(i) + " => " + targets.get(i));
+        }
+        long[] insertions = new long[files];
+        long[] deletions = new long[files];
+        String[] binary = new String[files];
+        int pathWidth = 0;
+        long maxChanged = 0;
+        long totalInsertions = 0;
+        long totalDeletions = 0;
+        for (int i = 0; i < files; i++) {
+            ObjectId before = changes.get(i)[0];
+            ObjectId after = changes.get(i)[1];
+            byte[] a = before == null ? new byte[0] : ObjectStore.read(before);
+            byte[] b = after == null ? new byte[0] : ObjectStore.read(after);
+            pathWidth = Math.max(pathWidth, paths.get(i).length());
+            if (LineDiff.isBinary(a) || LineDiff.isBinary(b)) {
+                binary[i] = "Bin " + a.length + " -> " + b.length + " bytes";
+                continue;
+            }
+            for (LineDiff.Edit edit : LineDiff.diff(new LineDiff.Lines(a), new LineDiff.Lines(b), algorithm)) {
+                deletions[i] += edit.endA - edit.beginA;
+                insertions[i] += edit.endB - edit.beginB;
+            }
+            maxChanged = Math.max(maxChanged, insertions[i] + deletions[i]);
+            totalInsertions += insertions[i];
+            totalDeletions += deletions[i];
+        }
+        int countWidth = String.valueOf(maxChanged).length();
+        // the bars are scaled down so that the longest one is at most this long
+        int barWidth = 50;
+        StringBuilder stat = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            stat.append(' ').append(paths.get(i)).append(" ".repeat(pathWidth - paths.get(i).length())).append(" | ");
+            if (binary[i] != null) {
+                stat.append(binary[i]).append('\n');
+                continue;
+            }
+            long changed = insertions[i] + deletions[i];
+            String count = String.valueOf(changed);
+            stat.append(" ".repeat(countWidth - count.length())).append(count);
+            long plus = insertions[i];
+            long minus = deletions[i];
+            if (maxChanged > barWidth) {
+                plus = scale(plus, maxChanged, barWidth);
+                minus = scale(minus, maxChanged, barWidth);
+            }
+            if (changed > 0) {
+                stat.append(' ').append("+".repeat((int) plus)).append("-".repeat((int) minus));
+            }
+            stat.append('\n');
+            if (stat.length() >= 1 << 16) {
+                out.write(stat.toString().getBytes(StandardCharsets.UTF_8));
+                stat.setLength(0);
+            }
+        }
+        stat.append(' ').append(files).append(files == 1 ? " file changed" : " files changed");
+        if (totalInsertions > 0 || totalDeletions == 0) {
+            stat.append(", ").append(totalInsertions).append(totalInsertions == 1 ? " insertion(+)" : " insertions(+)");
+        }
+        if (totalDeletions > 0 || totalInsertions == 0) {
+            stat.append(", ").append(totalDeletions).append(totalDeletions == 1 ? " deletion(-)" : " deletions(-)");
+        }
+        stat.append('\n');
+        out.write(stat.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Scales a part of a bar of length total down to a bar of length width, keeping at least one character for a non-zero part.
+     */
+    private static long scale(long part, long total, int width) {
+        if (part == 0) {
+            return 0;
+        }
+        return 1 + (part * (width - 1)) / total;
+    }
+
+    /**
+     * Returns the commit a branch name or a commit id refers to, or exits if it refers to neither.
+     */
+    private static ObjectId resolveCommit(String argument) {
+        if (isBranchName(argument)) {
+            return getCommitOfBranch(argument);
+        }
+        if (!isCommitID(argument)) {
+            exit("Not a branch name or a commit id: %s", argument);
+        }
+        return ObjectId.fromHex(argument);
+    }
+
+    /**
+     * Moves every loose object and every existing pack into a single new pack (see {@link PackFile}).
+     * Loose objects are deleted once they are packed; objects too large to be packed stay loose.
+     */
+    static void repack() {
+        LinkedHashSet<ObjectId> ids = new LinkedHashSet<>(ObjectStore.getLooseObjectIDs());
+        List<PackFile> oldPacks = new ArrayList<>(PackFile.getPacks());
+        for (PackFile pack : oldPacks) {
+            ids.addAll(pack.getObjectIDs());
+        }
+        if (ids.isEmpty()) {
+            exit("Nothing to repack.");
+        }
+        PackFile newPack = PackFile.write(ids);
+        int packed = 0;
+        for (ObjectId id : ids) {
+            if (newPack.contains(id)) {
+                ObjectStore.deleteLoose(id);
+                packed++;
+            }
+        }
+        for (PackFile pack : oldPacks) {
+            if (!pack.getName().equals(newPack.getName())) {
+                pack.delete();
+            }
+        }
+        PackFile.reload();
+        exit("Packed %d objects into %s.", packed, newPack.getName());
     }
 
     /**
@@ -1120,5 +1758,6 @@ public class Repository {
         if (!GITFLY_DIR.exists()) {
             exit("Not in an initialized gitfly repository.");
         }
+        ObjectStore.migrateFlatLayout();
     }
 }
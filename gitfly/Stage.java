@@ -1,13 +1,33 @@
 package gitfly;
 
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The staging area: the index, TO_ADD and TO_REMOVE.
+ * All three are stored on disk in the binary format described in {@link IndexFile}.
+ * Index entries that are not in conflict also carry the stat data of their working directory file (see {@link FileStat}),
+ * which lets scans of the working directory skip hashing files that haven't changed.
+ *
+ * Commands that change the staging area hold .gitfly/index.lock from before they read it until their changes are written
+ * (see {@link #lock()}), so two commands never change it at the same time. Their changes are recorded as they are made
+ * and {@link #save()} appends them to the journal (see {@link StageJournal}) when they are few compared to the size of
+ * the index, so staging a file doesn't rewrite the whole index. The staging files are read with the journal applied on
+ * top, and written in full (which compacts the journal) by commit and by changes too large for the journal.
+ */
 class Stage {
-    static class NameAndStatus implements Serializable{
-        String name;
-        Integer status;
-        public NameAndStatus(String name, Integer status) {
+    static class NameAndStatus {
+        final String name;
+        final int status;
+        public NameAndStatus(String name, int status) {
             this.name = name;
             this.status = status;
         }
@@ -23,144 +43,455 @@ class Stage {
             if (!(o instanceof NameAndStatus n)) {
                 return false;
             }
-            return n.name.equals(this.name) && n.status.equals(this.status);
+            return n.status == this.status && n.name.equals(this.name);
         }
         @Override
         public int hashCode() {
-            return this.toString().hashCode();
+            return 31 * name.hashCode() + status;
         }
         public String getName() {
             return name;
         }
-        public Integer getStatus() {
+        public int getStatus() {
             return status;
         }
     }
-    static HashMap<String, String> TO_ADD_FILES = new HashMap<>();
+    static HashMap<String, ObjectId> TO_ADD_FILES = new HashMap<>();
     static HashSet<String> TO_REMOVE_FILES = new HashSet<>();
-    private static HashMap<NameAndStatus, String> INDEX_FILES = new HashMap<>();
+    private static HashMap<NameAndStatus, ObjectId> INDEX_FILES = new HashMap<>();
+    /** Stat data of the index entries with status 0, by filename. */
+    private static HashMap<String, FileStat> STAT_CACHE = new HashMap<>();
+    /**
+     * mtime of the index file INDEX_FILES was read from, or of the journal if it is newer, used to detect racily clean entries.
+     * Stat data that was already racily clean when it was written is dropped when the index is read.
+     */
+    private static long indexMtime;
+    /** Whether stat data was refreshed since the index was read. */
+    private static boolean statsRefreshed;
+    /** Memory-mapped view of the index file, used for lookups that don't need the whole index. */
+    private static IndexFile indexView;
+    /** Changes made to the staging files since they were read, for the journal; null after a change the journal doesn't record. */
+    private static List<StageJournal.Change> changes = new ArrayList<>();
+    /** Which staging files (indexed by StageJournal.INDEX, TO_ADD and TO_REMOVE) changed since they were read or written. */
+    private static boolean[] dirty = new boolean[3];
+    /** Whether this process holds index.lock. */
+    private static boolean locked;
+    private static boolean unlockOnShutdown;
+    /** The journal is compacted when it would grow past half the size of the index, or this size if it is larger. */
+    private static final long MIN_COMPACTION_LENGTH = 64 << 10;
 
-    static void addToIndex(String filename, Integer status, String contents) {
-        NameAndStatus nameAndStatus = new NameAndStatus(filename, status);
-        INDEX_FILES.put(nameAndStatus, contents);
+    static void addToIndex(String filename, int status, ObjectId contents) {
+        addToIndex(filename, status, contents, null);
+    }
+
+    /**
+     * Adds an entry to the index together with the stat data of the file it was hashed from.
+     * @param stat stat data of the file, or null to keep the stat data of the entry if its contents don't change
+     */
+    static void addToIndex(String filename, int status, ObjectId contents, FileStat stat) {
+        ObjectId old = INDEX_FILES.put(new NameAndStatus(filename, status), contents);
+        FileStat oldStat = status == 0 ? STAT_CACHE.get(filename) : null;
+        if (status == 0) {
+            if (stat != null) {
+                STAT_CACHE.put(filename, stat);
+            } else if (!contents.equals(old)) {
+                STAT_CACHE.remove(filename);
+            }
+        }
+        FileStat newStat = status == 0 ? STAT_CACHE.get(filename) : null;
+        if (old == null || !old.equals(contents) || !Objects.equals(oldStat, newStat)) {
+            record(StageJournal.Change.put(StageJournal.INDEX, filename, status, contents, newStat));
+        }
     }
 
-    static void removeFromIndex(String filename, Integer status) {
+    static void removeFromIndex(String filename, int status) {
         NameAndStatus nameAndStatus = new NameAndStatus(filename, status);
+        if (!INDEX_FILES.containsKey(nameAndStatus)) {
+            return;
+        }
         INDEX_FILES.remove(nameAndStatus);
+        if (status == 0) {
+            STAT_CACHE.remove(filename);
+        }
+        record(StageJournal.Change.remove(StageJournal.INDEX, filename, status));
     }
 
-    static String getFromIndex(Integer status, String filename) {
-        readIndex();
-        NameAndStatus nameAndStatus = new NameAndStatus(filename, status);
-        return INDEX_FILES.getOrDefault(nameAndStatus, null);
+    /**
+     * Returns whether the loaded index has an entry for a file, in conflict or not.
+     */
+    static boolean isInIndex(String filename) {
+        for (int status = 0; status <= Repository.CONFLICT_GIVER; status++) {
+            if (INDEX_FILES.get(new NameAndStatus(filename, status)) != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    static String getFromToAdd(String filename) {
+    /**
+     * Returns the SHA1 recorded in the loaded index for a file, if the file's stat data shows it hasn't changed since.
+     * @param filename path of the file, relative to the working directory
+     * @param current stat data of the file now
+     * @return the SHA1 of the file, or null if it has to be hashed
+     */
+    static ObjectId getUpToDateID(String filename, FileStat current) {
+        FileStat stat = STAT_CACHE.get(filename);
+        if (stat == null || !stat.matches(current, indexMtime)) {
+            return null;
+        }
+        return INDEX_FILES.get(new NameAndStatus(filename, 0));
+    }
+
+    /**
+     * Records the stat data of a file that was just hashed, if its contents match the index entry.
+     * @param filename path of the file, relative to the working directory
+     * @param stat stat data of the file, read before it was hashed
+     * @param id SHA1 of the file
+     */
+    static void refreshStat(String filename, FileStat stat, ObjectId id) {
+        if (stat != null && id.equals(INDEX_FILES.get(new NameAndStatus(filename, 0)))) {
+            STAT_CACHE.put(filename, stat);
+            statsRefreshed = true;
+            record(StageJournal.Change.put(StageJournal.INDEX, filename, 0, id, stat));
+        }
+    }
+
+    /**
+     * Saves the stat data refreshed since the index was read, so later scans can skip hashing those files.
+     * Nothing is written if another command holds the lock or changed the staging area since: its changes win.
+     */
+    static void writeRefreshedStats() {
+        if (statsRefreshed && tryLock() && isCurrent()) {
+            save();
+        }
+    }
+
+    /**
+     * Returns the number of entries of the loaded index.
+     */
+    static int getIndexSize() {
+        return INDEX_FILES.size();
+    }
+
+    /**
+     * Looks a single entry up in the index file on disk and the journal, without loading the rest of the index.
+     */
+    static ObjectId getFromIndex(int status, String filename) {
+        IndexFile view = getIndexView();
+        List<StageJournal.Change> journal = StageJournal.getChanges(StageJournal.INDEX, view.getChecksum());
+        for (int i = journal.size() - 1; i >= 0; i--) {
+            StageJournal.Change change = journal.get(i);
+            if (change.stage == status && change.name.equals(filename)) {
+                return change.id;
+            }
+        }
+        return view.get(filename, status);
+    }
+
+    static ObjectId getFromToAdd(String filename) {
         return TO_ADD_FILES.getOrDefault(filename, null);
     }
 
     static void removeFromToAdd(String filename) {
-        TO_ADD_FILES.remove(filename);
+        if (TO_ADD_FILES.containsKey(filename)) {
+            TO_ADD_FILES.remove(filename);
+            record(StageJournal.Change.remove(StageJournal.TO_ADD, filename, 0));
+        }
     }
     static boolean isInToRemove(String filename) {
         return TO_REMOVE_FILES.contains(filename);
     }
 
     static void removeFromToRemove(String filename) {
-        TO_REMOVE_FILES.remove(filename);
+        if (TO_REMOVE_FILES.remove(filename)) {
+            record(StageJournal.Change.remove(StageJournal.TO_REMOVE, filename, 0));
+        }
     }
 
-    static void addToToAdd(String filename, String contents) {
-        TO_ADD_FILES.put(filename, contents);
+    static void addToToAdd(String filename, ObjectId contents) {
+        if (!contents.equals(TO_ADD_FILES.put(filename, contents))) {
+            record(StageJournal.Change.put(StageJournal.TO_ADD, filename, 0, contents, null));
+        }
     }
 
     static void addToToRemove(String filepath) {
-        TO_REMOVE_FILES.add(filepath);
+        if (TO_REMOVE_FILES.add(filepath)) {
+            record(StageJournal.Change.put(StageJournal.TO_REMOVE, filepath, 0, null, null));
+        }
     }
-    static void readIndex() {
+
+    private static void record(StageJournal.Change change) {
+        dirty[change.target] = true;
+        if (changes != null) {
+            changes.add(change);
+        }
+    }
+
+    /**
+     * Forgets the recorded changes to a staging file, which was just read or written.
+     */
+    private static void forget(int target) {
+        dirty[target] = false;
+        if (changes != null) {
+            changes.removeIf(change -> change.target == target);
+        }
+    }
+
+    /**
+     * Takes index.lock, which a command holds from before it reads the staging area until it has written its changes.
+     * Released by {@link #unlock()} when the command ends (see {@link Main}), or when the JVM exits.
+     * Exits if another command holds it.
+     */
+    static void lock() {
+        if (!tryLock()) {
+            Utils.exit("Could not lock the staging area: %s exists.%nAnother gitfly command seems to be running; if not, remove the file and try again.",
+                    Repository.INDEX_LOCK.getPath());
+        }
+    }
+
+    /**
+     * Takes index.lock, unless this process already holds it.
+     * @return false if another command holds it
+     */
+    static boolean tryLock() {
+        if (locked) {
+            return true;
+        }
         try {
-            File index = Repository.INDEX;
-            FileInputStream fis = new FileInputStream(index);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            Object o = ois.readObject();
-            INDEX_FILES = o == null ? new HashMap<>() : (HashMap<NameAndStatus, String>) o;
-            ois.close();
-            fis.close();
-        } catch (EOFException ignored) {
-        } catch (Exception e) {
-            System.out.println("Error read index: " + e);
+            Files.createFile(Repository.INDEX_LOCK.toPath());
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            Utils.exit("Could not create %s.", Repository.INDEX_LOCK.getPath());
+        }
+        locked = true;
+        if (!unlockOnShutdown) {
+            unlockOnShutdown = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(Stage::unlock));
         }
+        return true;
     }
-    static void readFilesToBeAdded() {
+
+    /**
+     * Releases index.lock, if this process holds it.
+     */
+    static void unlock() {
+        if (locked) {
+            locked = false;
+            Repository.INDEX_LOCK.delete();
+        }
+    }
+
+    /**
+     * Forgets the staging state loaded by the previous command, so that the next one starts as in a new process.
+     * The mapped index is kept if the index file hasn't changed since it was opened. Used by the {@link Daemon}.
+     */
+    static void reset() {
+        TO_ADD_FILES = new HashMap<>();
+        TO_REMOVE_FILES = new HashSet<>();
+        INDEX_FILES = new HashMap<>();
+        STAT_CACHE = new HashMap<>();
+        statsRefreshed = false;
+        changes = new ArrayList<>();
+        dirty = new boolean[3];
+        StageJournal.reset();
+        if (indexView != null && !isCurrent(indexView)) {
+            indexView = null;
+        }
+    }
+
+    /**
+     * Returns whether the index file on disk is still the one view was opened from.
+     */
+    private static boolean isCurrent(IndexFile view) {
         try {
-            File toAdd = Repository.TO_ADD;
-            FileInputStream fis = new FileInputStream(toAdd);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            Object o = ois.readObject();
-            TO_ADD_FILES = o == null ? new HashMap<>() : (HashMap<String, String>) o;
-            ois.close();
-            fis.close();
-        } catch (EOFException ignored) {
-        } catch (Exception e) {
-            System.out.println("Error read index: " + e);
+            long mtime = Files.getLastModifiedTime(Repository.INDEX.toPath()).to(TimeUnit.NANOSECONDS);
+            return mtime == view.getMtime() && Repository.INDEX.length() == view.getLength();
+        } catch (IOException e) {
+            return false;
         }
     }
 
-    static void readFilesToBeRemoved() {
+    /**
+     * Returns whether the index and the journal on disk are still the ones that were read.
+     */
+    private static boolean isCurrent() {
+        return (indexView == null || isCurrent(indexView)) && StageJournal.isCurrent();
+    }
+
+    private static IndexFile getIndexView() {
+        if (indexView == null) {
+            indexView = open(Repository.INDEX);
+        }
+        return indexView;
+    }
+
+    /**
+     * Opens one of the staging files, migrating it first if it was written with Java serialization.
+     */
+    private static IndexFile open(File file) {
         try {
-            File toRemove = Repository.TO_REMOVE;
-            FileInputStream fis = new FileInputStream(toRemove);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            Object o = ois.readObject();
-            TO_REMOVE_FILES = o == null ? new HashSet<>() : (HashSet<String>) o;
-            ois.close();
-            fis.close();
-        } catch (EOFException ignored) {
-        } catch (Exception e) {
-            System.out.println("Error read index: " + e);
+            IndexFile view = IndexFile.open(file);
+            if (view == null) {
+                migrateLegacyFile(file);
+                view = IndexFile.open(file);
+            }
+            return view;
+        } catch (IllegalArgumentException e) {
+            Utils.exit("Error reading %s: %s", file.getName(), e.getMessage());
+            return null;
         }
     }
 
+    static void readIndex() {
+        Telemetry.IndexLoad event = new Telemetry.IndexLoad();
+        event.start();
+        IndexFile view = getIndexView();
+        HashMap<NameAndStatus, ObjectId> files = new HashMap<>(capacityFor(view.size()));
+        HashMap<String, FileStat> stats = new HashMap<>(capacityFor(view.size()));
+        view.forEach((name, stage, id, stat) -> {
+            files.put(new NameAndStatus(name, stage), id);
+            if (stat != null && stat.mtime < view.getMtime()) {
+                stats.put(name, stat);
+            }
+        });
+        List<StageJournal.Change> journal = StageJournal.getChanges(StageJournal.INDEX, view.getChecksum());
+        applyIndexChanges(journal, files, stats);
+        INDEX_FILES = files;
+        STAT_CACHE = stats;
+        indexMtime = journal.isEmpty() ? view.getMtime() : Math.max(view.getMtime(), StageJournal.getMtime());
+        statsRefreshed = false;
+        forget(StageJournal.INDEX);
+        finishLoad(event, Repository.INDEX, view);
+    }
+
+    /**
+     * Applies the journaled changes to the index to its decoded entries.
+     * @param stats stat data of the entries, or null if it isn't needed
+     */
+    private static void applyIndexChanges(List<StageJournal.Change> journal, HashMap<NameAndStatus, ObjectId> files,
+                                          HashMap<String, FileStat> stats) {
+        long journalMtime = StageJournal.getMtime();
+        for (StageJournal.Change change : journal) {
+            NameAndStatus key = new NameAndStatus(change.name, change.stage);
+            if (change.remove) {
+                files.remove(key);
+            } else {
+                files.put(key, change.id);
+            }
+            if (stats != null && change.stage == 0) {
+                if (change.stat != null && change.stat.mtime < journalMtime) {
+                    stats.put(change.name, change.stat);
+                } else {
+                    stats.remove(change.name);
+                }
+            }
+        }
+    }
+
+    static void readFilesToBeAdded() {
+        Telemetry.IndexLoad event = new Telemetry.IndexLoad();
+        event.start();
+        IndexFile view = open(Repository.TO_ADD);
+        HashMap<String, ObjectId> files = new HashMap<>(capacityFor(view.size()));
+        view.forEach((name, stage, id, stat) -> files.put(name, id));
+        for (StageJournal.Change change : StageJournal.getChanges(StageJournal.TO_ADD, view.getChecksum())) {
+            if (change.remove) {
+                files.remove(change.name);
+            } else {
+                files.put(change.name, change.id);
+            }
+        }
+        TO_ADD_FILES = files;
+        forget(StageJournal.TO_ADD);
+        finishLoad(event, Repository.TO_ADD, view);
+    }
+
+    static void readFilesToBeRemoved() {
+        Telemetry.IndexLoad event = new Telemetry.IndexLoad();
+        event.start();
+        IndexFile view = open(Repository.TO_REMOVE);
+        HashSet<String> files = new HashSet<>(capacityFor(view.size()));
+        view.forEach((name, stage, id, stat) -> files.add(name));
+        for (StageJournal.Change change : StageJournal.getChanges(StageJournal.TO_REMOVE, view.getChecksum())) {
+            if (change.remove) {
+                files.remove(change.name);
+            } else {
+                files.add(change.name);
+            }
+        }
+        TO_REMOVE_FILES = files;
+        forget(StageJournal.TO_REMOVE);
+        finishLoad(event, Repository.TO_REMOVE, view);
+    }
+
+    private static void finishLoad(Telemetry.IndexLoad event, File file, IndexFile view) {
+        event.file = file.getName();
+        event.entries = view.size();
+        event.bytes = view.getLength();
+        event.finish(Telemetry.Phase.INDEX_LOAD, view.getLength());
+    }
+
     static void writeIndex() {
-        try {
-            File index = Repository.INDEX;
-            FileOutputStream fos = new FileOutputStream(index);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(INDEX_FILES);
-            oos.flush();
-            oos.close();
-            fos.close();
-        } catch (Exception e) {
-            System.out.println("Error: " + e);
+        List<IndexFile.Entry> entries = new ArrayList<>(INDEX_FILES.size());
+        for (NameAndStatus key : INDEX_FILES.keySet()) {
+            FileStat stat = key.status == 0 ? STAT_CACHE.get(key.name) : null;
+            entries.add(new IndexFile.Entry(key.name, key.status, INDEX_FILES.get(key), stat));
         }
+        store(Repository.INDEX, StageJournal.INDEX, entries);
+        indexView = null;
+        statsRefreshed = false;
     }
     static void writeToAdd() {
-        try {
-            File toAdd = Repository.TO_ADD;
-            FileOutputStream fos = new FileOutputStream(toAdd);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(TO_ADD_FILES);
-            oos.flush();
-            oos.close();
-            fos.close();
-        } catch (Exception e) {
-            System.out.println("Error: " + e);
+        List<IndexFile.Entry> entries = new ArrayList<>(TO_ADD_FILES.size());
+        for (String name : TO_ADD_FILES.keySet()) {
+            entries.add(new IndexFile.Entry(name, 0, TO_ADD_FILES.get(name)));
         }
+        store(Repository.TO_ADD, StageJournal.TO_ADD, entries);
     }
 
     static void writeToRemove() {
-        try {
-            File toRemove = Repository.TO_REMOVE;
-            FileOutputStream fos = new FileOutputStream(toRemove);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(TO_REMOVE_FILES);
-            oos.flush();
-            oos.close();
-            fos.close();
-        } catch (Exception e) {
-            System.out.println("Error: " + e);
+        List<IndexFile.Entry> entries = new ArrayList<>(TO_REMOVE_FILES.size());
+        for (String name : TO_REMOVE_FILES) {
+            entries.add(new IndexFile.Entry(name, 0, null));
+        }
+        store(Repository.TO_REMOVE, StageJournal.TO_REMOVE, entries);
+    }
+
+    /**
+     * Writes one of the staging files in full, and drops its changes from the journal.
+     * @param target StageJournal.INDEX, TO_ADD or TO_REMOVE
+     */
+    private static void store(File file, int target, List<IndexFile.Entry> entries) {
+        lock();
+        Telemetry.IndexStore event = new Telemetry.IndexStore();
+        event.start();
+        boolean journaled = StageJournal.getLength() > 0 && !StageJournal.getChanges(target, getChecksum(target)).isEmpty();
+        if (!journaled) {
+            // changes made to an older version of the file must not apply to the new one, should it have the same checksum
+            StageJournal.drop(target);
+        }
+        long length = IndexFile.write(file, entries);
+        if (journaled) {
+            StageJournal.drop(target);
         }
+        forget(target);
+        event.file = file.getName();
+        event.entries = entries.size();
+        event.bytes = length;
+        event.finish(Telemetry.Phase.INDEX_STORE, length);
+    }
+
+    /**
+     * Returns the checksum of one of the staging files on disk.
+     * @param target StageJournal.INDEX, TO_ADD or TO_REMOVE
+     */
+    private static byte[] getChecksum(int target) {
+        return switch (target) {
+            case StageJournal.INDEX -> getIndexView().getChecksum();
+            case StageJournal.TO_ADD -> open(Repository.TO_ADD).getChecksum();
+            default -> open(Repository.TO_REMOVE).getChecksum();
+        };
     }
 
     static void readAll() {
@@ -168,10 +499,52 @@ class Stage {
         readFilesToBeAdded();
         readFilesToBeRemoved();
     }
+
+    /**
+     * Writes the three staging files in full, which leaves the journal empty. Used by commit.
+     */
     static void writeAll() {
         writeIndex();
         writeToAdd();
         writeToRemove();
+        changes = new ArrayList<>();
+    }
+
+    /**
+     * Writes the changes made to the staging files since they were read. Changes that are few compared to the size of
+     * the index are appended to the journal as one batch; otherwise the changed files are written in full.
+     */
+    static void save() {
+        if (!dirty[StageJournal.INDEX] && !dirty[StageJournal.TO_ADD] && !dirty[StageJournal.TO_REMOVE]) {
+            return;
+        }
+        lock();
+        if (changes != null) {
+            byte[] batch = StageJournal.encode(changes);
+            if (StageJournal.getLength() + batch.length <= Math.max(MIN_COMPACTION_LENGTH, getIndexView().getLength() / 2)) {
+                Telemetry.IndexStore event = new Telemetry.IndexStore();
+                event.start();
+                byte[][] checksums = {getChecksum(StageJournal.INDEX), getChecksum(StageJournal.TO_ADD), getChecksum(StageJournal.TO_REMOVE)};
+                StageJournal.append(batch, changes, checksums);
+                event.file = Repository.INDEX_JOURNAL.getName();
+                event.entries = changes.size();
+                event.bytes = batch.length;
+                event.finish(Telemetry.Phase.INDEX_STORE, batch.length);
+                changes = new ArrayList<>();
+                dirty = new boolean[3];
+                statsRefreshed = false;
+                return;
+            }
+        }
+        if (dirty[StageJournal.INDEX]) {
+            writeIndex();
+        }
+        if (dirty[StageJournal.TO_ADD]) {
+            writeToAdd();
+        }
+        if (dirty[StageJournal.TO_REMOVE]) {
+            writeToRemove();
+        }
     }
 
     public static void clear() {
@@ -181,45 +554,78 @@ class Stage {
 
     public static void clearToAdd() {
         TO_ADD_FILES.clear();
+        dirty[StageJournal.TO_ADD] = true;
+        changes = null;
     }
 
     public static void clearToRemove() {
         TO_REMOVE_FILES.clear();
+        dirty[StageJournal.TO_REMOVE] = true;
+        changes = null;
     }
 
-    public static HashMap<String, String> getIndexContents() {
-        readIndex();
-        HashMap<String, String> contents = new HashMap<>();
-        for (NameAndStatus key : INDEX_FILES.keySet()) {
-            contents.put(key.name, INDEX_FILES.get(key));
+    /**
+     * Returns the index as a map from filenames to SHA1s, decoded straight from the index file.
+     * A file in conflict maps to its entry with the highest stage.
+     */
+    public static HashMap<String, ObjectId> getIndexContents() {
+        Telemetry.IndexLoad event = new Telemetry.IndexLoad();
+        event.start();
+        IndexFile view = getIndexView();
+        HashMap<String, ObjectId> contents = new HashMap<>(capacityFor(view.size()));
+        List<StageJournal.Change> journal = StageJournal.getChanges(StageJournal.INDEX, view.getChecksum());
+        if (journal.isEmpty()) {
+            // entries come in stage order
+            view.forEach((name, stage, id, stat) -> contents.put(name, id));
+        } else {
+            HashMap<NameAndStatus, ObjectId> files = new HashMap<>(capacityFor(view.size()));
+            view.forEach((name, stage, id, stat) -> files.put(new NameAndStatus(name, stage), id));
+            applyIndexChanges(journal, files, null);
+            for (int status = 0; status <= Repository.CONFLICT_GIVER; status++) {
+                for (Map.Entry<NameAndStatus, ObjectId> entry : files.entrySet()) {
+                    if (entry.getKey().status == status) {
+                        contents.put(entry.getKey().name, entry.getValue());
+                    }
+                }
+            }
         }
+        finishLoad(event, Repository.INDEX, view);
         return contents;
     }
 
+    /**
+     * Updates the staging area with the result of a merge: files still in conflict get their three versions in the index,
+     * every other file its merged version (see {@link Repository.FileStatus#getMerged()}). Files whose merged version
+     * differs from the receiver's are also staged in TO_ADD or TO_REMOVE, so that the merge commit, or the commit that
+     * resolves the conflicts, includes them.
+     */
     public static void updateIndexFromDiff(HashMap<String, Repository.FileStatus> files) {
-        INDEX_FILES = new HashMap<>();
+        readAll();
         for (String filename : files.keySet()) {
             Repository.FileStatus status = files.get(filename);
-            if (status.getStatus().equals(Repository.CONFLICT)) {
-                readIndex();
+            if (status.isConflicted()) {
                 addToIndex(filename, 1, status.getBase());
                 addToIndex(filename, 2, status.getGiver());
                 addToIndex(filename, 3, status.getReceiver());
-                writeIndex();
-            } else if (status.getStatus().equals(Repository.MODIFY)) {
-                readIndex();
-                addToIndex(filename, 0, status.getGiver());
-                writeIndex();
-            } else if (status.getStatus().equals(Repository.ADD) ||
-                    status.getStatus().equals(Repository.SAME)) {
-                readIndex();
-                addToIndex(filename, 0, status.getGiver() == null ? status.getReceiver() : status.getGiver());
-                writeIndex();
+                continue;
+            }
+            ObjectId merged = status.getMerged();
+            if (merged == null) {
+                removeFromIndex(filename, 0);
+                if (status.changesReceiver()) {
+                    addToToRemove(filename);
+                }
+            } else {
+                addToIndex(filename, 0, merged);
+                if (status.changesReceiver()) {
+                    addToToAdd(filename, merged);
+                }
             }
         }
+        save();
     }
 
-    public static HashMap<NameAndStatus, String> getIndexFiles() {
+    public static HashMap<NameAndStatus, ObjectId> getIndexFiles() {
         Stage.readIndex();
         return INDEX_FILES;
     }
@@ -231,9 +637,62 @@ class Stage {
         }
     }
 
-    public static void updateIndex(HashMap<NameAndStatus, String> newContents) {
-        INDEX_FILES = newContents;
-        writeIndex();
+    private static int capacityFor(int entries) {
+        return (int) (entries / 0.75f) + 1;
     }
-}
 
+    /**
+     * Rewrites a staging file that was stored with Java serialization (HashMap of NameAndStatus for the index,
+     * HashMap for TO_ADD, HashSet for TO_REMOVE) in the binary format.
+     */
+    private static void migrateLegacyFile(File file) {
+        List<IndexFile.Entry> entries = new ArrayList<>();
+        try (ObjectInputStream in = new LegacyInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Object o = in.readObject();
+            if (o instanceof HashMap<?, ?> map) {
+                for (Object key : map.keySet()) {
+                    if (key instanceof LegacyNameAndStatus legacy) {
+                        entries.add(new IndexFile.Entry(legacy.name, legacy.status, ObjectId.fromHex((String) map.get(key))));
+                    } else {
+                        entries.add(new IndexFile.Entry((String) key, 0, ObjectId.fromHex((String) map.get(key))));
+                    }
+                }
+            } else if (o instanceof HashSet<?> set) {
+                for (Object name : set) {
+                    entries.add(new IndexFile.Entry((String) name, 0, null));
+                }
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException | ClassNotFoundException e) {
+            Utils.exit("Could not migrate %s: %s", file.getName(), e);
+        }
+        IndexFile.write(file, entries);
+    }
+
+    /**
+     * Shape of the index keys written by the old Stage, whose status was a boxed Integer.
+     */
+    @SuppressWarnings("serial")
+    private static class LegacyNameAndStatus implements Serializable {
+        String name;
+        Integer status;
+    }
+
+    /**
+     * Reads old index keys into {@link LegacyNameAndStatus}, whose serialized field layout matches the old class.
+     */
+    private static class LegacyInputStream extends ObjectInputStream {
+        LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+            if (descriptor.getName().equals("gitfly.Stage$NameAndStatus")) {
+                return ObjectStreamClass.lookup(LegacyNameAndStatus.class);
+            }
+            return descriptor;
+        }
+    }
+}
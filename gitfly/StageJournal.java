@@ -0,0 +1,410 @@
+package gitfly;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static gitfly.Utils.*;
+
+/**
+ * Append-only journal of changes to the staging files, .gitfly/index.journal.
+ * Commands that change a few entries append their changes here instead of rewriting the index, TO_ADD and TO_REMOVE,
+ * and readers apply the journal on top of the files (see {@link Stage}). commit writes the files in full and drops it.
+ *
+ *     "GFJN" {version int} {checksum of the index} {checksum of TO_ADD} {checksum of TO_REMOVE}
+ *     {batch}*  where batch = {length int} {change count varint} {change}* {CRC32 of the count and changes int}
+ *                     change = {flags byte} {stage byte} {path length varint} {path bytes} [{ID, 20 bytes}]
+ *                              [{mtime long} {ctime long} {size long} {inode long}]
+ *
+ * The low bits of flags name the staging file changed (INDEX, TO_ADD or TO_REMOVE), REMOVE marks removals, and NO_ID
+ * and HAS_STAT are as in {@link IndexFile}. The checksums are the last 20 bytes of the staging files the changes were
+ * made to (see {@link IndexFile#getChecksum()}): the changes to a file only apply while it still has that checksum,
+ * so a file written in full makes its changes obsolete even if the journal couldn't be updated afterwards.
+ * A batch holds the changes of one command and applies whole or not at all: a batch cut short by a crash fails its CRC,
+ * and is ignored together with everything after it.
+ */
+class StageJournal {
+    static final int INDEX = 0;
+    static final int TO_ADD = 1;
+    static final int TO_REMOVE = 2;
+
+    private static final byte[] MAGIC = {'G', 'F', 'J', 'N'};
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 20;
+    private static final int HEADER_SIZE = 8 + 3 * CHECKSUM_LENGTH;
+    private static final int TARGET_MASK = 0x03;
+    private static final int REMOVE = 0x04;
+    private static final int NO_ID = 0x80;
+    private static final int HAS_STAT = 0x40;
+
+    /**
+     * A single change to one of the staging files: an entry put (added or replaced) or removed.
+     */
+    static class Change {
+        /** INDEX, TO_ADD or TO_REMOVE. */
+        final int target;
+        final boolean remove;
+        final String name;
+        final int stage;
+        /** SHA1 of the entry put, or null for removals and TO_REMOVE entries. */
+        final ObjectId id;
+        /** Stat data of the index entry put, or null. */
+        final FileStat stat;
+
+        private Change(int target, boolean remove, String name, int stage, ObjectId id, FileStat stat) {
+            this.target = target;
+            this.remove = remove;
+            this.name = name;
+            this.stage = stage;
+            this.id = id;
+            this.stat = stat;
+        }
+
+        static Change put(int target, String name, int stage, ObjectId id, FileStat stat) {
+            return new Change(target, false, name, stage, id, id == null ? null : stat);
+        }
+
+        static Change remove(int target, String name, int stage) {
+            return new Change(target, true, name, stage, null, null);
+        }
+    }
+
+    private static boolean loaded;
+    /** Checksums of the staging files the journal applies to, or null if there is no journal. */
+    private static byte[][] checksums;
+    private static List<List<Change>> batches = new ArrayList<>();
+    /** Length of the journal up to the end of its last valid batch. */
+    private static long length;
+    private static long mtime;
+
+    /**
+     * Forgets the journal read by the previous command. Used by the {@link Daemon}.
+     */
+    static void reset() {
+        loaded = false;
+        checksums = null;
+        batches = new ArrayList<>();
+        length = 0;
+        mtime = 0;
+    }
+
+    /**
+     * Returns the journaled changes to a staging file, in order.
+     * @param target INDEX, TO_ADD or TO_REMOVE
+     * @param checksum checksum of the file on disk
+     * @return the changes, or an empty list if there are none or they were made to another version of the file
+     */
+    static List<Change> getChanges(int target, byte[] checksum) {
+        load();
+        List<Change> changes = new ArrayList<>();
+        if (checksums == null || !Arrays.equals(checksums[target], checksum)) {
+            return changes;
+        }
+        for (List<Change> batch : batches) {
+            for (Change change : batch) {
+                if (change.target == target) {
+                    changes.add(change);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Returns the mtime of the journal when it was read, in nanoseconds, or 0 if there is none.
+     * Stat data recorded in the journal is racily clean if it is not older than this (see {@link FileStat}).
+     */
+    static long getMtime() {
+        load();
+        return mtime;
+    }
+
+    /**
+     * Returns the length of the journal, in bytes, or 0 if there is none.
+     */
+    static long getLength() {
+        load();
+        return length;
+    }
+
+    /**
+     * Returns whether the journal on disk is still the one that was read.
+     */
+    static boolean isCurrent() {
+        if (!loaded) {
+            return true;
+        }
+        File file = Repository.INDEX_JOURNAL;
+        if (!file.isFile()) {
+            return checksums == null;
+        }
+        try {
+            return checksums != null && Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS) == mtime
+                    && file.length() == length;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the changes of a command as a batch.
+     */
+    static byte[] encode(List<Change> changes) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(changes.size() * 64);
+        Delta.writeVarint(body, changes.size());
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (Change change : changes) {
+            byte[] name = change.name.getBytes(StandardCharsets.UTF_8);
+            body.write(change.target | (change.remove ? REMOVE : 0) | (change.id == null ? NO_ID : 0) | (change.stat != null ? HAS_STAT : 0));
+            body.write(change.stage);
+            Delta.writeVarint(body, name.length);
+            body.write(name, 0, name.length);
+            if (change.id != null) {
+                change.id.copyRawTo(raw, 0);
+                body.write(raw, 0, raw.length);
+            }
+            if (change.stat != null) {
+                writeLong(body, change.stat.mtime);
+                writeLong(body, change.stat.ctime);
+                writeLong(body, change.stat.size);
+                writeLong(body, change.stat.inode);
+            }
+        }
+        byte[] payload = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(4 + payload.length + 4).putInt(payload.length).put(payload).putInt((int) crc.getValue()).array();
+    }
+
+    /**
+     * Appends a batch made by {@link #encode(List)}. If the journal doesn't exist yet, or some of the staging files were
+     * written in full since it was started, it is first rewritten for the current files, without the obsolete changes.
+     * @param current checksums of the index, TO_ADD and TO_REMOVE on disk
+     * @return length of the journal afterwards
+     */
+    static long append(byte[] batch, List<Change> changes, byte[][] current) {
+        load();
+        File file = Repository.INDEX_JOURNAL;
+        if (checksums != null && Arrays.deepEquals(checksums, current)) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                // drops whatever a crash left after the last valid batch
+                channel.truncate(length);
+                channel.write(ByteBuffer.wrap(batch), length);
+                channel.force(true);
+            } catch (IOException e) {
+                exit("Could not write %s.", file.getPath());
+            }
+            batches.add(changes);
+        } else {
+            List<List<Change>> kept = new ArrayList<>();
+            for (List<Change> old : batches) {
+                List<Change> valid = new ArrayList<>();
+                for (Change change : old) {
+                    if (Arrays.equals(checksums[change.target], current[change.target])) {
+                        valid.add(change);
+                    }
+                }
+                if (!valid.isEmpty()) {
+                    kept.add(valid);
+                }
+            }
+            kept.add(changes);
+            rewrite(kept, current);
+        }
+        restat();
+        return length;
+    }
+
+    /**
+     * Drops the changes to a staging file, which was just written in full. The journal is deleted once it has no changes left.
+     * @param target INDEX, TO_ADD or TO_REMOVE
+     */
+    static void drop(int target) {
+        load();
+        if (checksums == null) {
+            return;
+        }
+        List<List<Change>> kept = new ArrayList<>();
+        boolean dropped = false;
+        for (List<Change> batch : batches) {
+            List<Change> other = new ArrayList<>();
+            for (Change change : batch) {
+                if (change.target != target) {
+                    other.add(change);
+                }
+            }
+            dropped |= other.size() < batch.size();
+            if (!other.isEmpty()) {
+                kept.add(other);
+            }
+        }
+        if (kept.isEmpty()) {
+            delete();
+        } else if (dropped) {
+            rewrite(kept, checksums);
+            restat();
+        }
+    }
+
+    /**
+     * Deletes the journal, once every staging file was written in full.
+     */
+    static void delete() {
+        if (Repository.INDEX_JOURNAL.exists() && !Repository.INDEX_JOURNAL.delete()) {
+            exit("Could not delete %s.", Repository.INDEX_JOURNAL.getPath());
+        }
+        loaded = true;
+        checksums = null;
+        batches = new ArrayList<>();
+        length = 0;
+        mtime = 0;
+    }
+
+    /**
+     * Writes a new journal next to the old one and renames it over it.
+     */
+    private static void rewrite(List<List<Change>> kept, byte[][] header) {
+        File file = Repository.INDEX_JOURNAL;
+        File temp = join(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream target = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(target)) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            for (byte[] checksum : header) {
+                out.write(checksum);
+            }
+            ByteArrayOutputStream batchesOut = new ByteArrayOutputStream();
+            for (List<Change> batch : kept) {
+                batchesOut.write(encode(batch));
+            }
+            batchesOut.writeTo(out);
+            out.flush();
+            target.getChannel().force(true);
+        } catch (IOException e) {
+            temp.delete();
+            exit("Could not write %s.", file.getPath());
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            exit("Could not replace %s.", file.getPath());
+        }
+        checksums = header;
+        batches = kept;
+    }
+
+    private static void restat() {
+        File file = Repository.INDEX_JOURNAL;
+        try {
+            length = file.length();
+            mtime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            exit("Could not read %s.", file.getPath());
+        }
+    }
+
+    /**
+     * Reads the journal, up to its last valid batch. Exits if the file is not a journal.
+     */
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = Repository.INDEX_JOURNAL;
+        if (!file.isFile()) {
+            return;
+        }
+        Telemetry.IndexLoad event = new Telemetry.IndexLoad();
+        event.start();
+        byte[] data;
+        try {
+            mtime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+            data = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            exit("Failed to read journal %s.", file.getPath());
+            return;
+        }
+        if (data.length < HEADER_SIZE || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            exit("Error reading %s: not a journal.", file.getName());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.getInt(4) != VERSION) {
+            exit("Error reading %s: unsupported journal version %d.", file.getName(), buffer.getInt(4));
+        }
+        byte[][] header = new byte[3][];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = Arrays.copyOfRange(data, 8 + i * CHECKSUM_LENGTH, 8 + (i + 1) * CHECKSUM_LENGTH);
+        }
+        int pos = HEADER_SIZE;
+        int entries = 0;
+        while (pos + 8 <= data.length) {
+            int payload = buffer.getInt(pos);
+            if (payload < 0 || payload > data.length - pos - 8) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, pos + 4, payload);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4 + payload)) {
+                break;
+            }
+            List<Change> batch = decode(data, pos + 4);
+            entries += batch.size();
+            batches.add(batch);
+            pos += 4 + payload + 4;
+        }
+        checksums = header;
+        length = pos;
+        event.file = file.getName();
+        event.entries = entries;
+        event.bytes = data.length;
+        event.finish(Telemetry.Phase.INDEX_LOAD, data.length);
+    }
+
+    private static List<Change> decode(byte[] data, int start) {
+        int[] pos = {start};
+        int count = Delta.readVarint(data, pos);
+        List<Change> changes = new ArrayList<>(count);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int i = 0; i < count; i++) {
+            int flags = data[pos[0]++] & 0xff;
+            int stage = data[pos[0]++] & 0xff;
+            int nameLength = Delta.readVarint(data, pos);
+            String name = new String(data, pos[0], nameLength, StandardCharsets.UTF_8);
+            pos[0] += nameLength;
+            ObjectId id = null;
+            if ((flags & NO_ID) == 0) {
+                id = ObjectId.fromRaw(data, pos[0]);
+                pos[0] += ObjectId.RAW_LENGTH;
+            }
+            FileStat stat = null;
+            if ((flags & HAS_STAT) != 0) {
+                int at = pos[0];
+                stat = new FileStat(buffer.getLong(at), buffer.getLong(at + 8), buffer.getLong(at + 16), buffer.getLong(at + 24));
+                pos[0] += 32;
+            }
+            int target = flags & TARGET_MASK;
+            changes.add((flags & REMOVE) != 0 ? Change.remove(target, name, stage) : Change.put(target, name, stage, id, stat));
+        }
+        return changes;
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+}
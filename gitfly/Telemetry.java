@@ -0,0 +1,217 @@
+package gitfly;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Instrumentation of the operations that dominate the cost of a command: object reads and writes, hashing,
+ * loading and storing the staging files, working tree scans and tree builds.
+ *
+ * Every operation is a JFR event, so a recording shows where a slow command spent its time:
+ *
+ *     java -XX:StartFlightRecording=filename=gitfly.jfr,settings=profile gitfly.Main status
+ *     jfr print --categories gitfly gitfly.jfr
+ *
+ * Every operation also adds to a {@link Phase} counter (number of operations, bytes and time) when --stats is given
+ * (see {@link Main}); the counters are printed when the command ends. Both cost next to nothing when disabled.
+ * An operation is instrumented as follows:
+ *
+ *     Telemetry.ObjectRead event = new Telemetry.ObjectRead();
+ *     event.start();
+ *     ... read the object ...
+ *     event.id = ...;
+ *     event.finish(Telemetry.Phase.OBJECT_READ, bytes);
+ */
+class Telemetry {
+    /**
+     * Kinds of operations counted by --stats. Phases nest: a tree build includes the object writes of its trees,
+     * a working tree scan includes the hashing of the files that changed. Operations run by worker threads are
+     * summed over all threads, so the time of a phase can be more than the time of the command.
+     */
+    enum Phase {
+        OBJECT_READ("object reads"),
+        OBJECT_WRITE("object writes"),
+        HASH("hashing"),
+        INDEX_LOAD("index loads"),
+        INDEX_STORE("index stores"),
+        WORKING_TREE_SCAN("working tree scans"),
+        TREE_BUILD("tree builds");
+
+        private final String label;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private static volatile boolean statsEnabled;
+    private static long commandStart;
+    /** ObjectCache counters when the command started: a daemon keeps its cache, and its counters, between commands. */
+    private static long cacheHits;
+    private static long cacheMisses;
+    private static long cacheEvictions;
+
+    /**
+     * Starts counting, from zero, for a command run with --stats.
+     */
+    static void enableStats() {
+        for (Phase phase : Phase.values()) {
+            phase.count.reset();
+            phase.bytes.reset();
+            phase.nanos.reset();
+        }
+        cacheHits = ObjectCache.getHits();
+        cacheMisses = ObjectCache.getMisses();
+        cacheEvictions = ObjectCache.getEvictions();
+        commandStart = System.nanoTime();
+        statsEnabled = true;
+    }
+
+    /**
+     * Stops counting, and prints the counters and the ObjectCache statistics.
+     * @param command name of the command
+     */
+    static void printStats(String command, PrintStream out) {
+        statsEnabled = false;
+        out.printf("%s: %.1f ms%n", command, (System.nanoTime() - commandStart) / 1e6);
+        out.printf("  %-20s %10s %12s %12s%n", "phase", "count", "bytes", "time ms");
+        for (Phase phase : Phase.values()) {
+            if (phase.count.sum() > 0) {
+                out.printf("  %-20s %10d %12d %12.1f%n", phase.label, phase.count.sum(), phase.bytes.sum(), phase.nanos.sum() / 1e6);
+            }
+        }
+        out.printf("  object cache: %d hits, %d misses, %d evictions, %d entries, %d bytes%n", ObjectCache.getHits() - cacheHits,
+                ObjectCache.getMisses() - cacheMisses, ObjectCache.getEvictions() - cacheEvictions,
+                ObjectCache.size(), ObjectCache.getWeight());
+    }
+
+    /**
+     * An instrumented operation: a JFR event that also adds to a Phase counter when --stats is given.
+     */
+    @Category("gitfly")
+    @StackTrace(false)
+    abstract static class Operation extends Event {
+        private transient long start;
+
+        /**
+         * Marks the start of the operation.
+         */
+        void start() {
+            begin();
+            if (statsEnabled) {
+                start = System.nanoTime();
+            }
+        }
+
+        /**
+         * Marks the end of the operation, counts it in phase and commits the event. The fields must be set before.
+         * @param bytes number of bytes the operation processed, added to the counter of the phase
+         */
+        void finish(Phase phase, long bytes) {
+            if (statsEnabled) {
+                phase.count.increment();
+                phase.bytes.add(bytes);
+                phase.nanos.add(System.nanoTime() - start);
+            }
+            commit();
+        }
+    }
+
+    @Name("gitfly.ObjectRead")
+    @Label("Object Read")
+    @Description("Contents of an object read from the object store")
+    static class ObjectRead extends Operation {
+        @Label("Object ID")
+        String id;
+        @Label("Type")
+        @Description("Where the object is stored: loose or pack (objects themselves are untyped)")
+        String type;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("gitfly.ObjectWrite")
+    @Label("Object Write")
+    @Description("Object stored in the object store; nothing is written if it already exists")
+    static class ObjectWrite extends Operation {
+        @Label("Object ID")
+        String id;
+        @Label("Type")
+        @Description("blob for a file of the working directory, object for contents built in memory")
+        String type;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Written")
+        @Description("Whether the object was new")
+        boolean written;
+    }
+
+    @Name("gitfly.Hash")
+    @Label("Hash")
+    @Description("SHA1 of a buffer or of a file of the working directory")
+    static class Hash extends Operation {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("gitfly.IndexLoad")
+    @Label("Index Load")
+    @Description("Staging file decoded into memory")
+    static class IndexLoad extends Operation {
+        @Label("File")
+        String file;
+        @Label("Entries")
+        int entries;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("gitfly.IndexStore")
+    @Label("Index Store")
+    @Description("Staging file written")
+    static class IndexStore extends Operation {
+        @Label("File")
+        String file;
+        @Label("Entries")
+        int entries;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("gitfly.WorkingTreeScan")
+    @Label("Working Tree Scan")
+    @Description("Scan of the working directory, hashing the files whose stat data changed")
+    static class WorkingTreeScan extends Operation {
+        @Label("Files")
+        int files;
+        @Label("Hashed")
+        @Description("Files that had to be hashed")
+        int hashed;
+    }
+
+    @Name("gitfly.TreeBuild")
+    @Label("Tree Build")
+    @Description("Trees of a new commit built from the staged changes")
+    static class TreeBuild extends Operation {
+        @Label("Added")
+        int added;
+        @Label("Removed")
+        int removed;
+    }
+}
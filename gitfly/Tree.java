@@ -0,0 +1,103 @@
+package gitfly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed tree object: the snapshot of one directory.
+ * Trees are stored as text, one line per entry:
+ *
+ *     blob {SHA1} {filename}
+ *     tree {SHA1} {directory name}
+ *
+ * Parsed trees are kept in the {@link ObjectCache}, so a tree is read and split into entries once per process.
+ */
+class Tree implements ObjectCache.Cacheable {
+    private final String[] names;
+    private final ObjectId[] ids;
+    private final boolean[] subtrees;
+
+    private Tree(String[] names, ObjectId[] ids, boolean[] subtrees) {
+        this.names = names;
+        this.ids = ids;
+        this.subtrees = subtrees;
+    }
+
+    /**
+     * Returns a parsed tree, from the cache if possible.
+     * @param id SHA1 of the tree
+     */
+    static Tree read(ObjectId id) {
+        return ObjectCache.get(id, Tree.class, Tree::load);
+    }
+
+    private static Tree load(ObjectId id) {
+        return parse(ObjectStore.readString(id));
+    }
+
+    /**
+     * Parses the text of a tree object.
+     * @param contents contents of the tree object
+     */
+    static Tree parse(String contents) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < contents.length()) {
+            int end = contents.indexOf('\n', start);
+            if (end < 0) {
+                end = contents.length();
+            }
+            if (end > start) {
+                lines.add(contents.substring(start, end));
+            }
+            start = end + 1;
+        }
+        String[] names = new String[lines.size()];
+        ObjectId[] ids = new ObjectId[lines.size()];
+        boolean[] subtrees = new boolean[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int typeEnd = line.indexOf(' ');
+            int idEnd = typeEnd + 1 + ObjectId.HEX_LENGTH;
+            if (typeEnd < 0 || idEnd >= line.length()) {
+                throw new IllegalArgumentException("Malformed tree entry: " + line);
+            }
+            subtrees[i] = line.startsWith("tree");
+            ids[i] = ObjectId.fromHex(line.substring(typeEnd + 1, idEnd));
+            names[i] = line.substring(idEnd + 1);
+        }
+        return new Tree(names, ids, subtrees);
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size() {
+        return names.length;
+    }
+
+    String getName(int i) {
+        return names[i];
+    }
+
+    ObjectId getID(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Returns whether an entry is a subdirectory (as opposed to a file).
+     */
+    boolean isTree(int i) {
+        return subtrees[i];
+    }
+
+    @Override
+    public long getWeight() {
+        long weight = 64 + 3 * 16L * names.length;
+        for (String name : names) {
+            // String object, its byte array, and the ObjectId
+            weight += 40 + name.length() + 40;
+        }
+        return weight;
+    }
+}
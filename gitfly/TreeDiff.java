@@ -0,0 +1,134 @@
+package gitfly;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compares snapshots directory by directory, without flattening them into maps of every file.
+ * Trees are read through the {@link ObjectCache}. A subtree with the same SHA1 in every snapshot is skipped
+ * without being read, so comparing two commits costs as much as the directories they actually changed.
+ * Differences are passed to a {@link Visitor} as they are found, in path order within each directory.
+ */
+class TreeDiff {
+    /**
+     * Receives the files that differ between the snapshots.
+     */
+    interface Visitor {
+        /**
+         * @param path path of the file, with "/" separators
+         * @param ids SHA1 of the file in each snapshot, in the order the snapshots were given; null where the file is missing
+         */
+        void visit(String path, ObjectId[] ids);
+    }
+
+    /**
+     * Compares any number of trees.
+     * A path that is a file in one tree and a directory in another is reported as a file on the side(s) where it is one,
+     * and the files under the directory are reported as missing from the other side(s).
+     * @param visitor receives every file whose SHA1 is not the same in all trees
+     * @param trees SHA1s of the root trees; null stands for an empty tree
+     */
+    static void walk(Visitor visitor, ObjectId... trees) {
+        walk(visitor, "", trees);
+    }
+
+    private static void walk(Visitor visitor, String prefix, ObjectId[] trees) {
+        int n = trees.length;
+        // name -> index of the entry in each tree, -1 where it is missing
+        TreeMap<String, int[]> names = new TreeMap<>();
+        Tree[] read = new Tree[n];
+        for (int k = 0; k < n; k++) {
+            if (trees[k] == null) {
+                continue;
+            }
+            read[k] = Tree.read(trees[k]);
+            for (int i = 0; i < read[k].size(); i++) {
+                int[] positions = names.computeIfAbsent(read[k].getName(i), name -> newPositions(n));
+                positions[k] = i;
+            }
+        }
+        ObjectId[] files = new ObjectId[n];
+        ObjectId[] subtrees = new ObjectId[n];
+        for (Map.Entry<String, int[]> entry : names.entrySet()) {
+            int[] positions = entry.getValue();
+            boolean anyFile = false;
+            boolean anyTree = false;
+            for (int k = 0; k < n; k++) {
+                files[k] = null;
+                subtrees[k] = null;
+                if (positions[k] < 0) {
+                    continue;
+                }
+                if (read[k].isTree(positions[k])) {
+                    subtrees[k] = read[k].getID(positions[k]);
+                    anyTree = true;
+                } else {
+                    files[k] = read[k].getID(positions[k]);
+                    anyFile = true;
+                }
+            }
+            String path = prefix + entry.getKey();
+            if (anyFile && !allEqual(files)) {
+                visitor.visit(path, files.clone());
+            }
+            if (anyTree && !allEqual(subtrees)) {
+                walk(visitor, path + "/", subtrees.clone());
+            }
+        }
+    }
+
+    /**
+     * Compares a tree with a flat list of files, such as the index.
+     * The files have no subtree SHA1s, so every directory of the tree is read.
+     * @param visitor receives every file whose SHA1 differs; ids[0] is its SHA1 in the tree, ids[1] in files
+     * @param tree SHA1 of the root tree; null stands for an empty tree
+     * @param files paths mapped to SHA1s
+     */
+    static void walk(Visitor visitor, ObjectId tree, Map<String, ObjectId> files) {
+        Set<String> seen = new HashSet<>();
+        if (tree != null) {
+            walk(visitor, "", tree, files, seen);
+        }
+        for (Map.Entry<String, ObjectId> entry : files.entrySet()) {
+            if (!seen.contains(entry.getKey())) {
+                visitor.visit(entry.getKey(), new ObjectId[]{null, entry.getValue()});
+            }
+        }
+    }
+
+    private static void walk(Visitor visitor, String prefix, ObjectId treeID, Map<String, ObjectId> files, Set<String> seen) {
+        Tree tree = Tree.read(treeID);
+        for (int i = 0; i < tree.size(); i++) {
+            String path = prefix + tree.getName(i);
+            if (tree.isTree(i)) {
+                walk(visitor, path + "/", tree.getID(i), files, seen);
+                continue;
+            }
+            ObjectId other = files.get(path);
+            if (other != null) {
+                seen.add(path);
+            }
+            if (!tree.getID(i).equals(other)) {
+                visitor.visit(path, new ObjectId[]{tree.getID(i), other});
+            }
+        }
+    }
+
+    private static int[] newPositions(int n) {
+        int[] positions = new int[n];
+        Arrays.fill(positions, -1);
+        return positions;
+    }
+
+    private static boolean allEqual(ObjectId[] ids) {
+        for (int k = 1; k < ids.length; k++) {
+            if (ids[k] == null ? ids[0] != null : !ids[k].equals(ids[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
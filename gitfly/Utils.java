@@ -4,8 +4,6 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 public class Utils {
@@ -21,13 +19,25 @@ public class Utils {
     }
 
     /**
-     * Exits the program with a relevant message to the user
+     * Ends the current command with a relevant message to the user.
+     * Throws an {@link ExitException} rather than stopping the JVM, so that the {@link Daemon} survives the command;
+     * {@link Main} catches it.
      * @param message format of message to output
      * @param args relevant command parameters
      */
     public static void exit(String message, Object... args) {
         outputMessage(message, args);
-        System.exit(0);
+        throw new ExitException();
+    }
+
+    /**
+     * Thrown by {@link #exit(String, Object...)} to end the current command.
+     */
+    @SuppressWarnings("serial")
+    static class ExitException extends RuntimeException {
+        ExitException() {
+            super(null, null, false, false);
+        }
     }
 
     /**
@@ -137,26 +147,23 @@ public class Utils {
      * @return SHA1 hash of given file contents
      */
     public static String getSHA1(byte[] data) {
-        try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            byte[] hash = sha1.digest(data);
-
-            StringBuilder stringBuilderHex = new StringBuilder();
-
-            for (byte b : hash) {
-                stringBuilderHex.append(String.format("%02x", b));
-            }
-
-            return stringBuilderHex.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("SHA-1 algorithm not found. Fatal error.");
-        }
+        return ObjectId.hash(data).toHex();
     }
 
     public static String getSHA1(String data) {
         return getSHA1(data.getBytes());
     }
 
+    /**
+     * Returns SHA1 hash of a file's contents, reading it in fixed size buffers so that memory use doesn't depend on the file size.
+     * Equal to getSHA1(readContents(file)).
+     * @param file file to hash
+     * @return SHA1 hash of the file's contents
+     */
+    public static String getSHA1(File file) {
+        return ObjectId.hash(file).toHex();
+    }
+
     static <T extends Serializable> T readObject(File file, Class <T> expectedClass) {
         try {
             ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
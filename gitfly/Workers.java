@@ -0,0 +1,20 @@
+package gitfly;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shared fork/join pool for the parallel parts of gitfly, sized by {@link Config#getThreads()}.
+ */
+class Workers {
+    private static ForkJoinPool pool;
+
+    /**
+     * Returns the shared pool, creating it on first use.
+     */
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Config.getThreads());
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,121 @@
+package gitfly;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans the working directory in parallel and returns the SHA1 of every file.
+ * Every directory is a fork/join task; its subdirectories are forked, and its files are hashed in batches of
+ * FILES_PER_TASK so that large flat directories are spread over the pool as well.
+ * All tasks write into a single concurrent map, so no per-directory results are merged.
+ * Files whose stat data matches the index (see {@link Stage#getUpToDateID(String, FileStat)}) are not hashed.
+ * Hidden files and directories, such as .gitfly, are ignored.
+ */
+class WorkingTreeScanner {
+    private static final int FILES_PER_TASK = 32;
+
+    private final Map<String, ObjectId> contents;
+    /** Stat data of the files that had to be hashed; applied to the index once the scan is over. */
+    private final Map<String, FileStat> hashed = new ConcurrentHashMap<>();
+
+    private WorkingTreeScanner(int expectedFiles) {
+        this.contents = new ConcurrentHashMap<>(Math.max(16, expectedFiles + expectedFiles / 8));
+    }
+
+    /**
+     * Scans a directory. The index must already be loaded, since its stat data is used to skip hashing.
+     * @param root directory to scan
+     * @param expectedFiles expected number of files, used to presize the result
+     * @return map from paths (relative to root) to SHA1s
+     */
+    static Map<String, ObjectId> scan(File root, int expectedFiles) {
+        Telemetry.WorkingTreeScan event = new Telemetry.WorkingTreeScan();
+        event.start();
+        WorkingTreeScanner scanner = new WorkingTreeScanner(expectedFiles);
+        Workers.pool().invoke(scanner.new ScanDirectory(root, ""));
+        for (Map.Entry<String, FileStat> entry : scanner.hashed.entrySet()) {
+            Stage.refreshStat(entry.getKey(), entry.getValue(), scanner.contents.get(entry.getKey()));
+        }
+        event.files = scanner.contents.size();
+        event.hashed = scanner.hashed.size();
+        event.finish(Telemetry.Phase.WORKING_TREE_SCAN, 0);
+        return scanner.contents;
+    }
+
+    private void hashFile(File file, String filename) {
+        FileStat stat = FileStat.of(file);
+        ObjectId id = Stage.getUpToDateID(filename, stat);
+        if (id == null) {
+            id = ObjectId.hash(file);
+            if (stat != null) {
+                hashed.put(filename, stat);
+            }
+        }
+        contents.put(filename, id);
+    }
+
+    @SuppressWarnings("serial")
+    private class ScanDirectory extends RecursiveAction {
+        private final File directory;
+        private final String prefix;
+
+        ScanDirectory(File directory, String directoryPrefix) {
+            this.directory = directory;
+            this.prefix = directoryPrefix.isEmpty() ? "" : directoryPrefix + "/";
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<File> batch = new ArrayList<>(FILES_PER_TASK);
+            for (File file : files) {
+                if (file.getName().startsWith(".")) {
+                    continue;
+                }
+                if (file.isFile()) {
+                    batch.add(file);
+                    if (batch.size() == FILES_PER_TASK) {
+                        tasks.add(new HashFiles(batch, prefix));
+                        batch = new ArrayList<>(FILES_PER_TASK);
+                    }
+                } else if (file.isDirectory()) {
+                    tasks.add(new ScanDirectory(file, prefix + file.getName()));
+                }
+            }
+            for (RecursiveAction task : tasks) {
+                task.fork();
+            }
+            // the last batch is hashed by this task while the others run
+            new HashFiles(batch, prefix).compute();
+            for (RecursiveAction task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class HashFiles extends RecursiveAction {
+        private final List<File> files;
+        private final String prefix;
+
+        HashFiles(List<File> files, String prefix) {
+            this.files = files;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void compute() {
+            for (File file : files) {
+                hashFile(file, prefix + file.getName());
+            }
+        }
+    }
+}
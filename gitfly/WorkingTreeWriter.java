@@ -0,0 +1,190 @@
+package gitfly;
+
+import static gitfly.Utils.exit;
+import static gitfly.Utils.join;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Applies a set of file writes and deletions to the working directory, several files at a time.
+ * Used by checkout and merge: the changes are collected first, then applied in three stages:
+ *
+ *     1. files are deleted, and directories left empty are removed
+ *     2. the directories of the files to write are created, one after the other
+ *     3. files are written
+ *
+ * Deletions and writes run on a fixed pool of {@link Config#getCheckoutThreads()} threads; a handful of changes
+ * are applied on the calling thread instead. A failure doesn't stop the other files:
+ * every failure is collected and reported once all the files were processed.
+ */
+class WorkingTreeWriter {
+    /** Below this number of files, a stage runs on the calling thread. */
+    private static final int PARALLEL_THRESHOLD = 16;
+    /** Maximum number of failures listed in the error message. */
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private final File root;
+    private final List<String> toDelete = new ArrayList<>();
+    private final LinkedHashMap<String, ObjectId> toWrite = new LinkedHashMap<>();
+    private final LinkedHashMap<String, byte[]> toWriteText = new LinkedHashMap<>();
+    /** Stat data of the files written from objects, read right after they were written. */
+    private final Map<String, FileStat> stats = new ConcurrentHashMap<>();
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param root directory the paths are relative to
+     */
+    WorkingTreeWriter(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Schedules a file to be deleted. Missing files are ignored.
+     */
+    void delete(String path) {
+        toDelete.add(path);
+    }
+
+    /**
+     * Schedules a file to be written with the contents of an object.
+     */
+    void write(String path, ObjectId id) {
+        toWrite.put(path, id);
+    }
+
+    /**
+     * Schedules a file to be written with the given contents.
+     */
+    void write(String path, byte[] contents) {
+        toWriteText.put(path, contents);
+    }
+
+    /**
+     * Applies the scheduled changes. Exits with the list of failures if any file couldn't be written or deleted.
+     */
+    void apply() {
+        List<Callable<Void>> deletions = new ArrayList<>(toDelete.size());
+        for (String path : toDelete) {
+            deletions.add(task(path, () -> Files.deleteIfExists(join(root, path).toPath())));
+        }
+        run(deletions);
+        for (String path : toDelete) {
+            removeEmptyDirectories(join(root, path).getParentFile());
+        }
+
+        TreeSet<File> directories = new TreeSet<>();
+        List<Callable<Void>> writes = new ArrayList<>(toWrite.size() + toWriteText.size());
+        for (Map.Entry<String, ObjectId> entry : toWrite.entrySet()) {
+            File file = join(root, entry.getKey());
+            directories.add(file.getParentFile());
+            writes.add(task(entry.getKey(), () -> {
+                ObjectStore.copyTo(entry.getValue(), file);
+                FileStat stat = FileStat.of(file);
+                if (stat != null) {
+                    stats.put(entry.getKey(), stat);
+                }
+            }));
+        }
+        for (Map.Entry<String, byte[]> entry : toWriteText.entrySet()) {
+            File file = join(root, entry.getKey());
+            directories.add(file.getParentFile());
+            writes.add(task(entry.getKey(), () -> Files.write(file.toPath(), entry.getValue())));
+        }
+        for (File directory : directories) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                errors.add(directory.getPath() + ": could not create directory");
+            }
+        }
+        run(writes);
+        if (!errors.isEmpty()) {
+            List<String> reported = new ArrayList<>(errors).subList(0, Math.min(errors.size(), MAX_REPORTED_ERRORS));
+            exit("Could not update %d files:\n%s%s", errors.size(), String.join("\n", reported),
+                    errors.size() > MAX_REPORTED_ERRORS ? "\n..." : "");
+        }
+    }
+
+    /**
+     * Returns the number of files written.
+     */
+    int getWritten() {
+        return toWrite.size() + toWriteText.size();
+    }
+
+    /**
+     * Returns the number of files deleted.
+     */
+    int getDeleted() {
+        return toDelete.size();
+    }
+
+    /**
+     * Returns the stat data of a file written from an object, or null if it couldn't be read.
+     */
+    FileStat getStat(String path) {
+        return stats.get(path);
+    }
+
+    private interface FileAction {
+        void run() throws IOException;
+    }
+
+    private Callable<Void> task(String path, FileAction action) {
+        return () -> {
+            try {
+                action.run();
+            } catch (IOException | RuntimeException e) {
+                errors.add(path + ": " + e);
+            }
+            return null;
+        };
+    }
+
+    private static void run(List<Callable<Void>> tasks) {
+        int threads = Math.min(Config.getCheckoutThreads(), tasks.size());
+        if (tasks.size() < PARALLEL_THRESHOLD || threads <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception ignored) {
+                    // tasks collect their own errors
+                }
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "gitfly-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exit("Interrupted while updating the working directory.");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Deletes a directory if it is empty, then its parent if that is left empty, and so on up to the root.
+     */
+    private void removeEmptyDirectories(File directory) {
+        while (directory != null && !directory.equals(root) && directory.delete()) {
+            directory = directory.getParentFile();
+        }
+    }
+}
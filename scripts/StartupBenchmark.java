@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long gitfly commands take to start: the time from launching the JVM to the first byte of output,
+ * and to the end of the process, for a few commands in a small scratch repository.
+ * Run it with the single-file source launcher, from the root of the project:
+ *
+ *     java scripts/StartupBenchmark.java [--cp build/gitfly.jar] [--runs 10] [--java-opt OPTION]...
+ *
+ * Compare runs with and without "--java-opt -XX:SharedArchiveFile=build/gitfly.jsa" (see scripts/cds.sh)
+ * to see what the archive saves, or before and after a change to catch startup regressions.
+ * The daemon is disabled, so every run pays the full JVM startup.
+ */
+public class StartupBenchmark {
+    private static final List<List<String>> COMMANDS = List.of(
+            List.of("status"),
+            List.of("log"),
+            List.of("log", "--oneline", "-n", "1"),
+            List.of("diff", "master", "feature", "--name-status"),
+            List.of("add", "README"),
+            List.of("rm-branch"));
+
+    public static void main(String[] args) throws Exception {
+        String classpath = "build/gitfly.jar";
+        int runs = 10;
+        List<String> javaOptions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cp" -> classpath = args[++i];
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--java-opt" -> javaOptions.add(args[++i]);
+                default -> {
+                    System.err.println("Usage: java scripts/StartupBenchmark.java [--cp CLASSPATH] [--runs N] [--java-opt OPTION]...");
+                    System.exit(2);
+                }
+            }
+        }
+        classpath = new File(classpath).getAbsolutePath();
+
+        Path repo = Files.createTempDirectory("gitfly-startup");
+        try {
+            createRepository(repo, classpath, javaOptions);
+            System.out.printf("%-40s %14s %14s %14s%n", "command", "first out ms", "p90 first ms", "total ms");
+            for (List<String> command : COMMANDS) {
+                // one untimed run, so that every timed run sees warm file system caches
+                run(repo, classpath, javaOptions, command);
+                long[] firstOutput = new long[runs];
+                long[] total = new long[runs];
+                for (int i = 0; i < runs; i++) {
+                    long[] times = run(repo, classpath, javaOptions, command);
+                    firstOutput[i] = times[0];
+                    total[i] = times[1];
+                }
+                Arrays.sort(firstOutput);
+                Arrays.sort(total);
+                System.out.printf("%-40s %14.1f %14.1f %14.1f%n", String.join(" ", command),
+                        millis(firstOutput[runs / 2]), millis(firstOutput[(int) Math.min(runs - 1, Math.ceil(runs * 0.9) - 1)]),
+                        millis(total[runs / 2]));
+            }
+        } finally {
+            deleteRecursively(repo.toFile());
+        }
+    }
+
+    /**
+     * Creates a repository with a master and a feature branch, a few commits and a few files.
+     */
+    private static void createRepository(Path repo, String classpath, List<String> javaOptions) throws Exception {
+        run(repo, classpath, javaOptions, List.of("init"));
+        Files.createDirectories(repo.resolve("src"));
+        List<String> add = new ArrayList<>(List.of("add", "README"));
+        Files.writeString(repo.resolve("README"), "startup benchmark\n");
+        for (int i = 0; i < 20; i++) {
+            Files.writeString(repo.resolve("src/File" + i + ".java"), "class File" + i + " {}\n");
+            add.add("src/File" + i + ".java");
+        }
+        run(repo, classpath, javaOptions, add);
+        run(repo, classpath, javaOptions, List.of("commit", "first"));
+        run(repo, classpath, javaOptions, List.of("branch", "feature"));
+        run(repo, classpath, javaOptions, List.of("checkout", "feature"));
+        Files.writeString(repo.resolve("src/File0.java"), "class File0 { int x; }\n");
+        run(repo, classpath, javaOptions, List.of("add", "src/File0.java"));
+        run(repo, classpath, javaOptions, List.of("commit", "second"));
+        run(repo, classpath, javaOptions, List.of("checkout", "master"));
+    }
+
+    /**
+     * Runs a gitfly command and returns the nanoseconds until its first byte of output and until it exited.
+     */
+    private static long[] run(Path repo, String classpath, List<String> javaOptions, List<String> command) throws Exception {
+        List<String> commandLine = new ArrayList<>();
+        commandLine.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        commandLine.addAll(javaOptions);
+        commandLine.addAll(List.of("-cp", classpath, "gitfly.Main"));
+        commandLine.addAll(command);
+        ProcessBuilder builder = new ProcessBuilder(commandLine).directory(repo.toFile()).redirectErrorStream(true);
+        Map<String, String> environment = builder.environment();
+        environment.put("GITFLY_NO_DAEMON", "1");
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        long firstOutput = -1;
+        try (InputStream out = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = out.read(buffer)) >= 0) {
+                if (firstOutput < 0 && n > 0) {
+                    firstOutput = System.nanoTime() - start;
+                }
+            }
+        }
+        process.waitFor();
+        long total = System.nanoTime() - start;
+        return new long[]{firstOutput < 0 ? total : firstOutput, total};
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,59 @@
+#!/usr/bin/env bash
+# Builds build/gitfly.jar and a class-data-sharing archive (build/gitfly.jsa) for it.
+# The archive holds the gitfly classes and the JDK classes they use, already parsed and verified,
+# so that every command starts faster. Run scripts/gitfly to use it.
+#
+# The archive is recorded with -XX:ArchiveClassesAtExit by a daemon (see Daemon.java) started in a temporary
+# repository: a short training session (init, add, commit, status, log, diff, branch, checkout, merge, gc) is
+# forwarded to it, so a single JVM loads the classes of every command, then the daemon is stopped and the JVM
+# writes the archive on exit. The archive is layered on top of the JDK's default one.
+# It is only valid for the JDK that created it and for this exact jar: rerun the script after rebuilding.
+set -euo pipefail
+
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+BUILD="$ROOT/build"
+JAR="$BUILD/gitfly.jar"
+ARCHIVE="$BUILD/gitfly.jsa"
+
+rm -rf "$BUILD/classes"
+mkdir -p "$BUILD/classes"
+javac -d "$BUILD/classes" "$ROOT"/gitfly/*.java
+# CDS only archives classes loaded from jar files, not from directories
+jar --create --file "$JAR" -C "$BUILD/classes" .
+
+TRAINING="$(mktemp -d)"
+trap 'rm -rf "$TRAINING"' EXIT
+rm -f "$ARCHIVE"
+cd "$TRAINING"
+GITFLY=(java -cp "$JAR" gitfly.Main)
+"${GITFLY[@]}" init > /dev/null
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$JAR" gitfly.Main daemon > /dev/null &
+DAEMON=$!
+for _ in $(seq 50); do
+    [ -S .gitfly/daemon.sock ] && break
+    sleep 0.1
+done
+run() { "${GITFLY[@]}" "$@" > /dev/null; }
+mkdir -p src/main
+echo "hello" > README
+echo "class A {}" > src/main/A.java
+run add README src/main/A.java
+run commit "first"
+run branch feature
+run checkout feature
+echo "class B {}" > src/main/B.java
+run add src/main/B.java
+run commit "second"
+run checkout master
+echo "world" >> README
+run add README
+run commit "third"
+run merge feature
+run status
+run log
+run log --oneline -n 1 -- src
+run diff master feature --stat
+run gc
+run daemon --stop
+wait "$DAEMON"
+echo "Created $ARCHIVE for $JAR"